@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.util.FSUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Write throughput and stored size with and without the Dictionary encoding, in an in-process HBase 
+ * mini-cluster. The setting is fixed for the life of a JVM, so run it once each way and compare:
+ * 
+ *   java -cp benchmarks/target/benchmarks.jar com.salesforce.jirachi.ingest.DictionaryBenchmark 20000
+ *   java -Djirachi.phoenix.dictionary=true -cp benchmarks/target/benchmarks.jar \
+ *       com.salesforce.jirachi.ingest.DictionaryBenchmark 20000
+ * 
+ * Sizes are of the flushed store files (uncompressed, uncompacted), so only with the mini-cluster.
+ * 
+ * Usage: DictionaryBenchmark [issues] [query repetitions]
+ */
+public class DictionaryBenchmark {
+
+  private static final int BATCH = 50;
+  private static final String[] TABLES = { "JIRA_ISSUE", "JIRA_COMMENT", "JIRA_DICTIONARY" };
+
+  public static void main(String[] args) throws Exception {
+    int issues = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int reps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    System.out.println("Dictionary: " + (Dictionary.isEnabled() ? "on" : "off"));
+    MiniCluster cluster = MiniCluster.start();
+    try {
+      Connection conn = PhoenixUtils.getPhoenixConnection();
+      try {
+        // the tables, and the rows, are made before the clock starts, so it's just the writes that are timed
+        PhoenixJiraPersister.ensureSchema(conn);
+        SyntheticJira jira = new SyntheticJira(42);
+        List<RowBatch> batches = Lists.newArrayList();
+        for (int first = 0; first < issues; first += BATCH) {
+          batches.add(jira.rowBatch(first, Math.min(BATCH, issues - first)));
+        }
+        long start = System.nanoTime();
+        for (RowBatch batch : batches) {
+          PhoenixJiraPersister.persist(batch);
+        }
+        report("persist", issues, "issues", start);
+
+        String status = Dictionary.select("status");
+        String SQL = "SELECT " + status + ", count(*) FROM JIRA_ISSUE GROUP BY " + status;
+        start = System.nanoTime();
+        for (int i = 0; i < reps; i++) {
+          Statement stmt = conn.createStatement();
+          try {
+            ResultSet rs = stmt.executeQuery(SQL);
+            while (rs.next()) {
+              Dictionary.read(rs, 1, "status");
+            }
+          } finally {
+            stmt.close();
+          }
+        }
+        report("issues by status", reps, "queries", start);
+      } finally {
+        PhoenixUtils.release(conn);
+      }
+
+      Configuration conf = cluster.getConfiguration();
+      if (conf != null) {
+        HBaseAdmin admin = new HBaseAdmin(conf);
+        FileSystem fs = FileSystem.get(conf);
+        Path root = FSUtils.getRootDir(conf);
+        for (String table : TABLES) {
+          if (!admin.tableExists(table)) continue; // JIRA_DICTIONARY, with the dictionary off
+          admin.flush(table);
+          Path dir = new Path(root, table);
+          long bytes = fs.exists(dir) ? fs.getContentSummary(dir).getLength() : 0;
+          System.out.println(String.format("%-28s %12d bytes", table, bytes));
+        }
+        admin.close();
+      }
+    } finally {
+      PhoenixUtils.closeConnections();
+      cluster.stop();
+    }
+  }
+
+  private static void report(String name, int count, String unit, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-28s %8d %s in %7.2fs = %10.1f %s/sec", name, count, unit, seconds, 
+        count / seconds, unit));
+  }
+}
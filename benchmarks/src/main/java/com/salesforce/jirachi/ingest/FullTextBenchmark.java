@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Set;
+
+/**
+ * FullTextIndex lookups (term, prefix, phrase) against the LIKE scans they replace, over synthetic issues
+ * in an in-process HBase mini-cluster. Also reports the write rate with the index being maintained.
+ * 
+ * Usage: FullTextBenchmark [issues] [query repetitions]
+ */
+public class FullTextBenchmark {
+
+  private static final int BATCH = 50;
+
+  public static void main(String[] args) throws Exception {
+    // before anything reads it
+    System.setProperty("jirachi.fulltext", "true");
+    int issues = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int reps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    MiniCluster cluster = MiniCluster.start();
+    try {
+      SyntheticJira jira = new SyntheticJira(42);
+      long start = System.nanoTime();
+      for (int first = 0; first < issues; first += BATCH) {
+        PhoenixJiraPersister.persist(jira.jiraSet(first, Math.min(BATCH, issues - first)));
+      }
+      report("persist + index", issues, "issues", start);
+
+      start = System.nanoTime();
+      Set<String> found = null;
+      for (int i = 0; i < reps; i++) {
+        found = FullTextIndex.term("compaction", FullTextIndex.Field.SUMMARY);
+      }
+      report("term, summaries (" + found.size() + ")", reps, "queries", start);
+      start = System.nanoTime();
+      for (int i = 0; i < reps; i++) {
+        found = FullTextIndex.prefix("replic");
+      }
+      report("prefix, everywhere (" + found.size() + ")", reps, "queries", start);
+      start = System.nanoTime();
+      for (int i = 0; i < reps; i++) {
+        found = FullTextIndex.phrase("block cache", FullTextIndex.Field.COMMENT);
+      }
+      report("phrase, comments (" + found.size() + ")", reps, "queries", start);
+
+      Connection conn = PhoenixUtils.getPhoenixConnection();
+      try {
+        like(conn, "LIKE, summaries", reps, 
+            "SELECT count(*) FROM JIRA_ISSUE WHERE lower(summary) LIKE '%compaction%'");
+        like(conn, "LIKE, comments", reps, 
+            "SELECT count(*) FROM JIRA_COMMENT WHERE lower(body) LIKE '%block cache%'");
+      } finally {
+        PhoenixUtils.release(conn);
+      }
+    } finally {
+      PhoenixUtils.closeConnections();
+      cluster.stop();
+    }
+  }
+
+  private static void like(Connection conn, String name, int reps, String SQL) throws Exception {
+    long start = System.nanoTime();
+    long count = 0;
+    for (int i = 0; i < reps; i++) {
+      Statement stmt = conn.createStatement();
+      try {
+        ResultSet rs = stmt.executeQuery(SQL);
+        rs.next();
+        count = rs.getLong(1);
+      } finally {
+        stmt.close();
+      }
+    }
+    report(name + " (" + count + ")", reps, "queries", start);
+  }
+
+  private static void report(String name, int count, String unit, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-32s %8d %s in %7.2fs = %10.1f %s/sec", name, count, unit, seconds, 
+        count / seconds, unit));
+  }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Write throughput and typical analysis queries against the classic or the scan table layout (see 
+ * PhoenixJiraPersister), in an in-process HBase mini-cluster. The layout is fixed for the life of a JVM, so 
+ * run it once per layout and compare:
+ * 
+ *   java -cp benchmarks/target/benchmarks.jar com.salesforce.jirachi.ingest.LayoutBenchmark 20000
+ *   java -Djirachi.phoenix.layout=scan -cp benchmarks/target/benchmarks.jar \
+ *       com.salesforce.jirachi.ingest.LayoutBenchmark 20000
+ * 
+ * The queries are written the way each layout would be queried: against JIRA_ISSUE for classic, and against
+ * the IssueIndexes tables for scan.
+ * 
+ * Usage: LayoutBenchmark [issues] [query repetitions]
+ */
+public class LayoutBenchmark {
+
+  private static final int BATCH = 50;
+
+  public static void main(String[] args) throws Exception {
+    int issues = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int reps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    boolean scan = PhoenixJiraPersister.isScanLayout();
+    System.out.println("Layout: " + (scan ? PhoenixJiraPersister.SCAN : PhoenixJiraPersister.CLASSIC));
+    MiniCluster cluster = MiniCluster.start();
+    try {
+      Connection conn = PhoenixUtils.getPhoenixConnection();
+      try {
+        // schema and rows up front, so the persist number is the writes alone
+        PhoenixJiraPersister.ensureSchema(conn);
+        SyntheticJira jira = new SyntheticJira(42);
+        List<RowBatch> batches = Lists.newArrayList();
+        for (int first = 0; first < issues; first += BATCH) {
+          batches.add(jira.rowBatch(first, Math.min(BATCH, issues - first)));
+        }
+        long start = System.nanoTime();
+        for (RowBatch batch : batches) {
+          PhoenixJiraPersister.persist(batch);
+        }
+        report("persist", issues, "issues", start);
+
+        Timestamp june = new Timestamp(new DateTime(2012, 6, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis());
+        Timestamp july = new Timestamp(new DateTime(2012, 7, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis());
+
+        query(conn, "comments for an issue", reps, 
+            "SELECT count(*) FROM JIRA_COMMENT WHERE issue_key = ?", 
+            new Object[] { SyntheticJira.key(issues / 2) });
+        query(conn, "id for an issue key", reps, 
+            scan ? "SELECT id FROM " + IssueIndexes.BY_KEY + " WHERE issue_key = ?" 
+                 : "SELECT id FROM JIRA_ISSUE WHERE issue_key = ?", 
+            new Object[] { SyntheticJira.key(issues / 2) });
+        query(conn, "issues created in a month", reps, 
+            "SELECT status, count(*) FROM " + (scan ? IssueIndexes.BY_CREATED : "JIRA_ISSUE") + 
+            " WHERE creationDate >= ? AND creationDate < ? GROUP BY status", 
+            new Object[] { june, july });
+        query(conn, "tagged issues in a month", reps, 
+            scan ? "SELECT priority, count(*) FROM " + IssueIndexes.BY_TAG + 
+                   " WHERE tag = 'isTest' AND creationDate >= ? AND creationDate < ? GROUP BY priority" 
+                 : "SELECT priority, count(*) FROM JIRA_ISSUE" + 
+                   " WHERE isTest = true AND creationDate >= ? AND creationDate < ? GROUP BY priority", 
+            new Object[] { june, july });
+      } finally {
+        PhoenixUtils.release(conn);
+      }
+    } finally {
+      PhoenixUtils.closeConnections();
+      cluster.stop();
+    }
+  }
+
+  private static void query(Connection conn, String name, int reps, String SQL, Object[] params) throws Exception {
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, SQL);
+    run(stmt, params); // warm up
+    long start = System.nanoTime();
+    for (int i = 0; i < reps; i++) {
+      run(stmt, params);
+    }
+    report(name, reps, "queries", start);
+  }
+
+  private static void run(PreparedStatement stmt, Object[] params) throws Exception {
+    PhoenixUtils.bind(stmt, params);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        // just read them
+      }
+    } finally {
+      rs.close();
+    }
+  }
+
+  private static void report(String name, int count, String unit, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-28s %8d %s in %7.2fs = %10.1f %s/sec", name, count, unit, seconds, 
+        count / seconds, unit));
+  }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+
+/**
+ * An in-process HBase mini-cluster for the benchmarks to write into. If hbase.zookeeper.quorum is already 
+ * set, that cluster is used instead and nothing is started.
+ * 
+ * Has to be started before anything touches PhoenixUtils, which reads the quorum when it's loaded.
+ */
+public class MiniCluster {
+
+  private HBaseTestingUtility util;
+
+  public static MiniCluster start() throws Exception {
+    return start(1);
+  }
+
+  public static MiniCluster start(int regionServers) throws Exception {
+    MiniCluster c = new MiniCluster();
+    if (System.getProperty("hbase.zookeeper.quorum") == null) {
+      c.util = new HBaseTestingUtility();
+      c.util.startMiniCluster(regionServers);
+      System.setProperty("hbase.zookeeper.quorum", "localhost:" + c.util.getZkCluster().getClientPort());
+    }
+    return c;
+  }
+
+  /**
+   * The mini-cluster's configuration, or null when running against another cluster
+   */
+  public Configuration getConfiguration() {
+    return util == null ? null : util.getConfiguration();
+  }
+
+  public void stop() throws Exception {
+    if (util != null) util.shutdownMiniCluster();
+  }
+}
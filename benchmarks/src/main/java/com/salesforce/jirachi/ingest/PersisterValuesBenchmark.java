@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.atlassian.jira.rest.client.api.domain.Comment;
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.salesforce.jirachi.ingest.JiraFetcher.JiraSet;
+
+/**
+ * The per-row cost of turning JRJC objects into bound UPSERT parameters in PhoenixJiraPersister: the 
+ * value helpers on their own, whole rows, and binding them to a statement (a no-op one, so only our 
+ * side of the work is measured).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersisterValuesBenchmark {
+
+  private JiraSet js;
+  private Issue issue;
+  private Comment comment;
+  private String[] issueColumns;
+  private PreparedStatement stmt;
+
+  @Setup
+  public void setup() throws Exception {
+    js = new SyntheticJira(42).commentsPerIssue(8).descriptionWords(400).jiraSet(0, 50);
+    issue = js.issues.values().iterator().next();
+    for (List<Comment> comments : js.comments.values()) {
+      if (!comments.isEmpty()) comment = comments.get(0);
+    }
+    issueColumns = PhoenixJiraPersister.issueColumns();
+    stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), 
+        new Class[] { PreparedStatement.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        });
+  }
+
+  @Benchmark
+  public Object getStringUser() {
+    return PhoenixJiraPersister.getString(issue.getReporter());
+  }
+
+  @Benchmark
+  public Object getStringNamed() {
+    return PhoenixJiraPersister.getString(issue.getPriority());
+  }
+
+  @Benchmark
+  public Object getStringText() {
+    return PhoenixJiraPersister.getString(comment.getBody());
+  }
+
+  @Benchmark
+  public Object getNullableDate() {
+    return PhoenixJiraPersister.getNullableDate(issue.getCreationDate());
+  }
+
+  @Benchmark
+  public Object getCount() {
+    return PhoenixJiraPersister.getCount(issue.getFixVersions());
+  }
+
+  @Benchmark
+  public Object upsertSql() {
+    return PhoenixUtils.upsertSql("JIRA_ISSUE", issueColumns);
+  }
+
+  /**
+   * Issue rows (with tags) for the whole 50-issue batch
+   */
+  @Benchmark
+  public void issueRows(Blackhole bh) {
+    for (Issue i : js.issues.values()) {
+      int numComments = js.comments.get(i.getKey()).size();
+      int numAttachments = js.attachments.get(i.getKey()).size();
+      bh.consume(PhoenixJiraPersister.withTags(PhoenixJiraPersister.issueValues(i, numComments, numAttachments), i.getSummary()));
+    }
+  }
+
+  /**
+   * Comment rows for the whole batch
+   */
+  @Benchmark
+  public void commentRows(Blackhole bh) {
+    for (Entry<String,List<Comment>> e : js.comments.entrySet()) {
+      for (Comment c : e.getValue()) {
+        bh.consume(PhoenixJiraPersister.commentValues(e.getKey(), c));
+      }
+    }
+  }
+
+  /**
+   * Issue rows for the batch, bound to a statement
+   */
+  @Benchmark
+  public void bindIssueRows() throws Exception {
+    for (Issue i : js.issues.values()) {
+      int numComments = js.comments.get(i.getKey()).size();
+      int numAttachments = js.attachments.get(i.getKey()).size();
+      PhoenixUtils.bind(stmt, PhoenixJiraPersister.withTags(PhoenixJiraPersister.issueValues(i, numComments, numAttachments), i.getSummary()));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Rows/sec writing JIRA_COMMENT rows the old way (a literal UPSERT string per row, on a fresh Statement, 
+ * auto-committed) versus the prepared, batched path in PhoenixJiraPersister.
+ * 
+ * Usage: PhoenixWriteBenchmark [rows]
+ */
+public class PhoenixWriteBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    MiniCluster cluster = MiniCluster.start();
+    try {
+      Connection conn = PhoenixUtils.getPhoenixConnection();
+      try {
+        PhoenixJiraPersister.createSchema(conn);
+        // warm up both paths
+        literalUpserts(conn, comments(0, 1000));
+        preparedUpserts(conn, comments(1000, 1000));
+
+        long start = System.nanoTime();
+        literalUpserts(conn, comments(10000, rows));
+        report("literal, per-row commit", rows, start);
+
+        start = System.nanoTime();
+        preparedUpserts(conn, comments(10000 + rows, rows));
+        report("prepared, batched commit", rows, start);
+      } finally {
+        PhoenixUtils.release(conn);
+      }
+    } finally {
+      PhoenixUtils.closeConnections();
+      cluster.stop();
+    }
+  }
+
+  private static void literalUpserts(Connection conn, List<Object[]> rows) throws Exception {
+    conn.setAutoCommit(true);
+    for (Object[] row : rows) {
+      Statement stmt = conn.createStatement();
+      try {
+        stmt.execute("UPSERT INTO JIRA_COMMENT (comment_id, issue_key, author, body, creationDate) VALUES (" + 
+            row[0] + ", '" + row[1] + "', '" + row[2] + "', '" + ((String)row[3]).replace("'", "''") + "', " + 
+            "TO_DATE('" + row[4] + "'))");
+      } finally {
+        stmt.close();
+      }
+    }
+  }
+
+  private static void preparedUpserts(Connection conn, List<Object[]> rows) throws Exception {
+    conn.setAutoCommit(false);
+    PhoenixJiraPersister.upsert(conn, "JIRA_COMMENT", PhoenixJiraPersister.COMMENT_COLUMNS, rows);
+  }
+
+  private static List<Object[]> comments(long firstId, int count) {
+    List<Object[]> rows = Lists.newArrayListWithCapacity(count);
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    for (long id = firstId; id < firstId + count; id++) {
+      rows.add(new Object[] { id, "HBASE-" + (id / 10), "Some Committer", 
+          "+1, but can't we also fix the 'other' case while we're in there? Comment " + id, now });
+    }
+    return rows;
+  }
+
+  private static void report(String name, int rows, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-28s %8d rows in %7.2fs = %10.0f rows/sec", name, rows, seconds, rows / seconds));
+  }
+}
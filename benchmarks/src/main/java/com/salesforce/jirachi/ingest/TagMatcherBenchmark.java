@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Summaries tagged per second, as the number of tags and terms grows: the single-pass TagMatcher versus 
+ * testing every term separately, which is what the old one-LIKE-scan-per-tag approach boils down to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagMatcherBenchmark {
+
+  private static final int SUMMARIES = 1000;
+
+  private static final String[] WORDS = { "region", "server", "split", "compaction", "flush", "memstore", 
+    "hfile", "wal", "replication", "snapshot", "master", "assignment", "balancer", "zookeeper", "test", 
+    "scanner", "filter", "coprocessor", "rpc", "client", "thrift", "rest", "shell", "metrics", "bulk", 
+    "load", "import", "export", "backup", "security", "acl", "token", "block", "cache", "bloom", "index" };
+
+  @Param({ "5", "20", "80" })
+  public int tags;
+
+  @Param({ "5", "25" })
+  public int termsPerTag;
+
+  private Map<String,List<String>> include;
+  private Map<String,List<String>> exclude;
+  private TagMatcher matcher;
+  private String[] summaries;
+
+  @Setup
+  public void setup() {
+    Random r = new Random(42);
+    include = Maps.newLinkedHashMap();
+    exclude = Maps.newLinkedHashMap();
+    for (int t = 0; t < tags; t++) {
+      List<String> terms = Lists.newArrayList();
+      for (int i = 0; i < termsPerTag; i++) {
+        // mostly plain terms, some two-word phrases, and some with wildcards
+        String term = word(r) + suffix(r);
+        if (i % 4 == 1) term = term + " " + word(r);
+        if (i % 7 == 3) term = term + "%" + word(r);
+        terms.add(term);
+      }
+      include.put("is" + t, terms);
+      exclude.put("is" + t, Lists.newArrayList(word(r) + "%" + word(r)));
+    }
+    matcher = new TagMatcher(include, exclude);
+    summaries = new String[SUMMARIES];
+    for (int s = 0; s < SUMMARIES; s++) {
+      StringBuilder b = new StringBuilder("HBASE-").append(s).append(":");
+      int words = 6 + r.nextInt(10);
+      for (int w = 0; w < words; w++) {
+        b.append(' ').append(w % 3 == 0 ? capitalize(word(r)) : word(r)).append(suffix(r));
+      }
+      summaries[s] = b.toString();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SUMMARIES)
+  public int singlePass() {
+    int tagged = 0;
+    for (String summary : summaries) {
+      for (boolean b : matcher.match(summary)) {
+        if (b) tagged++;
+      }
+    }
+    return tagged;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SUMMARIES)
+  public int termAtATime() {
+    int tagged = 0;
+    for (String summary : summaries) {
+      for (String tag : include.keySet()) {
+        boolean in = false;
+        for (String term : include.get(tag)) {
+          if (TagMatcher.like(summary.toLowerCase(), term.toLowerCase().toCharArray())) in = true;
+        }
+        if (!in) continue;
+        boolean out = false;
+        for (String term : exclude.get(tag)) {
+          if (TagMatcher.like(summary.toLowerCase(), term.toLowerCase().toCharArray())) out = true;
+        }
+        if (!out) tagged++;
+      }
+    }
+    return tagged;
+  }
+
+  private static String word(Random r) {
+    return WORDS[r.nextInt(WORDS.length)];
+  }
+
+  private static String suffix(Random r) {
+    switch (r.nextInt(4)) {
+      case 0: return "s";
+      case 1: return "ing";
+      default: return "";
+    }
+  }
+
+  private static String capitalize(String s) {
+    return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+  }
+}
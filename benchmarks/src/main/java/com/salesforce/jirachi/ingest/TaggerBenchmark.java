@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+
+/**
+ * Loading the real tag rules (include.json and exclude.json, from the working directory), and 
+ * matching them against synthetic summaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaggerBenchmark {
+
+  private static final int SUMMARIES = 500;
+
+  @Param({ "include.json" })
+  public String includeFile;
+
+  @Param({ "exclude.json" })
+  public String excludeFile;
+
+  private TagMatcher matcher;
+  private String[] summaries;
+
+  @Setup
+  public void setup() throws Exception {
+    matcher = new TagMatcher(JiraTagger.loadTags(includeFile), JiraTagger.loadTags(excludeFile));
+    summaries = new String[SUMMARIES];
+    int s = 0;
+    for (Issue i : new SyntheticJira(7).commentsPerIssue(0).attachmentsPerIssue(0).jiraSet(0, SUMMARIES).issues.values()) {
+      summaries[s++] = i.getSummary();
+    }
+  }
+
+  @Benchmark
+  public Map<String,List<String>> loadTags() {
+    JiraTagger.loadTags(excludeFile);
+    return JiraTagger.loadTags(includeFile);
+  }
+
+  @Benchmark
+  public TagMatcher compile() {
+    return new TagMatcher(JiraTagger.loadTags(includeFile), JiraTagger.loadTags(excludeFile));
+  }
+
+  /**
+   * Time per summary
+   */
+  @Benchmark
+  @OperationsPerInvocation(SUMMARIES)
+  public void match(Blackhole bh) {
+    for (String summary : summaries) {
+      bh.consume(matcher.match(summary));
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Write throughput of ParallelWriter with 1, 2, 4 and 8 writers, into the salted ("scan" layout) tables of 
+ * an in-process HBase mini-cluster with several region servers, so the writers have somewhere to spread to:
+ * 
+ *   java -Djirachi.phoenix.layout=scan -Djirachi.phoenix.saltBuckets=16 \
+ *       -cp benchmarks/target/benchmarks.jar com.salesforce.jirachi.ingest.WritersBenchmark 20000 4
+ * 
+ * The same rows are written at each writer count (after one untimed pass to warm up), so every pass 
+ * after the first is overwriting.
+ * 
+ * Usage: WritersBenchmark [issues] [region servers]
+ */
+public class WritersBenchmark {
+
+  private static final int BATCH = 50;
+  private static final int[] WRITERS = { 1, 2, 4, 8 };
+
+  public static void main(String[] args) throws Exception {
+    int issues = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int regionServers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    MiniCluster cluster = MiniCluster.start(regionServers);
+    try {
+      Connection conn = PhoenixUtils.getPhoenixConnection();
+      try {
+        PhoenixJiraPersister.ensureSchema(conn);
+      } finally {
+        PhoenixUtils.release(conn);
+      }
+      SyntheticJira jira = new SyntheticJira(42);
+      List<RowBatch> batches = Lists.newArrayList();
+      for (int first = 0; first < issues; first += BATCH) {
+        batches.add(PhoenixJiraPersister.rows(jira.jiraSet(first, Math.min(BATCH, issues - first))));
+      }
+      ParallelWriter warmup = new ParallelWriter(1);
+      write(warmup, batches);
+      warmup.shutdown();
+      for (int writers : WRITERS) {
+        ParallelWriter writer = new ParallelWriter(writers);
+        long start = System.nanoTime();
+        write(writer, batches);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        writer.shutdown();
+        System.out.println(String.format("%2d writers %8d issues in %7.2fs = %10.1f issues/sec", writers, issues, 
+            seconds, issues / seconds));
+      }
+    } finally {
+      PhoenixUtils.closeConnections();
+      cluster.stop();
+    }
+  }
+
+  private static void write(ParallelWriter writer, List<RowBatch> batches) throws Exception {
+    for (RowBatch rows : batches) {
+      writer.write(
+          new ParallelWriter.TableRows("JIRA_COMMENT", PhoenixJiraPersister.COMMENT_COLUMNS, rows.comments, 1),
+          new ParallelWriter.TableRows("JIRA_ATTACHMENT", PhoenixJiraPersister.attachmentColumns(), rows.attachments, 0),
+          new ParallelWriter.TableRows("JIRA_ISSUE", PhoenixJiraPersister.issueColumns(), rows.issues, 0));
+    }
+  }
+}
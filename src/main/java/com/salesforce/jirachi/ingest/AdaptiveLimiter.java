@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Caps the number of requests in flight to the JIRA server, adapting the cap to how the server copes 
+ * (additive increase, multiplicative decrease):
+ * 
+ * - each request that comes back in good time raises the limit by 1/limit, i.e. by about one per round 
+ *   of requests, up to maxLimit
+ * - a throttled request (429 or 503) halves the limit
+ * - a request that's much slower than usual (latencyTolerance times the fastest recent one of its kind) 
+ *   cuts the limit by 10%
+ * 
+ * Decreases happen at most once per round, so a burst of failures from requests that were all sent at 
+ * the old limit only counts once. A Retry-After from the server holds back every request until then.
+ */
+public class AdaptiveLimiter {
+
+  private static final double THROTTLE_BACKOFF = 0.5;
+  private static final double SLOW_BACKOFF = 0.9;
+  /**
+   * How fast the 'fastest recent' latency drifts up, per sample, so it can follow a server that's really 
+   * got slower
+   */
+  private static final double BASELINE_DRIFT = 1.01;
+
+  private final int maxLimit;
+  private final double latencyTolerance;
+  private final Map<String,Double> baselineNanos = Maps.newHashMap();
+  private double limit;
+  private int inFlight = 0;
+  private long pausedUntil = 0;
+  /**
+   * Requests started before this count (a sequence number) were sent at a limit we've already cut
+   */
+  private long startedSeq = 0;
+  private long decreasedAtSeq = -1;
+
+  public AdaptiveLimiter(int initialLimit, int maxLimit, double latencyTolerance) {
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(1, Math.min(initialLimit, maxLimit));
+    this.latencyTolerance = latencyTolerance;
+    ImportMetrics.set("rest.concurrencyLimit", (int) limit);
+  }
+
+  /**
+   * Wait for a slot. The returned ticket is handed back to one of the release() methods when the 
+   * request is done.
+   */
+  public synchronized long acquire() throws InterruptedException {
+    while (true) {
+      long pause = pausedUntil - System.currentTimeMillis();
+      if (pause > 0) {
+        wait(pause);
+      } else if (inFlight >= (int) limit) {
+        wait();
+      } else {
+        break;
+      }
+    }
+    inFlight++;
+    return startedSeq++;
+  }
+
+  /**
+   * The request succeeded, taking the given time
+   */
+  public synchronized void success(long ticket, String kind, long nanos) {
+    Double baseline = baselineNanos.get(kind);
+    baselineNanos.put(kind, baseline == null ? nanos : Math.min(nanos, baseline * BASELINE_DRIFT));
+    if (baseline != null && nanos > latencyTolerance * baseline) {
+      decrease(ticket, SLOW_BACKOFF);
+    } else if (limit < maxLimit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+      ImportMetrics.set("rest.concurrencyLimit", (int) limit);
+    }
+    done();
+  }
+
+  /**
+   * The server pushed back on the request; if it said when to come back, nothing is sent before then
+   */
+  public synchronized void throttled(long ticket, long retryAfterMillis) {
+    decrease(ticket, THROTTLE_BACKOFF);
+    if (retryAfterMillis > 0) {
+      pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfterMillis);
+    }
+    done();
+  }
+
+  /**
+   * The request failed for some other reason (which says nothing about the server's load)
+   */
+  public synchronized void failed(long ticket) {
+    done();
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  private void decrease(long ticket, double factor) {
+    if (ticket <= decreasedAtSeq) return;
+    limit = Math.max(1, limit * factor);
+    decreasedAtSeq = startedSeq - 1;
+    ImportMetrics.set("rest.concurrencyLimit", (int) limit);
+  }
+
+  private void done() {
+    inFlight--;
+    notifyAll();
+  }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A local, content-addressed copy of attachment contents: each file is stored once, under the SHA-1 of 
+ * its bytes (dir/ab/cd/abcd...), however many attachments have that content.
+ * 
+ * Downloads run on a fixed pool of jirachi.attachments.threads workers, and go straight from the socket 
+ * to a file through NIO channels, so a big patch or log never has to fit in memory. The store keeps an 
+ * index of which attachment URIs it already has (attachments don't change once uploaded), so they're 
+ * only downloaded once, across runs.
+ * 
+ * Only used when jirachi.attachments.dir is set. The local path and checksum go into the localPath and 
+ * checksum columns of JIRA_ATTACHMENT.
+ */
+public class AttachmentStore {
+
+  /**
+   * The JIRA_ATTACHMENT columns filled in by the store, after PhoenixJiraPersister.ATTACHMENT_COLUMNS
+   */
+  static final String[] COLUMNS = { "localPath", "checksum" };
+
+  private static final int CONTENT_URI = 2;
+  private static final String INDEX = "index";
+  private static final int TRANSFER_CHUNK = 1 << 20;
+  private static final int ATTEMPTS = 3;
+
+  private static String storeDir = System.getProperty("jirachi.attachments.dir");
+  private static int threads = Integer.getInteger("jirachi.attachments.threads", 4);
+  private static int timeoutMillis = Integer.getInteger("jirachi.fetch.timeoutMillis", 120000);
+  private static AttachmentStore store;
+
+  private final File dir;
+  private final ExecutorService downloaders;
+  /**
+   * Content URI -> checksum, for everything in the store
+   */
+  private final Map<String,String> index = Maps.newHashMap();
+
+  /**
+   * The store for this run, or null if attachment contents aren't being kept
+   */
+  static synchronized AttachmentStore get() throws IOException {
+    if (store == null && storeDir != null) store = new AttachmentStore(new File(storeDir), threads);
+    return store;
+  }
+
+  static boolean isEnabled() {
+    return storeDir != null;
+  }
+
+  AttachmentStore(File dir, int threads) throws IOException {
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+    // daemon threads, so an idle store doesn't keep the JVM up
+    this.downloaders = Executors.newFixedThreadPool(threads, 
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("attachment-%d").build());
+    loadIndex();
+  }
+
+  /**
+   * Download the content of each attachment row (if it isn't in the store already), and return the rows
+   * with the COLUMNS added on. An attachment that can't be downloaded gets nulls, rather than failing 
+   * the batch.
+   */
+  public List<Object[]> store(List<Object[]> rows) throws Exception {
+    List<Future<File>> stored = Lists.newArrayListWithCapacity(rows.size());
+    for (Object[] row : rows) {
+      final String uri = (String) row[CONTENT_URI];
+      stored.add(downloaders.submit(new Callable<File>() {
+        public File call() throws Exception {
+          return fetch(uri);
+        }
+      }));
+    }
+    List<Object[]> result = Lists.newArrayListWithCapacity(rows.size());
+    for (int r = 0; r < rows.size(); r++) {
+      Object[] row = Arrays.copyOf(rows.get(r), rows.get(r).length + COLUMNS.length);
+      File file = stored.get(r).get();
+      if (file != null) {
+        row[row.length - 2] = file.getPath();
+        row[row.length - 1] = file.getName();
+      }
+      result.add(row);
+    }
+    return result;
+  }
+
+  /**
+   * The stored file for this content URI, downloading it if need be
+   * 
+   * @return the file (named by its checksum), or null if it couldn't be downloaded
+   */
+  File fetch(String uri) throws InterruptedException {
+    String checksum = lookup(uri);
+    if (checksum != null) {
+      File file = path(checksum);
+      if (file.exists()) {
+        ImportMetrics.count("attachments.skipped", 1);
+        return file;
+      }
+    }
+    for (int attempt = 0; ; attempt++) {
+      try {
+        return download(uri);
+      } catch (IOException ex) {
+        // no point retrying a 404 or 403
+        if (ex instanceof FileNotFoundException || attempt + 1 >= ATTEMPTS) {
+          ImportMetrics.count("attachments.failed", 1);
+          System.out.println("Couldn't download " + uri + ": " + ex);
+          return null;
+        }
+        Thread.sleep(JiraRestReader.backoffMillis(attempt, 1000, 10000));
+      }
+    }
+  }
+
+  private File download(String uri) throws IOException {
+    long start = System.nanoTime();
+    HttpURLConnection conn = (HttpURLConnection) new URL(uri).openConnection();
+    conn.setConnectTimeout(timeoutMillis);
+    conn.setReadTimeout(timeoutMillis);
+    int status = conn.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      conn.disconnect();
+      if (!JiraRestReader.isRetryable(status)) throw new FileNotFoundException("HTTP " + status + " from " + uri);
+      throw new IOException("HTTP " + status + " from " + uri);
+    }
+    MessageDigest sha1 = sha1();
+    File tmp = File.createTempFile("download", ".tmp", dir);
+    long size = 0;
+    try {
+      InputStream in = conn.getInputStream();
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        ReadableByteChannel src = Channels.newChannel(new DigestInputStream(in, sha1));
+        FileChannel dest = out.getChannel();
+        long n;
+        while ((n = dest.transferFrom(src, size, TRANSFER_CHUNK)) > 0) {
+          size += n;
+        }
+      } finally {
+        out.close();
+        in.close();
+      }
+      String checksum = hex(sha1.digest());
+      File file = path(checksum);
+      if (file.exists()) {
+        ImportMetrics.count("attachments.duplicates", 1);
+      } else {
+        file.getParentFile().mkdirs();
+        if (!tmp.renameTo(file) && !file.exists()) throw new IOException("Can't move " + tmp + " to " + file);
+      }
+      remember(uri, checksum);
+      ImportMetrics.time("attachments.download", start);
+      ImportMetrics.count("attachments.bytes", size);
+      return file;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Where content with this checksum lives
+   */
+  File path(String checksum) {
+    return new File(new File(new File(dir, checksum.substring(0, 2)), checksum.substring(2, 4)), checksum);
+  }
+
+  private synchronized String lookup(String uri) {
+    return index.get(uri);
+  }
+
+  /**
+   * Add an entry to the index, and to the index file (one "checksum uri" line each)
+   */
+  private synchronized void remember(String uri, String checksum) throws IOException {
+    index.put(uri, checksum);
+    Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX), true), "UTF-8");
+    try {
+      w.write(checksum + " " + uri + "\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  private void loadIndex() throws IOException {
+    File file = new File(dir, INDEX);
+    if (!file.exists()) return;
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = r.readLine()) != null) {
+        int space = line.indexOf(' ');
+        if (space > 0) index.put(line.substring(space + 1), line.substring(0, space));
+      }
+    } finally {
+      r.close();
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    StringBuilder s = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.salesforce.phoenix.util.PhoenixRuntime;
+
+/**
+ * A sink for big initial imports, that skips the per-row UPSERT round trips altogether. Each batch is 
+ * encoded into KeyValues by Phoenix itself (upserted on a connection that never commits, then taken back 
+ * with PhoenixRuntime.getUncommittedData()), and the KeyValues are buffered until there are 
+ * jirachi.bulkload.bufferMB of them. Then they're sorted and written out as one HFile per table and column 
+ * family under jirachi.bulkload.dir, and on flush() the files are handed to the region servers with 
+ * LoadIncrementalHFiles, which only moves them into place. So the cost is mostly writing each byte to 
+ * disk once.
+ * 
+ * The directory can be on HDFS (an hdfs:// URI); on the local disk it only works if the region servers 
+ * can read it too. Files that a failed run wrote but didn't load are loaded by the next flush(). Each 
+ * batch is stamped with a later timestamp than the one before, so if an issue turns up twice the later 
+ * copy wins, as it would with UPSERTs.
+ * 
+ * With jirachi.fingerprints on, the fingerprints of the buffered rows are only remembered once flush() 
+ * has loaded them, so rows in files that failed to load aren't skipped as unchanged when they come again.
+ * 
+ * Meant for loading tables from scratch: in the scan layout the index rows are written for each issue, 
+ * but index rows for tags an issue no longer has aren't deleted.
+ */
+public class BulkLoadSink implements JiraSink {
+
+  private static String bulkLoadDir = System.getProperty("jirachi.bulkload.dir");
+  private static int bufferMB = Integer.getInteger("jirachi.bulkload.bufferMB", 256);
+
+  private static BulkLoadSink instance;
+
+  private final Configuration conf;
+  private final FileSystem fs;
+  private final Path dir;
+  private final long bufferBytes;
+  private final boolean fingerprints;
+  /**
+   * KeyValues waiting to be written, by table
+   */
+  private final Map<String,List<KeyValue>> buffered = Maps.newTreeMap();
+  private long bufferedBytes = 0;
+  /**
+   * The (changed) rows of every batch that's been buffered since the last successful flush(), if we're
+   * keeping fingerprints
+   */
+  private final List<RowBatch> unloaded = Lists.newArrayList();
+  private long lastTimestamp = 0;
+
+  public static boolean isEnabled() {
+    return bulkLoadDir != null;
+  }
+
+  /**
+   * The sink configured by the jirachi.bulkload properties
+   */
+  public static synchronized BulkLoadSink get() throws Exception {
+    if (instance == null) {
+      instance = new BulkLoadSink(hbaseConfiguration(PhoenixUtils.getZkQuorum()), new Path(bulkLoadDir), 
+          bufferMB * 1024L * 1024L);
+    }
+    return instance;
+  }
+
+  public BulkLoadSink(Configuration conf, Path dir, long bufferBytes) throws Exception {
+    this(conf, dir, bufferBytes, Fingerprints.isEnabled());
+  }
+
+  BulkLoadSink(Configuration conf, Path dir, long bufferBytes, boolean fingerprints) throws Exception {
+    this.conf = conf;
+    this.fs = dir.getFileSystem(conf);
+    this.dir = fs.makeQualified(dir);
+    this.bufferBytes = bufferBytes;
+    this.fingerprints = fingerprints;
+  }
+
+  public void persist(RowBatch rows) throws Exception {
+    if (fingerprints) rows = changed(rows);
+    buffer(encode(rows), rows);
+  }
+
+  /**
+   * Add a batch's KeyValues (by table) to what's waiting to be written, writing it all out if that's enough
+   */
+  synchronized void buffer(Map<String,List<KeyValue>> keyValues, RowBatch rows) throws Exception {
+    if (fingerprints) unloaded.add(rows);
+    for (Map.Entry<String,List<KeyValue>> table : keyValues.entrySet()) {
+      List<KeyValue> kvs = buffered.get(table.getKey());
+      if (kvs == null) {
+        kvs = Lists.newArrayList();
+        buffered.put(table.getKey(), kvs);
+      }
+      for (KeyValue kv : table.getValue()) {
+        kvs.add(kv);
+        bufferedBytes += kv.getLength();
+      }
+    }
+    if (bufferedBytes >= bufferBytes) writeFiles();
+  }
+
+  /**
+   * Write out whatever's buffered, and load every file in the directory into its table
+   */
+  public synchronized void flush() throws Exception {
+    writeFiles();
+    if (fs.exists(dir)) {
+      for (FileStatus table : fs.listStatus(dir)) {
+        if (table.isDir()) load(table.getPath());
+      }
+    }
+    // only now is everything that was buffered in HBase
+    for (RowBatch rows : unloaded) {
+      written(rows);
+    }
+    unloaded.clear();
+  }
+
+  /**
+   * Load the files under dir/{table} into the table
+   */
+  void load(Path tableDir) throws Exception {
+    long start = System.nanoTime();
+    HTable htable = new HTable(conf, tableDir.getName());
+    try {
+      new LoadIncrementalHFiles(conf).doBulkLoad(tableDir, htable);
+    } finally {
+      htable.close();
+    }
+    ImportMetrics.time("bulkload.load." + tableDir.getName(), start);
+    // the files were moved into HBase, unless they had to be copied from another file system
+    fs.delete(tableDir, true);
+  }
+
+  /**
+   * The batch's rows are loaded
+   */
+  void written(RowBatch rows) {
+    Fingerprints.written(rows);
+  }
+
+  public boolean isBuffered() {
+    return true;
+  }
+
+  /**
+   * The rows in the batch that have changed since they were last written (see Fingerprints)
+   */
+  private static RowBatch changed(RowBatch rows) throws Exception {
+    Connection pooled = PhoenixUtils.getPhoenixConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(pooled);
+      return Fingerprints.changed(pooled, rows);
+    } finally {
+      PhoenixUtils.release(pooled);
+    }
+  }
+
+  /**
+   * The KeyValues Phoenix would write for the rows, by table
+   */
+  Map<String,List<KeyValue>> encode(RowBatch rows) throws Exception {
+    List<Object[]> comments;
+    List<Object[]> issues;
+    Connection pooled = PhoenixUtils.getPhoenixConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(pooled);
+      // new dictionary codes have to be in JIRA_DICTIONARY for real, not bulk loaded later
+      comments = Dictionary.encode(pooled, "JIRA_COMMENT", PhoenixJiraPersister.COMMENT_COLUMNS, rows.comments);
+      issues = Dictionary.encode(pooled, "JIRA_ISSUE", PhoenixJiraPersister.issueColumns(), rows.issues);
+    } finally {
+      PhoenixUtils.release(pooled);
+    }
+    long start = System.nanoTime();
+    Map<String,List<KeyValue>> keyValues = Maps.newHashMap();
+    Connection conn = PhoenixUtils.getConnectionAt(nextTimestamp());
+    try {
+      conn.setAutoCommit(false);
+      stage(conn, "JIRA_COMMENT", 
+          Fingerprints.columns(Dictionary.columns("JIRA_COMMENT", PhoenixJiraPersister.COMMENT_COLUMNS)), comments);
+      stage(conn, "JIRA_ATTACHMENT", Fingerprints.columns(PhoenixJiraPersister.attachmentColumns()), rows.attachments);
+      stage(conn, "JIRA_ISSUE", 
+          Fingerprints.columns(Dictionary.columns("JIRA_ISSUE", PhoenixJiraPersister.issueColumns())), issues);
+      if (PhoenixJiraPersister.isScanLayout()) {
+        stage(conn, IssueIndexes.BY_KEY, IssueIndexes.BY_KEY_COLUMNS, IssueIndexes.keyRows(rows.issues));
+        stage(conn, IssueIndexes.BY_CREATED, IssueIndexes.BY_CREATED_COLUMNS, IssueIndexes.createdRows(rows.issues));
+        stage(conn, IssueIndexes.BY_TAG, IssueIndexes.BY_TAG_COLUMNS, IssueIndexes.tagRows(rows.issues));
+      }
+      Iterator<Pair<byte[],List<KeyValue>>> uncommitted = PhoenixRuntime.getUncommittedData(conn);
+      while (uncommitted.hasNext()) {
+        Pair<byte[],List<KeyValue>> table = uncommitted.next();
+        String name = Bytes.toString(table.getFirst());
+        List<KeyValue> kvs = keyValues.get(name);
+        if (kvs == null) {
+          kvs = Lists.newArrayList();
+          keyValues.put(name, kvs);
+        }
+        kvs.addAll(table.getSecond());
+      }
+      conn.rollback();
+    } finally {
+      conn.close();
+    }
+    ImportMetrics.time("bulkload.encode", start);
+    return keyValues;
+  }
+
+  /**
+   * UPSERT the rows without committing them
+   */
+  private static void stage(Connection conn, String table, String[] columns, List<Object[]> rows) throws Exception {
+    if (rows.isEmpty()) return;
+    PreparedStatement stmt = conn.prepareStatement(PhoenixUtils.upsertSql(table, columns));
+    try {
+      for (Object[] row : rows) {
+        PhoenixUtils.bind(stmt, row);
+        stmt.execute();
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Later than the last batch's, and no earlier than now
+   */
+  private synchronized long nextTimestamp() {
+    lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+    return lastTimestamp;
+  }
+
+  /**
+   * Sort what's buffered and write it out, as dir/{table}/{family}/{file}
+   */
+  synchronized void writeFiles() throws Exception {
+    for (Map.Entry<String,List<KeyValue>> table : buffered.entrySet()) {
+      long start = System.nanoTime();
+      for (Map.Entry<String,List<KeyValue>> family : byFamily(table.getValue()).entrySet()) {
+        List<KeyValue> kvs = family.getValue();
+        Collections.sort(kvs, KeyValue.COMPARATOR);
+        writeFile(new Path(new Path(dir, table.getKey()), family.getKey()), kvs);
+      }
+      ImportMetrics.time("bulkload.write." + table.getKey(), start);
+    }
+    buffered.clear();
+    bufferedBytes = 0;
+  }
+
+  private static Map<String,List<KeyValue>> byFamily(List<KeyValue> kvs) {
+    Map<String,List<KeyValue>> families = Maps.newTreeMap();
+    for (KeyValue kv : kvs) {
+      String family = Bytes.toString(kv.getFamily());
+      List<KeyValue> list = families.get(family);
+      if (list == null) {
+        list = Lists.newArrayList();
+        families.put(family, list);
+      }
+      list.add(kv);
+    }
+    return families;
+  }
+
+  /**
+   * Write sorted KeyValues as an HFile in the directory, with the metadata HFileOutputFormat would give it
+   */
+  private void writeFile(Path familyDir, List<KeyValue> kvs) throws Exception {
+    Configuration noCache = new Configuration(conf);
+    noCache.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+    StoreFile.Writer writer = new StoreFile.WriterBuilder(noCache, new CacheConfig(noCache), fs, 
+        HFile.DEFAULT_BLOCKSIZE)
+        .withOutputDir(familyDir)
+        .withComparator(KeyValue.COMPARATOR)
+        .withBloomType(StoreFile.BloomType.NONE)
+        .build();
+    try {
+      for (KeyValue kv : kvs) {
+        writer.append(kv);
+      }
+      writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+      writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+      writer.appendTrackedTimestampsToMetadata();
+    } finally {
+      writer.close();
+    }
+    ImportMetrics.count("bulkload.bytes", fs.getFileStatus(writer.getPath()).getLen());
+  }
+
+  /**
+   * An HBase configuration for the quorum as Phoenix takes it ("host1,host2[:port]")
+   */
+  static Configuration hbaseConfiguration(String zkQuorum) {
+    Configuration conf = HBaseConfiguration.create();
+    if (zkQuorum != null) {
+      int colon = zkQuorum.lastIndexOf(':');
+      if (colon < 0) {
+        conf.set(HConstants.ZOOKEEPER_QUORUM, zkQuorum);
+      } else {
+        conf.set(HConstants.ZOOKEEPER_QUORUM, zkQuorum.substring(0, colon));
+        conf.set(HConstants.ZOOKEEPER_CLIENT_PORT, zkQuorum.substring(colon + 1));
+      }
+    }
+    return conf;
+  }
+}
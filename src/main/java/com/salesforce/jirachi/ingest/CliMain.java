@@ -33,12 +33,33 @@ import java.io.IOException;
 
 /**
  * Runs the jirachi import process
+ * 
+ * Issues are tagged as they're persisted. Before the import, any tag whose rules in include.json or 
+ * exclude.json have changed since the last run is re-applied to what's already in the table (see 
+ * JiraTagger.syncRules()). Set jirachi.retag=true to re-apply all the tags to everything.
+ * 
+ * Progress is visible over JMX while it runs (see ImportMetrics), and a json summary of the run is written 
+ * to jirachi.metrics.file at the end.
  */
 public class CliMain {
   public static void main(String[] args) throws Exception {
     setProperties();
-    JiraFetcher.fetchAndPersist();
-    JiraTagger.addTags();
+    ImportMetrics.start();
+    try {
+      JiraTagger.syncRules();
+      JiraFetcher.fetchAndPersist();
+      if (Boolean.getBoolean("jirachi.retag")) {
+        long start = System.nanoTime();
+        JiraTagger.addTags();
+        ImportMetrics.time("tagger.retag", start);
+      }
+    } finally {
+      try {
+        ImportMetrics.finish(); // even for a failed run, it may say why
+      } finally {
+        PhoenixUtils.closeConnections();
+      }
+    }
   }
 
   /*
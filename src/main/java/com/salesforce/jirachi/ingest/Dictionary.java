@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Dictionary encoding for the low-cardinality columns: people (assignee, reporter, comment author), 
+ * issueType, priority, resolution and status. There are a few hundred distinct values at most, repeated on
+ * every row.
+ * 
+ * In memory, the values are always interned (intern()), so a batch holds one copy of "Major" rather than
+ * one per issue.
+ * 
+ * With jirachi.phoenix.dictionary=true they're also stored that way: each distinct value gets an integer 
+ * code in JIRA_DICTIONARY (dimension, name, code), and the rows get the code in an integer column 
+ * ({column}Code) instead of the string. Codes are handed out by this process, and looked up once per run 
+ * (the whole dictionary is read at startup). Phoenix can't join, so a query that wants the strings back 
+ * reads them from JIRA_DICTIONARY, e.g.
+ * 
+ *   SELECT code, name FROM JIRA_DICTIONARY WHERE dimension = 'status'
+ * 
+ * Turn it on for a fresh load: rows written before keep their strings, and nothing decodes those.
+ */
+public class Dictionary {
+
+  /**
+   * The dimension each encoded column's values come from
+   */
+  static final Map<String,String> DIMENSIONS = ImmutableMap.<String,String>builder()
+      .put("assignee", "person")
+      .put("reporter", "person")
+      .put("author", "person")
+      .put("issueType", "issueType")
+      .put("priority", "priority")
+      .put("resolution", "resolution")
+      .put("status", "status")
+      .build();
+
+  static final String[] ISSUE_ENCODED = { "assignee", "reporter", "issueType", "priority", "resolution", "status" };
+  static final String[] COMMENT_ENCODED = { "author" };
+
+  private static boolean enabled = Boolean.getBoolean("jirachi.phoenix.dictionary");
+  private static final ConcurrentMap<String,String> interned = new ConcurrentHashMap<String,String>();
+
+  /**
+   * dimension -> value -> code, and back
+   */
+  private static Map<String,Map<String,Integer>> codes;
+  private static Map<String,Map<Integer,String>> values;
+  /**
+   * Columns whose string has to be written as well as the code (they're NOT NULL)
+   */
+  private static final Map<String,Boolean> keepString = Maps.newHashMap();
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The one copy of this value, for the encoded columns
+   */
+  static String intern(String value) {
+    if (value == null) return null;
+    String prior = interned.putIfAbsent(value, value);
+    return prior == null ? value : prior;
+  }
+
+  static String codeColumn(String column) {
+    return column + "Code";
+  }
+
+  /**
+   * The column to select to read this column back (see read())
+   */
+  static String select(String column) {
+    return enabled && DIMENSIONS.containsKey(column) ? codeColumn(column) : column;
+  }
+
+  /**
+   * Read a column selected with select(): the string, for an encoded column
+   */
+  static Object read(ResultSet rs, int index, String column) throws Exception {
+    if (!enabled || !DIMENSIONS.containsKey(column)) return rs.getObject(index);
+    int code = rs.getInt(index);
+    if (rs.wasNull()) return null;
+    return decode(column, code);
+  }
+
+  static synchronized String decode(String column, int code) {
+    if (values == null) throw new IllegalStateException("The dictionary hasn't been read in yet");
+    Map<Integer,String> dimension = values.get(DIMENSIONS.get(column));
+    return dimension == null ? null : dimension.get(code);
+  }
+
+  /**
+   * Create the dictionary and the code columns, and read the dictionary in
+   */
+  static synchronized void createSchema(Connection conn) throws Exception {
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE JIRA_DICTIONARY (" +
+        "dimension varchar NOT NULL, " +
+        "name varchar NOT NULL, " + // not "value", which newer Phoenix reserves
+        "code integer NOT NULL " +
+        "CONSTRAINT pk primary key (dimension, name))");
+    addColumns(conn, "JIRA_ISSUE", ISSUE_ENCODED);
+    addColumns(conn, "JIRA_COMMENT", COMMENT_ENCODED);
+
+    codes = Maps.newHashMap();
+    values = Maps.newHashMap();
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery("SELECT dimension, name, code FROM JIRA_DICTIONARY");
+      while (rs.next()) {
+        remember(rs.getString(1), intern(rs.getString(2)), rs.getInt(3));
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Add the code columns for these encoded columns to a table. Where the string column is NOT NULL (the
+   * comment author, in tables created before this) the string is still written too.
+   */
+  static synchronized void addColumns(Connection conn, String table, String[] encoded) throws Exception {
+    for (String column : encoded) {
+      PhoenixUtils.addColumnIfMissing(conn, table, codeColumn(column), "integer");
+      ResultSet rs = conn.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+      try {
+        keepString.put(table + "." + column, rs.next() && rs.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls);
+      } finally {
+        rs.close();
+      }
+    }
+  }
+
+  private static void remember(String dimension, String value, int code) {
+    Map<String,Integer> byValue = codes.get(dimension);
+    if (byValue == null) {
+      byValue = Maps.newHashMap();
+      codes.put(dimension, byValue);
+      values.put(dimension, Maps.<Integer,String>newHashMap());
+    }
+    byValue.put(value, code);
+    values.get(dimension).put(code, value);
+  }
+
+  /**
+   * The columns to write for these rows: the code columns instead of (or as well as) the encoded ones
+   */
+  static String[] columns(String table, String[] columns) {
+    if (!enabled) return columns;
+    List<String> result = Lists.newArrayList();
+    for (String column : columns) {
+      if (!DIMENSIONS.containsKey(column)) {
+        result.add(column);
+      } else {
+        if (Boolean.TRUE.equals(keepString.get(table + "." + column))) result.add(column);
+        result.add(codeColumn(column));
+      }
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * The rows to write, in columns() order, with the codes for the encoded values. New values are given 
+   * codes, and written (and committed) to JIRA_DICTIONARY first, so call it before anything else is 
+   * pending on the connection.
+   */
+  static synchronized List<Object[]> encode(Connection conn, String table, String[] columns, List<Object[]> rows) 
+      throws Exception {
+    if (!enabled) return rows;
+    int width = columns(table, columns).length;
+    List<Object[]> added = Lists.newArrayList();
+    List<Object[]> encoded = Lists.newArrayListWithCapacity(rows.size());
+    for (Object[] row : rows) {
+      Object[] out = new Object[width + row.length - columns.length]; // anything past the columns goes along as is
+      int o = 0;
+      for (int i = 0; i < row.length; i++) {
+        String dimension = i < columns.length ? DIMENSIONS.get(columns[i]) : null;
+        if (dimension == null) {
+          out[o++] = row[i];
+          continue;
+        }
+        if (Boolean.TRUE.equals(keepString.get(table + "." + columns[i]))) out[o++] = row[i];
+        out[o++] = row[i] == null ? null : code(dimension, (String)row[i], added);
+      }
+      encoded.add(out);
+    }
+    if (!added.isEmpty()) {
+      PhoenixJiraPersister.upsert(conn, "JIRA_DICTIONARY", new String[] { "dimension", "name", "code" }, added);
+      ImportMetrics.count("dictionary.added", added.size());
+    }
+    return encoded;
+  }
+
+  private static Integer code(String dimension, String value, List<Object[]> added) {
+    Map<String,Integer> byValue = codes.get(dimension);
+    Integer code = byValue == null ? null : byValue.get(value);
+    if (code == null) {
+      code = byValue == null ? 1 : byValue.size() + 1;
+      remember(dimension, intern(value), code);
+      added.add(new Object[] { dimension, value, code });
+    }
+    return code;
+  }
+}
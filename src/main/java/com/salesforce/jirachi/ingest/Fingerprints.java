@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Skips rows that haven't changed since they were last written. Each row gets a 64 bit hash of its values,
+ * stored in a fingerprint column of its table, and the fingerprints of everything in the tables are read 
+ * into memory (a key -> fingerprint hash table, 16 bytes or so a row) the first time a table is written in 
+ * a run. Rows whose fingerprint is the same as the stored one aren't written at all, so re-running a big 
+ * query where little has changed writes next to nothing.
+ * 
+ * Turned on with jirachi.fingerprints=true. The counts of rows written and skipped, per table, are in
+ * ImportMetrics (rows.written.TABLE and rows.unchanged.TABLE) and printed at the end of the run.
+ */
+public class Fingerprints {
+
+  static final String COLUMN = "fingerprint";
+
+  private static boolean enabled = Boolean.getBoolean("jirachi.fingerprints");
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private static LongMap issues;
+  private static LongMap comments;
+  private static LongMap attachments;
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The columns, plus the fingerprint if it's in use
+   */
+  static String[] columns(String[] columns) {
+    if (!enabled) return columns;
+    String[] withFingerprint = Arrays.copyOf(columns, columns.length + 1);
+    withFingerprint[columns.length] = COLUMN;
+    return withFingerprint;
+  }
+
+  static void addColumns(Connection conn) throws Exception {
+    for (String table : new String[] { "JIRA_ISSUE", "JIRA_COMMENT", "JIRA_ATTACHMENT" }) {
+      addColumn(conn, table);
+    }
+  }
+
+  /**
+   * Add the fingerprint column to one of those tables, or a copy of it
+   */
+  static void addColumn(Connection conn, String table) throws Exception {
+    PhoenixUtils.addColumnIfMissing(conn, table, COLUMN, "bigint");
+  }
+
+  /**
+   * The rows in the batch that are new or have changed, each with its fingerprint added on the end. An 
+   * issue with a changed comment or attachment is always kept, so whatever's keyed by issue can find it.
+   */
+  static synchronized RowBatch changed(Connection conn, RowBatch rows) throws Exception {
+    if (issues == null) {
+      issues = load(conn, "SELECT id, fingerprint FROM JIRA_ISSUE");
+      comments = load(conn, "SELECT comment_id, fingerprint FROM JIRA_COMMENT");
+      attachments = load(conn, "SELECT issue_key, filename, fingerprint FROM JIRA_ATTACHMENT");
+    }
+    Set<Object> touched = Sets.newHashSet();
+    List<Object[]> changedComments = changed("JIRA_COMMENT", rows.comments, comments, 1, touched);
+    List<Object[]> changedAttachments = changed("JIRA_ATTACHMENT", rows.attachments, attachments, 2, touched);
+    List<Object[]> changedIssues = Lists.newArrayList();
+    int unchanged = 0;
+    for (Object[] row : rows.issues) {
+      long fingerprint = fingerprint(row);
+      if (issues.get(key(row, 1)) == fingerprint && !touched.contains(row[1])) {
+        unchanged++;
+      } else {
+        changedIssues.add(withFingerprint(row, fingerprint));
+      }
+    }
+    count("JIRA_ISSUE", changedIssues.size(), unchanged);
+    return new RowBatch(changedIssues, changedComments, changedAttachments, rows.maxUpdated);
+  }
+
+  /**
+   * The changed rows, noting their issue keys (column 1 for comments, 0 for attachments) in 'touched'
+   */
+  private static List<Object[]> changed(String table, List<Object[]> rows, LongMap stored, int keyColumns, 
+      Set<Object> touched) {
+    List<Object[]> changed = Lists.newArrayList();
+    int unchanged = 0;
+    for (Object[] row : rows) {
+      long fingerprint = fingerprint(row);
+      if (stored.get(key(row, keyColumns)) == fingerprint) {
+        unchanged++;
+      } else {
+        changed.add(withFingerprint(row, fingerprint));
+        touched.add(row[keyColumns == 1 ? 1 : 0]);
+      }
+    }
+    count(table, changed.size(), unchanged);
+    return changed;
+  }
+
+  /**
+   * Remember the fingerprints of rows from changed() once they're written
+   */
+  static synchronized void written(RowBatch rows) {
+    remember(issues, rows.issues, 1);
+    remember(comments, rows.comments, 1);
+    remember(attachments, rows.attachments, 2);
+  }
+
+  private static void remember(LongMap stored, List<Object[]> rows, int keyColumns) {
+    for (Object[] row : rows) {
+      stored.put(key(row, keyColumns), (Long)row[row.length - 1]);
+    }
+  }
+
+  private static void count(String table, int written, int unchanged) {
+    ImportMetrics.count("rows.written." + table, written);
+    ImportMetrics.count("rows.unchanged." + table, unchanged);
+  }
+
+  /**
+   * "Wrote 12 issues, 30 comments, 2 attachments; 988 issues, 7011 comments, 230 attachments unchanged"
+   */
+  static String summary() {
+    return "Wrote " + ImportMetrics.get("rows.written.JIRA_ISSUE") + " issues, " + 
+        ImportMetrics.get("rows.written.JIRA_COMMENT") + " comments, " + 
+        ImportMetrics.get("rows.written.JIRA_ATTACHMENT") + " attachments; " + 
+        ImportMetrics.get("rows.unchanged.JIRA_ISSUE") + " issues, " + 
+        ImportMetrics.get("rows.unchanged.JIRA_COMMENT") + " comments, " + 
+        ImportMetrics.get("rows.unchanged.JIRA_ATTACHMENT") + " attachments unchanged";
+  }
+
+  /**
+   * Read the stored fingerprints: the query selects the key columns, then the fingerprint
+   */
+  private static LongMap load(Connection conn, String SQL) throws Exception {
+    long start = System.nanoTime();
+    LongMap map = new LongMap(1024);
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery(SQL);
+      int keyColumns = rs.getMetaData().getColumnCount() - 1;
+      Object[] key = new Object[keyColumns];
+      while (rs.next()) {
+        long fingerprint = rs.getLong(keyColumns + 1);
+        if (rs.wasNull()) continue;
+        for (int i = 0; i < keyColumns; i++) {
+          key[i] = rs.getObject(i + 1);
+        }
+        map.put(key(key, keyColumns), fingerprint);
+      }
+    } finally {
+      stmt.close();
+    }
+    ImportMetrics.time("fingerprints.load", start);
+    return map;
+  }
+
+  /**
+   * A row's key: the id itself, or a hash of a multi-column key
+   */
+  static long key(Object[] row, int keyColumns) {
+    if (keyColumns == 1) return ((Number)row[0]).longValue();
+    return hash(row, keyColumns);
+  }
+
+  static long fingerprint(Object[] row) {
+    return hash(row, row.length);
+  }
+
+  private static long hash(Object[] values, int count) {
+    Hasher h = HASH.newHasher();
+    for (int i = 0; i < count; i++) {
+      Object v = values[i];
+      if (v == null) {
+        h.putByte((byte)0);
+      } else if (v instanceof String) {
+        h.putByte((byte)1).putString((String)v, Charsets.UTF_8).putInt(((String)v).length());
+      } else if (v instanceof Timestamp) {
+        h.putByte((byte)2).putLong(((Timestamp)v).getTime());
+      } else if (v instanceof Number) {
+        h.putByte((byte)3).putLong(((Number)v).longValue());
+      } else if (v instanceof Boolean) {
+        h.putByte((byte)4).putBoolean((Boolean)v);
+      } else {
+        h.putByte((byte)5).putString(v.toString(), Charsets.UTF_8);
+      }
+    }
+    return h.hash().asLong();
+  }
+
+  private static Object[] withFingerprint(Object[] row, long fingerprint) {
+    Object[] widened = Arrays.copyOf(row, row.length + 1);
+    widened[row.length] = fingerprint;
+    return widened;
+  }
+
+  /**
+   * Open addressing long -> long hash table, so a million rows' fingerprints aren't a million pairs of
+   * boxed Longs. get() of a missing key is 0 (which a real fingerprint is, once in 2^64 times).
+   */
+  static class LongMap {
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+
+    LongMap(int capacity) {
+      keys = new long[capacity];
+      values = new long[capacity];
+      used = new boolean[capacity];
+    }
+
+    long get(long key) {
+      int i = slot(key, keys, used);
+      return used[i] ? values[i] : 0;
+    }
+
+    void put(long key, long value) {
+      if ((size + 1) * 4 > keys.length * 3) grow();
+      int i = slot(key, keys, used);
+      if (!used[i]) {
+        used[i] = true;
+        keys[i] = key;
+        size++;
+      }
+      values[i] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      long[] oldValues = values;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length * 2];
+      values = new long[oldKeys.length * 2];
+      used = new boolean[oldKeys.length * 2];
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (!oldUsed[j]) continue;
+        int i = slot(oldKeys[j], keys, used);
+        used[i] = true;
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+
+    /**
+     * The slot holding the key, or the empty one where it would go (linear probing)
+     */
+    private static int slot(long key, long[] keys, boolean[] used) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      int i = (int)((h ^ (h >>> 32)) & (keys.length - 1));
+      while (used[i] && keys[i] != key) {
+        i = (i + 1) & (keys.length - 1);
+      }
+      return i;
+    }
+  }
+}
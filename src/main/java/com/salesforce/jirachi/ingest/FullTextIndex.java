@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+/**
+ * An inverted index over issue summaries, descriptions and comment bodies, kept in Phoenix, so questions 
+ * like "which issues mention 'region server' in a comment" are a few range scans instead of a LIKE over 
+ * every row.
+ * 
+ * Text is split into terms: lower-cased runs of letters and digits. Each document (an issue's summary or 
+ * description, or one comment) gets a row in JIRA_TERM for each distinct term in it, keyed by (term, 
+ * issue_key, doc), with the term's positions in the document so phrases can be checked. JIRA_TERM_DOC
+ * remembers what each document looked like when it was indexed (a hash, and its terms), so a document 
+ * that hasn't changed is skipped, and the postings for terms a document has lost are deleted. 
+ * JIRA_TERM_DICT is the list of distinct terms, for lookups by substring.
+ * 
+ * With jirachi.fulltext=true the persister indexes every batch as it's written. To index what's already in
+ * the tables (or after a bulk load, which doesn't), run this class's main().
+ */
+public class FullTextIndex {
+
+  public enum Field {
+    SUMMARY("S"), DESCRIPTION("D"), COMMENT("C");
+
+    /**
+     * The start of the doc column for this field (comments are "C{comment_id}")
+     */
+    final String doc;
+
+    Field(String doc) {
+      this.doc = doc;
+    }
+  }
+
+  /**
+   * A document to index
+   */
+  static class Doc {
+    final String issueKey;
+    final long id;
+    final String doc;
+    final String text;
+
+    Doc(String issueKey, long id, String doc, String text) {
+      this.issueKey = issueKey;
+      this.id = id;
+      this.doc = doc;
+      this.text = text == null ? "" : text;
+    }
+  }
+
+  /**
+   * A term's occurrences in one document
+   */
+  static class Posting {
+    final String issueKey;
+    final String doc;
+    final long id;
+    final int[] positions;
+
+    Posting(String issueKey, String doc, long id, int[] positions) {
+      this.issueKey = issueKey;
+      this.doc = doc;
+      this.id = id;
+      this.positions = positions;
+    }
+  }
+
+  private static boolean enabled = Boolean.getBoolean("jirachi.fulltext");
+  private static final int MAX_TERM_LENGTH = 64;
+  private static final String[] TERM_COLUMNS = { "term", "issue_key", "doc", "positions", "id" };
+  private static final String[] DOC_COLUMNS = { "issue_key", "doc", "hash", "terms" };
+  private static final String[] DICT_COLUMNS = { "term" };
+  private static boolean tablesCreated = false;
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  static synchronized void createTables(Connection conn) throws Exception {
+    if (tablesCreated) return;
+    String options = PhoenixJiraPersister.tableOptions(PhoenixJiraPersister.isScanLayout());
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE JIRA_TERM (" +
+        "term varchar NOT NULL, " +
+        "issue_key varchar(11) NOT NULL, " +
+        "doc varchar NOT NULL, " +
+        "positions varchar NULL, " +
+        "id bigint NULL " +
+        "CONSTRAINT pk primary key (term, issue_key, doc))" + options);
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE JIRA_TERM_DOC (" +
+        "issue_key varchar(11) NOT NULL, " +
+        "doc varchar NOT NULL, " +
+        "hash varchar NULL, " +
+        "terms varchar NULL " +
+        "CONSTRAINT pk primary key (issue_key, doc))" + options);
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE JIRA_TERM_DICT (" +
+        "term varchar NOT NULL " +
+        "CONSTRAINT pk primary key (term))" + options);
+    tablesCreated = true;
+  }
+
+  /**
+   * Index the summaries, descriptions and comments in a batch of rows (in PhoenixJiraPersister column order)
+   */
+  static void update(Connection conn, RowBatch rows) throws Exception {
+    List<Doc> docs = Lists.newArrayList();
+    Map<String,Long> ids = Maps.newHashMap();
+    for (Object[] issue : rows.issues) {
+      String key = (String)issue[1];
+      ids.put(key, (Long)issue[0]);
+      docs.add(new Doc(key, (Long)issue[0], Field.SUMMARY.doc, (String)issue[2]));
+      docs.add(new Doc(key, (Long)issue[0], Field.DESCRIPTION.doc, (String)issue[3]));
+    }
+    for (Object[] comment : rows.comments) {
+      Long id = ids.get(comment[1]);
+      if (id == null) continue; // comments always come with their issue
+      docs.add(new Doc((String)comment[1], id, Field.COMMENT.doc + comment[0], (String)comment[3]));
+    }
+    update(conn, docs);
+  }
+
+  /**
+   * Index the documents, skipping the ones that haven't changed since they were last indexed
+   */
+  static void update(Connection conn, List<Doc> docs) throws Exception {
+    if (docs.isEmpty()) return;
+    long start = System.nanoTime();
+    createTables(conn);
+    Map<List<String>,String[]> before = indexed(conn, docs);
+
+    List<Object[]> postings = Lists.newArrayList();
+    List<Object[]> docRows = Lists.newArrayList();
+    List<Object[]> stale = Lists.newArrayList();
+    Set<String> terms = Sets.newHashSet();
+    int skipped = 0;
+    for (Doc doc : docs) {
+      String hash = Hashing.md5().hashString(doc.text, Charsets.UTF_8).toString();
+      String[] old = before.get(Lists.newArrayList(doc.issueKey, doc.doc));
+      if (old == null ? doc.text.length() == 0 : hash.equals(old[0])) {
+        skipped++;
+        continue;
+      }
+      Map<String,String> positions = positions(tokens(doc.text));
+      for (Map.Entry<String,String> term : positions.entrySet()) {
+        postings.add(new Object[] { term.getKey(), doc.issueKey, doc.doc, term.getValue(), doc.id });
+      }
+      terms.addAll(positions.keySet());
+      docRows.add(new Object[] { doc.issueKey, doc.doc, hash, Joiner.on(' ').join(positions.keySet()) });
+      if (old != null && old[1] != null) {
+        for (String term : old[1].split(" ")) {
+          if (!positions.containsKey(term)) stale.add(new Object[] { term, doc.issueKey, doc.doc });
+        }
+      }
+    }
+    List<Object[]> dictRows = Lists.newArrayListWithCapacity(terms.size());
+    for (String term : terms) {
+      dictRows.add(new Object[] { term });
+    }
+    PhoenixJiraPersister.upsert(conn, "JIRA_TERM", TERM_COLUMNS, postings);
+    PhoenixJiraPersister.upsert(conn, "JIRA_TERM_DICT", DICT_COLUMNS, dictRows);
+    if (!stale.isEmpty()) {
+      PreparedStatement delete = PhoenixUtils.prepare(conn, 
+          "DELETE FROM JIRA_TERM WHERE term = ? AND issue_key = ? AND doc = ?");
+      for (Object[] key : stale) {
+        PhoenixUtils.bind(delete, key);
+        delete.execute();
+      }
+      conn.commit();
+    }
+    // last, so a failure part way means the documents get indexed again next time
+    PhoenixJiraPersister.upsert(conn, "JIRA_TERM_DOC", DOC_COLUMNS, docRows);
+    ImportMetrics.count("fulltext.docs.indexed", docRows.size());
+    ImportMetrics.count("fulltext.docs.unchanged", skipped);
+    ImportMetrics.count("fulltext.postings.deleted", stale.size());
+    ImportMetrics.time("fulltext.update", start);
+  }
+
+  /**
+   * The hash and terms each of these documents was last indexed with, by (issue_key, doc)
+   */
+  private static Map<List<String>,String[]> indexed(Connection conn, List<Doc> docs) throws Exception {
+    Set<String> keys = Sets.newLinkedHashSet();
+    for (Doc doc : docs) {
+      keys.add(doc.issueKey);
+    }
+    StringBuilder sql = new StringBuilder("SELECT issue_key, doc, hash, terms FROM JIRA_TERM_DOC WHERE issue_key IN (");
+    for (int i = 0; i < keys.size(); i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+    sql.append(")");
+    Map<List<String>,String[]> indexed = Maps.newHashMap();
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.toString());
+    PhoenixUtils.bind(stmt, keys.toArray());
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        indexed.put(Lists.newArrayList(rs.getString(1), rs.getString(2)), new String[] { rs.getString(3), rs.getString(4) });
+      }
+    } finally {
+      rs.close();
+    }
+    return indexed;
+  }
+
+  /**
+   * The terms of the text, in order: lower-cased runs of letters and digits (long ones cut short)
+   */
+  static List<String> tokens(String text) {
+    List<String> tokens = Lists.newArrayList();
+    if (text == null) return tokens;
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (inTerm && start < 0) {
+        start = i;
+      } else if (!inTerm && start >= 0) {
+        tokens.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase());
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Each distinct term, with its positions as "p1,p2,..."
+   */
+  static Map<String,String> positions(List<String> tokens) {
+    Map<String,StringBuilder> positions = Maps.newLinkedHashMap();
+    for (int p = 0; p < tokens.size(); p++) {
+      StringBuilder b = positions.get(tokens.get(p));
+      if (b == null) {
+        positions.put(tokens.get(p), new StringBuilder().append(p));
+      } else {
+        b.append(',').append(p);
+      }
+    }
+    Map<String,String> result = Maps.newLinkedHashMap();
+    for (Map.Entry<String,StringBuilder> e : positions.entrySet()) {
+      result.put(e.getKey(), e.getValue().toString());
+    }
+    return result;
+  }
+
+  static int[] parsePositions(String positions) {
+    if (positions == null) return new int[0];
+    String[] parts = positions.split(",");
+    int[] result = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = Integer.parseInt(parts[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Issues with the term in any of the fields (all of them, if none are given)
+   */
+  public static Set<String> term(String term, Field... fields) throws Exception {
+    return issueKeys(postings(term.toLowerCase(), false, fields));
+  }
+
+  /**
+   * Issues with a term starting with this prefix in any of the fields (all of them, if none are given)
+   */
+  public static Set<String> prefix(String prefix, Field... fields) throws Exception {
+    if (prefix.length() == 0) throw new IllegalArgumentException("Empty prefix");
+    return issueKeys(postings(prefix.toLowerCase(), true, fields));
+  }
+
+  /**
+   * Issues with the terms of the phrase, one after the other, in one of the fields (all of them, if none are
+   * given). Punctuation and case don't matter: "Region-Server" is the phrase "region server".
+   */
+  public static Set<String> phrase(String phrase, Field... fields) throws Exception {
+    List<String> terms = tokens(phrase);
+    if (terms.isEmpty()) return Sets.newTreeSet();
+    // positions of each term so far, for the documents that could still match
+    Map<List<String>,int[]> starts = Maps.newHashMap();
+    for (Posting p : postings(terms.get(0), false, fields)) {
+      starts.put(Lists.newArrayList(p.issueKey, p.doc), p.positions);
+    }
+    for (int t = 1; t < terms.size() && !starts.isEmpty(); t++) {
+      Map<List<String>,int[]> next = Maps.newHashMap();
+      for (Posting p : postings(terms.get(t), false, fields)) {
+        List<String> doc = Lists.newArrayList(p.issueKey, p.doc);
+        int[] before = starts.get(doc);
+        if (before == null) continue;
+        int[] followed = followedBy(before, p.positions);
+        if (followed.length > 0) next.put(doc, followed);
+      }
+      starts = next;
+    }
+    Set<String> keys = Sets.newTreeSet();
+    for (List<String> doc : starts.keySet()) {
+      keys.add(doc.get(0));
+    }
+    return keys;
+  }
+
+  /**
+   * The positions in 'next' that come straight after one in 'before' (both sorted)
+   */
+  static int[] followedBy(int[] before, int[] next) {
+    int[] result = new int[Math.min(before.length, next.length)];
+    int count = 0;
+    int i = 0;
+    for (int n : next) {
+      while (i < before.length && before[i] < n - 1) i++;
+      if (i < before.length && before[i] == n - 1) result[count++] = n;
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Ids of the issues with a term containing any of these strings in the field. Used by JiraTagger to find
+   * the few issues a LIKE '%...%' could match, before it reads their summaries, on the connection it 
+   * already has.
+   */
+  static Set<Long> idsContaining(Connection conn, Collection<String> substrings, Field field) throws Exception {
+    Set<Long> ids = Sets.newHashSet();
+    for (String term : dictionaryContaining(conn, substrings)) {
+      for (Posting p : postings(conn, term, false, field)) {
+        ids.add(p.id);
+      }
+    }
+    return ids;
+  }
+
+  private static Set<String> dictionaryContaining(Connection conn, Collection<String> substrings) throws Exception {
+    Set<String> terms = Sets.newHashSet();
+    createTables(conn);
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery("SELECT term FROM JIRA_TERM_DICT");
+      while (rs.next()) {
+        String term = rs.getString(1);
+        for (String s : substrings) {
+          if (term.contains(s)) {
+            terms.add(term);
+            break;
+          }
+        }
+      }
+    } finally {
+      stmt.close();
+    }
+    return terms;
+  }
+
+  /**
+   * The postings for a term (or for every term with this prefix), in the given fields (or all of them)
+   */
+  static List<Posting> postings(String term, boolean prefix, Field... fields) throws Exception {
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      return postings(conn, term, prefix, fields);
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  private static List<Posting> postings(Connection conn, String term, boolean prefix, Field... fields) 
+      throws Exception {
+    long start = System.nanoTime();
+    List<Posting> postings = Lists.newArrayList();
+    createTables(conn);
+    PreparedStatement stmt;
+    if (prefix) {
+      stmt = PhoenixUtils.prepare(conn, 
+          "SELECT issue_key, doc, id, positions FROM JIRA_TERM WHERE term >= ? AND term < ?");
+      stmt.setString(1, term);
+      stmt.setString(2, term.substring(0, term.length() - 1) + (char)(term.charAt(term.length() - 1) + 1));
+    } else {
+      stmt = PhoenixUtils.prepare(conn, "SELECT issue_key, doc, id, positions FROM JIRA_TERM WHERE term = ?");
+      stmt.setString(1, term);
+    }
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        String doc = rs.getString(2);
+        if (!inFields(doc, fields)) continue;
+        postings.add(new Posting(rs.getString(1), doc, rs.getLong(3), parsePositions(rs.getString(4))));
+      }
+    } finally {
+      rs.close();
+    }
+    ImportMetrics.time("fulltext.lookup", start);
+    return postings;
+  }
+
+  private static boolean inFields(String doc, Field[] fields) {
+    if (fields.length == 0) return true;
+    for (Field field : fields) {
+      if (doc.startsWith(field.doc)) return true;
+    }
+    return false;
+  }
+
+  private static Set<String> issueKeys(List<Posting> postings) {
+    Set<String> keys = Sets.newTreeSet();
+    for (Posting p : postings) {
+      keys.add(p.issueKey);
+    }
+    return keys;
+  }
+
+  /**
+   * Index (or bring up to date) everything already in JIRA_ISSUE and JIRA_COMMENT
+   */
+  public static void main(String[] args) throws Exception {
+    CliMain.setProperties();
+    ImportMetrics.start();
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    // the scan gets a connection of its own, not a second one from the pool (which may only have one)
+    Connection scanConn = PhoenixUtils.newConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(conn);
+      conn.setAutoCommit(false);
+      Map<String,Long> ids = Maps.newHashMap();
+      List<Doc> docs = Lists.newArrayList();
+      Statement scan = scanConn.createStatement();
+      try {
+        ResultSet rs = scan.executeQuery("SELECT id, issue_key, summary, description FROM JIRA_ISSUE");
+        while (rs.next()) {
+          ids.put(rs.getString(2), rs.getLong(1));
+          docs.add(new Doc(rs.getString(2), rs.getLong(1), Field.SUMMARY.doc, rs.getString(3)));
+          docs.add(new Doc(rs.getString(2), rs.getLong(1), Field.DESCRIPTION.doc, rs.getString(4)));
+          if (docs.size() >= JiraFetcher.BATCH_SIZE * 2) {
+            update(conn, docs);
+            docs.clear();
+          }
+        }
+        rs = scan.executeQuery("SELECT comment_id, issue_key, body FROM JIRA_COMMENT");
+        while (rs.next()) {
+          Long id = ids.get(rs.getString(2));
+          if (id == null) continue;
+          docs.add(new Doc(rs.getString(2), id, Field.COMMENT.doc + rs.getLong(1), rs.getString(3)));
+          if (docs.size() >= JiraFetcher.BATCH_SIZE * 2) {
+            update(conn, docs);
+            docs.clear();
+          }
+        }
+        update(conn, docs);
+      } finally {
+        scan.close();
+      }
+      System.out.println("Indexed " + ImportMetrics.get("fulltext.docs.indexed") + " documents, " + 
+          ImportMetrics.get("fulltext.docs.unchanged") + " unchanged");
+    } finally {
+      PhoenixUtils.close(scanConn);
+      PhoenixUtils.release(conn);
+      try {
+        ImportMetrics.finish();
+      } finally {
+        PhoenixUtils.closeConnections();
+      }
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.joda.time.DateTime;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Counters and latency histograms for an import run, so a slow run can be pinned on the REST calls, the 
+ * Phoenix writes or the tagger.
+ * 
+ * Everything is visible over JMX while the run is going (under com.salesforce.jirachi:type=ImportMetrics, 
+ * one bean per histogram), and finish() writes it all as json to jirachi.metrics.file.
+ */
+public class ImportMetrics {
+
+  static final String DOMAIN = "com.salesforce.jirachi";
+
+  // counters
+  public static final String ISSUES_FETCHED = "issues.fetched";
+  public static final String ISSUES_PERSISTED = "issues.persisted";
+  public static final String REST_BYTES = "rest.bytes";
+
+  private static String metricsFile = System.getProperty("jirachi.metrics.file", "jirachi-metrics.json");
+
+  private static final ConcurrentMap<String,AtomicLong> counters = new ConcurrentHashMap<String,AtomicLong>();
+  private static final ConcurrentMap<String,Histogram> histograms = new ConcurrentHashMap<String,Histogram>();
+  private static volatile long startNanos = System.nanoTime();
+  private static volatile DateTime startTime = new DateTime();
+
+  /**
+   * The run-wide numbers, over JMX
+   */
+  public interface RunMBean {
+    long getElapsedSeconds();
+    long getIssuesFetched();
+    long getIssuesPersisted();
+    double getIssuesPerSecond();
+    long getBytesRead();
+    /**
+     * Everything, as the json finish() writes
+     */
+    String getSummary();
+  }
+
+  /**
+   * One latency histogram, over JMX
+   */
+  public interface HistogramMBean {
+    long getCount();
+    double getTotalMillis();
+    double getRatePerSecond();
+    double getMeanMicros();
+    long getP50Micros();
+    long getP90Micros();
+    long getP99Micros();
+    long getMaxMicros();
+  }
+
+  /**
+   * Start (or restart) the clock for a run, and register the run bean
+   */
+  public static void start() {
+    startNanos = System.nanoTime();
+    startTime = new DateTime();
+    counters.clear();
+    for (Histogram h : histograms.values()) {
+      h.reset();
+    }
+    register("type=ImportMetrics", new StandardMBean(new Run(), RunMBean.class, false));
+  }
+
+  /**
+   * Write the summary file, and a line about it to the console
+   */
+  public static void finish() throws Exception {
+    new ObjectMapper().writeValue(new File(metricsFile), summary());
+    System.out.println("Persisted " + get(ISSUES_PERSISTED) + " issues in " + elapsedSeconds() + "s (" + 
+        String.format("%.1f", issuesPerSecond()) + "/s), metrics in " + metricsFile);
+  }
+
+  public static void count(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) counter = created;
+    }
+    counter.addAndGet(delta);
+  }
+
+  /**
+   * Set a counter outright, for values that go up and down
+   */
+  public static void set(String name, long value) {
+    count(name, 0);
+    counters.get(name).set(value);
+  }
+
+  public static long get(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /**
+   * The histogram with this name, created (and registered over JMX) on first use
+   */
+  public static Histogram histogram(String name) {
+    Histogram h = histograms.get(name);
+    if (h == null) {
+      Histogram created = new Histogram();
+      h = histograms.putIfAbsent(name, created);
+      if (h == null) {
+        h = created;
+        register("type=ImportMetrics,name=" + name, new StandardMBean(h, HistogramMBean.class, false));
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Record the time since startNanos (a System.nanoTime()) in the named histogram
+   */
+  public static void time(String name, long startNanos) {
+    histogram(name).record(System.nanoTime() - startNanos);
+  }
+
+  static long elapsedSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+  }
+
+  static double issuesPerSecond() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return seconds == 0 ? 0 : get(ISSUES_PERSISTED) / seconds;
+  }
+
+  static Map<String,Object> summary() {
+    Map<String,Object> summary = Maps.newLinkedHashMap();
+    summary.put("startTime", startTime.toString());
+    summary.put("elapsedSeconds", elapsedSeconds());
+    summary.put("issuesPerSecond", issuesPerSecond());
+    Map<String,Long> countValues = Maps.newTreeMap();
+    for (Map.Entry<String,AtomicLong> e : counters.entrySet()) {
+      countValues.put(e.getKey(), e.getValue().get());
+    }
+    summary.put("counters", countValues);
+    Map<String,Object> histogramValues = Maps.newTreeMap();
+    for (Map.Entry<String,Histogram> e : histograms.entrySet()) {
+      histogramValues.put(e.getKey(), e.getValue().summary());
+    }
+    summary.put("histograms", histogramValues);
+    return summary;
+  }
+
+  private static void register(String name, Object bean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(DOMAIN + ":" + name);
+      if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+      server.registerMBean(bean, objectName);
+    } catch (Exception ex) {
+      // metrics are nice to have, so carry on without the bean
+      System.out.println("Could not register " + name + " over JMX: " + ex);
+    }
+  }
+
+  private static class Run implements RunMBean {
+    public long getElapsedSeconds() {
+      return elapsedSeconds();
+    }
+
+    public long getIssuesFetched() {
+      return get(ISSUES_FETCHED);
+    }
+
+    public long getIssuesPersisted() {
+      return get(ISSUES_PERSISTED);
+    }
+
+    public double getIssuesPerSecond() {
+      return issuesPerSecond();
+    }
+
+    public long getBytesRead() {
+      return get(REST_BYTES);
+    }
+
+    public String getSummary() {
+      try {
+        return new ObjectMapper().writeValueAsString(summary());
+      } catch (Exception ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * A latency histogram in microseconds, with 8 buckets per power of two (so percentiles are good to within 
+   * about 12%). Recording is lock free, so it's cheap enough to call per row.
+   */
+  public static class Histogram implements HistogramMBean {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    // up to 2^41 micros (a few weeks)
+    private static final int BUCKETS = (40 - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    void reset() {
+      for (int b = 0; b < BUCKETS; b++) {
+        buckets.set(b, 0);
+      }
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+    }
+
+    /**
+     * Values below 8 get a bucket each; above that, each power of two is split into 8 equal buckets
+     */
+    static int bucket(long micros) {
+      if (micros < SUB_BUCKETS) return (int) micros;
+      int exp = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return Math.min((exp - SUB_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    /**
+     * The largest value that lands in a bucket
+     */
+    static long bucketLimit(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long width = 1L << (exp - SUB_BITS);
+      return ((SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS)) + width - 1;
+    }
+
+    /**
+     * The value (in micros) that the given fraction of the recorded values are at or below
+     */
+    public long percentile(double fraction) {
+      long n = count.get();
+      if (n == 0) return 0;
+      long rank = (long) Math.ceil(fraction * n);
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+        seen += buckets.get(b);
+        if (seen >= rank) return Math.min(bucketLimit(b), getMaxMicros());
+      }
+      return getMaxMicros();
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getTotalMillis() {
+      return totalNanos.get() / 1e6;
+    }
+
+    /**
+     * Recorded events per second of time spent in them
+     */
+    public double getRatePerSecond() {
+      long nanos = totalNanos.get();
+      return nanos == 0 ? 0 : count.get() / (nanos / 1e9);
+    }
+
+    public double getMeanMicros() {
+      long n = count.get();
+      return n == 0 ? 0 : totalNanos.get() / 1e3 / n;
+    }
+
+    public long getP50Micros() {
+      return percentile(0.5);
+    }
+
+    public long getP90Micros() {
+      return percentile(0.9);
+    }
+
+    public long getP99Micros() {
+      return percentile(0.99);
+    }
+
+    public long getMaxMicros() {
+      return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+    }
+
+    Map<String,Object> summary() {
+      Map<String,Object> summary = Maps.newLinkedHashMap();
+      summary.put("count", getCount());
+      summary.put("totalMillis", getTotalMillis());
+      summary.put("ratePerSecond", getRatePerSecond());
+      summary.put("meanMicros", getMeanMicros());
+      summary.put("p50Micros", getP50Micros());
+      summary.put("p90Micros", getP90Micros());
+      summary.put("p99Micros", getP99Micros());
+      summary.put("maxMicros", getMaxMicros());
+      return summary;
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Index tables over JIRA_ISSUE, for the "scan" layout (see PhoenixJiraPersister). Phoenix has no secondary
+ * indexes of its own yet, so these are plain tables, keyed for the lookups the analysis queries make and 
+ * covering the columns they usually group by, that the persister keeps in step with JIRA_ISSUE:
+ * 
+ *   JIRA_ISSUE_BY_KEY      issue_key -> id
+ *   JIRA_ISSUE_BY_CREATED  (creationDate, id) + COVERED
+ *   JIRA_ISSUE_BY_TAG      (tag, creationDate, id) + COVERED, one row per tag that applies to the issue
+ * 
+ * Issues without a creationDate aren't in the date or tag indexes.
+ */
+public class IssueIndexes {
+
+  static final String BY_KEY = "JIRA_ISSUE_BY_KEY";
+  static final String BY_CREATED = "JIRA_ISSUE_BY_CREATED";
+  static final String BY_TAG = "JIRA_ISSUE_BY_TAG";
+
+  /**
+   * JIRA_ISSUE columns copied into the date and tag indexes
+   */
+  static final String[] COVERED = { "issue_key", "issueType", "priority", "resolution", "status", "numComments" };
+
+  static final String[] BY_KEY_COLUMNS = { "issue_key", "id" };
+  static final String[] BY_CREATED_COLUMNS = concat(new String[] { "creationDate", "id" }, COVERED);
+  static final String[] BY_TAG_COLUMNS = concat(new String[] { "tag", "creationDate", "id" }, COVERED);
+
+  private static final int REBUILD_BATCH = 1000;
+
+  private static final int ID = position("id");
+  private static final int ISSUE_KEY = position("issue_key");
+  private static final int CREATED = position("creationDate");
+  private static final int[] COVERED_POSITIONS = positions(COVERED);
+
+  static void createTables(Connection conn) throws Exception {
+    String options = PhoenixJiraPersister.tableOptions(true);
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE " + BY_KEY + " (" +
+        "issue_key varchar(11) NOT NULL, " +
+        "id bigint NOT NULL " +
+        "CONSTRAINT pk primary key (issue_key))" + options);
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE " + BY_CREATED + " (" +
+        "creationDate timestamp NOT NULL, " +
+        "id bigint NOT NULL, " +
+        coveredColumns() +
+        "CONSTRAINT pk primary key (creationDate, id))" + options);
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE " + BY_TAG + " (" +
+        "tag varchar NOT NULL, " +
+        "creationDate timestamp NOT NULL, " +
+        "id bigint NOT NULL, " +
+        coveredColumns() +
+        "CONSTRAINT pk primary key (tag, creationDate, id))" + options);
+  }
+
+  private static String coveredColumns() {
+    return "issue_key varchar(11) NULL, " +
+        "issueType varchar NULL, " +
+        "priority varchar NULL, " +
+        "resolution varchar NULL, " +
+        "status varchar NULL, " +
+        "numComments integer NULL ";
+  }
+
+  /**
+   * Index a batch of issue rows (in PhoenixJiraPersister.issueColumns() order). Call it before the rows are
+   * written to JIRA_ISSUE: tags the issues had there, but have lost, are deleted from the tag index.
+   */
+  static void update(Connection conn, List<Object[]> issues) throws Exception {
+    if (issues.isEmpty()) return;
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    Map<Long,Set<String>> before = currentTags(conn, issues, tagNames);
+
+    List<Object[]> untagged = Lists.newArrayList();
+    for (Object[] issue : issues) {
+      Set<String> had = before.get(issue[ID]);
+      if (had == null || issue[CREATED] == null) continue;
+      for (int t = 0; t < tagNames.length; t++) {
+        if (!Boolean.TRUE.equals(issue[PhoenixJiraPersister.ISSUE_COLUMNS.length + t]) && had.contains(tagNames[t])) {
+          untagged.add(new Object[] { tagNames[t], issue[CREATED], issue[ID] });
+        }
+      }
+    }
+    PhoenixJiraPersister.upsert(conn, BY_KEY, BY_KEY_COLUMNS, keyRows(issues));
+    PhoenixJiraPersister.upsert(conn, BY_CREATED, BY_CREATED_COLUMNS, createdRows(issues));
+    PhoenixJiraPersister.upsert(conn, BY_TAG, BY_TAG_COLUMNS, tagRows(issues));
+    if (!untagged.isEmpty()) {
+      PreparedStatement delete = PhoenixUtils.prepare(conn, 
+          "DELETE FROM " + BY_TAG + " WHERE tag = ? AND creationDate = ? AND id = ?");
+      for (Object[] key : untagged) {
+        PhoenixUtils.bind(delete, key);
+        delete.execute();
+      }
+      conn.commit();
+      ImportMetrics.count("index.untagged", untagged.size());
+    }
+  }
+
+  /**
+   * JIRA_ISSUE_BY_KEY rows for the issue rows
+   */
+  static List<Object[]> keyRows(List<Object[]> issues) {
+    List<Object[]> rows = Lists.newArrayListWithCapacity(issues.size());
+    for (Object[] issue : issues) {
+      rows.add(new Object[] { issue[ISSUE_KEY], issue[ID] });
+    }
+    return rows;
+  }
+
+  /**
+   * JIRA_ISSUE_BY_CREATED rows for the issue rows
+   */
+  static List<Object[]> createdRows(List<Object[]> issues) {
+    List<Object[]> rows = Lists.newArrayListWithCapacity(issues.size());
+    for (Object[] issue : issues) {
+      if (issue[CREATED] == null) continue;
+      rows.add(indexRow(issue, new Object[] { issue[CREATED], issue[ID] }));
+    }
+    return rows;
+  }
+
+  /**
+   * JIRA_ISSUE_BY_TAG rows for the tags that apply to the issue rows
+   */
+  static List<Object[]> tagRows(List<Object[]> issues) {
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    List<Object[]> rows = Lists.newArrayList();
+    for (Object[] issue : issues) {
+      if (issue[CREATED] == null) continue;
+      for (int t = 0; t < tagNames.length; t++) {
+        if (Boolean.TRUE.equals(issue[PhoenixJiraPersister.ISSUE_COLUMNS.length + t])) {
+          rows.add(indexRow(issue, new Object[] { tagNames[t], issue[CREATED], issue[ID] }));
+        }
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * The ids of the issues in the tag index under any of these tags
+   */
+  static Set<Long> taggedIds(Connection conn, Collection<String> tagNames) throws Exception {
+    StringBuilder sql = new StringBuilder("SELECT id FROM " + BY_TAG + " WHERE tag IN (");
+    for (int t = 0; t < tagNames.size(); t++) {
+      sql.append(t == 0 ? "?" : ", ?");
+    }
+    sql.append(")");
+    Set<Long> ids = Sets.newHashSet();
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.toString());
+    PhoenixUtils.bind(stmt, tagNames.toArray());
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        ids.add(rs.getLong(1));
+      }
+    } finally {
+      rs.close();
+    }
+    return ids;
+  }
+
+  /**
+   * The tags each of these issues has in JIRA_ISSUE now (issues that aren't there yet are left out)
+   */
+  private static Map<Long,Set<String>> currentTags(Connection conn, List<Object[]> issues, String[] tagNames) 
+      throws Exception {
+    StringBuilder sql = new StringBuilder("SELECT id");
+    for (String tagName : tagNames) {
+      sql.append(", ").append(tagName);
+    }
+    sql.append(" FROM JIRA_ISSUE WHERE id IN (");
+    Object[] ids = new Object[issues.size()];
+    for (int i = 0; i < ids.length; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+      ids[i] = issues.get(i)[ID];
+    }
+    sql.append(")");
+
+    Map<Long,Set<String>> tagged = Maps.newHashMap();
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.toString());
+    PhoenixUtils.bind(stmt, ids);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        Set<String> tags = Sets.newHashSet();
+        for (int t = 0; t < tagNames.length; t++) {
+          if (rs.getBoolean(t + 2)) tags.add(tagNames[t]);
+        }
+        tagged.put(rs.getLong(1), tags);
+      }
+    } finally {
+      rs.close();
+    }
+    return tagged;
+  }
+
+  /**
+   * Fill the index tables from JIRA_ISSUE as it stands, server side. Only upserts, so it's for filling 
+   * empty index tables, after a migration. JiraTagger.addTags() and retag() take tags away as well as 
+   * adding them, and use rebuildTags(conn, tagNames), which deletes the old rows first.
+   */
+  static void rebuild(Connection conn) throws Exception {
+    if (Dictionary.isEnabled()) {
+      rebuildDecoded(conn, false);
+      return;
+    }
+    PhoenixUtils.execute(conn, "UPSERT INTO " + BY_KEY + " (issue_key, id) SELECT issue_key, id FROM JIRA_ISSUE");
+    String covered = Joiner.on(", ").join(COVERED);
+    PhoenixUtils.execute(conn, "UPSERT INTO " + BY_CREATED + " (creationDate, id, " + covered + ") " +
+        "SELECT creationDate, id, " + covered + " FROM JIRA_ISSUE WHERE creationDate IS NOT NULL");
+    rebuildTags(conn);
+  }
+
+  private static void rebuildTags(Connection conn) throws Exception {
+    if (Dictionary.isEnabled()) {
+      rebuildDecoded(conn, true);
+      return;
+    }
+    upsertTags(conn, Arrays.asList(JiraTagger.matcher.getTagNames()));
+  }
+
+  /**
+   * Rebuild the tag index rows for just these tags, whose rules have changed (so issues may have lost them
+   * as well as gained them): the old rows are deleted first.
+   */
+  static void rebuildTags(Connection conn, List<String> tagNames) throws Exception {
+    PreparedStatement delete = PhoenixUtils.prepare(conn, "DELETE FROM " + BY_TAG + " WHERE tag = ?");
+    for (String tagName : tagNames) {
+      delete.setString(1, tagName);
+      delete.execute();
+    }
+    if (!conn.getAutoCommit()) conn.commit();
+    if (Dictionary.isEnabled()) {
+      rebuildDecoded(conn, true); // all the tags, but the others come out the same
+    } else {
+      upsertTags(conn, tagNames);
+    }
+  }
+
+  private static void upsertTags(Connection conn, List<String> tagNames) throws Exception {
+    String covered = Joiner.on(", ").join(COVERED);
+    for (String tagName : tagNames) {
+      PhoenixUtils.execute(conn, "UPSERT INTO " + BY_TAG + " (tag, creationDate, id, " + covered + ") " +
+          "SELECT '" + tagName + "', creationDate, id, " + covered + " FROM JIRA_ISSUE " +
+          "WHERE " + tagName + " = true AND creationDate IS NOT NULL");
+    }
+    if (!conn.getAutoCommit()) conn.commit();
+  }
+
+  /**
+   * rebuild() through the client, for when JIRA_ISSUE has dictionary codes where the indexes have strings
+   */
+  private static void rebuildDecoded(Connection conn, boolean tagsOnly) throws Exception {
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    StringBuilder sql = new StringBuilder("SELECT id, creationDate");
+    for (String column : COVERED) {
+      sql.append(", ").append(Dictionary.select(column));
+    }
+    for (String tagName : tagNames) {
+      sql.append(", ").append(tagName);
+    }
+    sql.append(" FROM JIRA_ISSUE");
+    int width = PhoenixJiraPersister.ISSUE_COLUMNS.length;
+    List<Object[]> issues = Lists.newArrayList();
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery(sql.toString());
+      boolean more = rs.next();
+      while (more) {
+        Object[] issue = new Object[width + tagNames.length];
+        issue[ID] = rs.getLong(1);
+        issue[CREATED] = rs.getTimestamp(2);
+        for (int i = 0; i < COVERED.length; i++) {
+          issue[COVERED_POSITIONS[i]] = Dictionary.read(rs, 3 + i, COVERED[i]);
+        }
+        for (int t = 0; t < tagNames.length; t++) {
+          issue[width + t] = rs.getBoolean(3 + COVERED.length + t) ? Boolean.TRUE : null;
+        }
+        issues.add(issue);
+        more = rs.next();
+        if (issues.size() == REBUILD_BATCH || !more) {
+          if (!tagsOnly) {
+            PhoenixJiraPersister.upsert(conn, BY_KEY, BY_KEY_COLUMNS, keyRows(issues));
+            PhoenixJiraPersister.upsert(conn, BY_CREATED, BY_CREATED_COLUMNS, createdRows(issues));
+          }
+          PhoenixJiraPersister.upsert(conn, BY_TAG, BY_TAG_COLUMNS, tagRows(issues));
+          issues.clear();
+        }
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  private static Object[] indexRow(Object[] issue, Object[] key) {
+    Object[] row = new Object[key.length + COVERED_POSITIONS.length];
+    System.arraycopy(key, 0, row, 0, key.length);
+    for (int i = 0; i < COVERED_POSITIONS.length; i++) {
+      row[key.length + i] = issue[COVERED_POSITIONS[i]];
+    }
+    return row;
+  }
+
+  private static int position(String column) {
+    return Arrays.asList(PhoenixJiraPersister.ISSUE_COLUMNS).indexOf(column);
+  }
+
+  private static int[] positions(String[] columns) {
+    int[] positions = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      positions[i] = position(columns[i]);
+    }
+    return positions;
+  }
+
+  private static String[] concat(String[] a, String[] b) {
+    String[] c = new String[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+}
@@ -27,25 +27,71 @@
  ******************************************************************************/
 package com.salesforce.jirachi.ingest;
 
-import java.net.URI;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
-import com.atlassian.jira.rest.client.api.*;
 import com.atlassian.jira.rest.client.api.domain.*;
-import com.atlassian.jira.rest.client.auth.*;
-import com.atlassian.jira.rest.client.internal.async.AsynchronousJiraRestClientFactory;
-import com.atlassian.util.concurrent.Promise;
 import com.google.common.collect.Lists;
 
 /**
  * Ingest a bunch of issues from Jira using the REST API
+ * 
+ * Batches are fetched concurrently (up to jirachi.fetch.concurrency requests in flight, one per fetch 
+ * thread, as many as JiraRestReader finds the server will take), flattened into rows and tagged on the 
+ * fetch threads, and queued for the persister, so the network and Phoenix writes overlap instead of 
+ * waiting on each other. The queue is bounded (jirachi.fetch.queueSize), so memory use doesn't grow with 
+ * the size of the result set. Setting the concurrency to 1 gets you (more or less) the old serial behavior.
+ * 
+ * Comments and attachments come back embedded in the search results, so a batch normally costs one 
+ * request; an issue is only fetched on its own when JIRA truncated its comment list.
+ * With jirachi.fetch.streaming=true, pages are read straight into rows by StreamingFetch instead.
+ * 
+ * Every completed run records the newest updateDate it saw. With jirachi.incremental=true, the next run 
+ * only asks for issues updated since then (less jirachi.incremental.overlapMinutes, to be safe about 
+ * clock skew and issues updated mid-run).
+ * 
+ * If jirachi.snapshot.file is set, the raw issue json is also kept in that SnapshotFile, and with 
+ * jirachi.snapshot.replay=true the issues are re-ingested from there without touching the network.
  */
 public class JiraFetcher {
   
   private static String baseUrl = System.getProperty("jirachi.baseUrl");
   private static String restQuery = System.getProperty("jirachi.restQuery");
+  private static int concurrency = Integer.getInteger("jirachi.fetch.concurrency", 4);
+  /**
+   * How many fetched batches can wait for the persister
+   */
+  private static int queueSize = Integer.getInteger("jirachi.fetch.queueSize", concurrency);
+  private static boolean incremental = Boolean.getBoolean("jirachi.incremental");
+  private static int overlapMinutes = Integer.getInteger("jirachi.incremental.overlapMinutes", 5);
+  /**
+   * JQL date literals are read in the time zone of the (anonymous) JIRA user, i.e. the server's default
+   */
+  private static String jiraTimeZone = System.getProperty("jirachi.timeZone");
+  private static String snapshotFile = System.getProperty("jirachi.snapshot.file");
+  private static boolean replay = Boolean.getBoolean("jirachi.snapshot.replay");
+
+  static final String WATERMARK_KEY = "watermark.updateDate";
+
+  static final int BATCH_SIZE = 50;
 
   public static class JiraSet{
     JiraSet(Map<String,Issue> issues, Map<String,List<Comment>> comments, Map<String,List<Attachment>> attachments) {
@@ -58,58 +104,320 @@ public class JiraFetcher {
     public Map<String,List<Attachment>> attachments;
   }
 
-	public static void fetchAndPersist() throws Exception{
-	  JiraRestClientFactory j = new AsynchronousJiraRestClientFactory();
-	  JiraRestClient c = j.create(new URI(baseUrl), new AnonymousAuthenticationHandler());
-	  SearchRestClient s = c.getSearchClient();
-    IssueRestClient irc = c.getIssueClient();
-	  String jql = restQuery;
-	  // query once to get the size
-    Promise<SearchResult> sizeQuery = s.searchJql(jql,1,0);
-    SearchResult sizeQueryResult = sizeQuery.get();
-    int totalSize = sizeQueryResult.getTotal();
-    System.out.println("Total issues in query: " + totalSize);
-    
-    // now query in batches
-    int totalResults = 0;
-	  int BATCH_SIZE = 50;
-	  while (totalResults < totalSize) {
-	    
-	    Map<String,Issue> issues = new HashMap<String,Issue>(totalSize);
-	    Map<String,List<Comment>> commentsByIssue = new HashMap<String,List<Comment>>();
-	    Map<String,List<Attachment>> attachmentsByIssue = new HashMap<String,List<Attachment>>();
-
-	    Promise<SearchResult> batch = s.searchJql(jql, BATCH_SIZE, totalResults);
-	    SearchResult batchResult = batch.claim();
-	    
-	    int totalCommentsInThisBatch = 0;
-	    int totalInThisBatch = 0;
- 	    for (Issue i : batchResult.getIssues()) {
-	      issues.put(i.getKey(), i);
-	      commentsByIssue.put(i.getKey(), getComments(i, irc));
-	      attachmentsByIssue.put(i.getKey(), getAttachments(i,irc));
-	      totalResults++;
-	      totalInThisBatch++;
-	      totalCommentsInThisBatch += commentsByIssue.get(i.getKey()).size();
-	    }
- 	    System.out.print("Persisting batch of " + totalInThisBatch + " issues, with " + totalCommentsInThisBatch + " comments.");
- 	    PhoenixJiraPersister.persist(new JiraSet(issues, commentsByIssue, attachmentsByIssue));
-	  }
-	  c.destroy();
-	}
-
-  private static List<Attachment> getAttachments(Issue i, IssueRestClient irc) throws Exception {
-    // This doesn't seem to work for attachments, temporarily commented out.
-    // Asked for help here: https://answers.atlassian.com/questions/175550/getting-issue-attachments-in-jrjc#
-    //Issue is = irc.getIssue(i.getKey()).claim();
-    //if (is == null || is.getAttachments() == null) return Lists.newArrayList();
-    //return Lists.newArrayList(is.getAttachments());
-    return Lists.newArrayList();
-  }
-
-  private static List<Comment> getComments(Issue i, IssueRestClient c) throws Exception {
-    Issue is = c.getIssue(i.getKey()).claim();
-    return Lists.newArrayList(is.getComments());
+  /**
+   * Where batches come from: the JIRA server, or a local snapshot
+   */
+  interface BatchSource {
+    /**
+     * @return the next batch, or null when there are no more
+     */
+    RowBatch next() throws Exception;
+    void close() throws Exception;
+  }
+
+  public static void fetchAndPersist() throws Exception {
+    fetchAndPersist(incremental);
+  }
+
+  /**
+   * @param incremental only fetch issues updated since the watermark (if there is one)
+   */
+  public static void fetchAndPersist(boolean incremental) throws Exception {
+    DateTime watermark = loadWatermark();
+    JiraSink sink = BulkLoadSink.isEnabled() ? BulkLoadSink.get() : PhoenixJiraPersister.UPSERT;
+    SnapshotFile snapshot = snapshotFile == null ? null : new SnapshotFile(new File(snapshotFile));
+    try {
+      DateTime maxUpdated;
+      if (replay) {
+        if (snapshot == null) throw new IllegalStateException("jirachi.snapshot.replay needs jirachi.snapshot.file");
+        System.out.println("Replaying issues from " + snapshotFile);
+        maxUpdated = ingest(new SnapshotBatches(snapshot.replay()), sink, watermark);
+      } else {
+        JiraRestReader reader = reader();
+        String jql = query();
+        if (incremental && watermark != null) {
+          jql = updatedSince(jql, watermark.minusMinutes(overlapMinutes));
+          System.out.println("Incremental run, fetching issues updated since " + watermark);
+        }
+        if (ShardedFetcher.isEnabled()) {
+          maxUpdated = new ShardedFetcher(reader, jql, snapshot).run(sink, watermark);
+        } else {
+          // query once to get the size
+          int totalSize = reader.count(jql);
+          System.out.println("Total issues in query: " + totalSize);
+          maxUpdated = ingest(new FetchedBatches(reader, jql, totalSize, snapshot), sink, watermark);
+        }
+      }
+      if (Fingerprints.isEnabled()) System.out.println(Fingerprints.summary());
+      // everything is persisted, so it's safe to move the watermark up
+      if (maxUpdated != null) saveWatermark(maxUpdated);
+    } finally {
+      if (snapshot != null) snapshot.close();
+    }
+  }
+
+  static JiraRestReader reader() {
+    return new JiraRestReader(baseUrl);
+  }
+
+  /**
+   * The configured JQL (jirachi.restQuery)
+   */
+  static String query() throws UnsupportedEncodingException {
+    return URLDecoder.decode(restQuery, "UTF-8"); // the property is url-encoded
+  }
+
+  /**
+   * Persist every batch from the source, as it becomes available, then flush the sink and close the source
+   * 
+   * @return the newest updateDate seen (or the given watermark, if nothing was newer)
+   */
+  static DateTime ingest(BatchSource source, JiraSink sink, DateTime watermark) throws Exception {
+    try {
+      DateTime maxUpdated = watermark;
+      RowBatch rows;
+      while ((rows = nextBatch(source)) != null) {
+        maxUpdated = later(maxUpdated, rows.maxUpdated);
+        System.out.println("Persisting batch of " + rows.issues.size() + " issues, with " + rows.comments.size() + " comments.");
+        long start = System.nanoTime();
+        sink.persist(rows);
+        ImportMetrics.time("persist.batch", start);
+        ImportMetrics.count(ImportMetrics.ISSUES_PERSISTED, rows.issues.size());
+      }
+      long start = System.nanoTime();
+      sink.flush();
+      ImportMetrics.time("persist.flush", start);
+      return maxUpdated;
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * The later of two times, either of which may be null
+   */
+  static DateTime later(DateTime a, DateTime b) {
+    if (a == null) return b;
+    if (b == null) return a;
+    return b.isAfter(a) ? b : a;
+  }
+
+  /**
+   * The next batch from the source, timing how long the persister is kept waiting for it
+   */
+  private static RowBatch nextBatch(BatchSource source) throws Exception {
+    long start = System.nanoTime();
+    RowBatch rows = source.next();
+    ImportMetrics.time("pipeline.waitForFetch", start);
+    if (rows != null) ImportMetrics.count(ImportMetrics.ISSUES_FETCHED, rows.issues.size());
+    return rows;
+  }
+
+  /**
+   * Pages from the JIRA server. 'concurrency' fetch threads each take the next page that nobody's fetched 
+   * yet, flatten it into a RowBatch and put it on a queue for the persister. The queue is bounded, so when 
+   * the persister falls behind the fetchers wait for it, and no more than queueSize + concurrency batches 
+   * are ever held in memory, however big the result set. Batches come off the queue in whatever order 
+   * they were fetched.
+   */
+  static class FetchedBatches implements BatchSource {
+    private final JiraRestReader reader;
+    private final String jql;
+    private final int totalSize;
+    private final SnapshotFile snapshot;
+    private final int pages;
+    private final BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(queueSize);
+    private final AtomicInteger nextStart = new AtomicInteger();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(concurrency);
+    private volatile Exception failure;
+    private int taken = 0;
+
+    FetchedBatches(JiraRestReader reader, String jql, int totalSize, SnapshotFile snapshot) {
+      this.reader = reader;
+      this.jql = jql;
+      this.totalSize = totalSize;
+      this.snapshot = snapshot;
+      this.pages = (totalSize + BATCH_SIZE - 1) / BATCH_SIZE;
+      for (int t = 0; t < concurrency; t++) {
+        fetchers.submit(new Runnable() {
+          public void run() {
+            fetchPages();
+          }
+        });
+      }
+    }
+
+    private void fetchPages() {
+      try {
+        int startAt;
+        while (failure == null && (startAt = nextStart.getAndAdd(BATCH_SIZE)) < totalSize) {
+          RowBatch rows = fetchRows(reader, jql, startAt, snapshot);
+          long start = System.nanoTime();
+          queue.put(rows);
+          ImportMetrics.time("pipeline.waitForPersist", start);
+        }
+      } catch (InterruptedException closed) {
+        // we're done
+      } catch (Exception ex) {
+        failure = ex;
+      }
+    }
+
+    public RowBatch next() throws Exception {
+      while (taken < pages) {
+        if (failure != null) throw failure;
+        RowBatch rows = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (rows != null) {
+          taken++;
+          return rows;
+        }
+      }
+      return null;
+    }
+
+    public void close() {
+      fetchers.shutdownNow();
+    }
+  }
+
+  /**
+   * Batches of issues read back from a snapshot file
+   */
+  private static class SnapshotBatches implements BatchSource {
+    private final SnapshotFile.Replay replay;
+
+    SnapshotBatches(SnapshotFile.Replay replay) {
+      this.replay = replay;
+    }
+
+    public RowBatch next() throws Exception {
+      List<Issue> batch = Lists.newArrayList();
+      Issue i;
+      while (batch.size() < BATCH_SIZE && (i = replay.next()) != null) {
+        batch.add(i);
+      }
+      return batch.isEmpty() ? null : PhoenixJiraPersister.rows(jiraSet(batch));
+    }
+
+    public void close() throws Exception {
+      replay.close();
+    }
+  }
+
+  /**
+   * One page of search results as rows: through StreamingFetch if it's on (and there's no snapshot to 
+   * keep), otherwise through BatchFetch and JRJC
+   */
+  static RowBatch fetchRows(JiraRestReader reader, String jql, int startAt, SnapshotFile snapshot) throws Exception {
+    if (StreamingFetch.isEnabled() && snapshot == null) {
+      return StreamingFetch.fetch(reader, jql, startAt, BATCH_SIZE);
+    }
+    return PhoenixJiraPersister.rows(new BatchFetch(reader, jql, startAt, snapshot).call());
+  }
+
+  /**
+   * Fetch one page of search results, with the comments and attachments for every issue on it
+   */
+  static class BatchFetch implements Callable<JiraSet> {
+    private final JiraRestReader reader;
+    private final String jql;
+    private final int startAt;
+    private final SnapshotFile snapshot;
+
+    BatchFetch(JiraRestReader reader, String jql, int startAt, SnapshotFile snapshot) {
+      this.reader = reader;
+      this.jql = jql;
+      this.startAt = startAt;
+      this.snapshot = snapshot;
+    }
+
+    public JiraSet call() throws Exception {
+      long start = System.nanoTime();
+      JSONObject page = reader.search(jql, startAt, BATCH_SIZE);
+      JiraSet js = jiraSet(JiraRestReader.parseSearch(page).getIssues());
+      // go back for the full comment list of any issue that has more than the search embedded
+      JSONArray issuesJson = page.getJSONArray("issues");
+      for (int n = 0; n < issuesJson.length(); n++) {
+        JSONObject issueJson = issuesJson.getJSONObject(n);
+        if (JiraRestReader.hasTruncatedComments(issueJson)) {
+          String key = issueJson.getString("key");
+          JSONObject fullJson = reader.getIssue(key);
+          js.comments.put(key, getComments(JiraRestReader.parseIssue(fullJson)));
+          if (snapshot != null) snapshot.append(null, null, fullJson);
+        } else if (snapshot != null) {
+          snapshot.append(page.optJSONObject("names"), page.optJSONObject("schema"), issueJson);
+        }
+      }
+      ImportMetrics.time("fetch.batch", start);
+      return js;
+    }
+  }
+
+  static JiraSet jiraSet(Iterable<Issue> batch) {
+    Map<String,Issue> issues = new HashMap<String,Issue>(BATCH_SIZE);
+    Map<String,List<Comment>> commentsByIssue = new HashMap<String,List<Comment>>();
+    Map<String,List<Attachment>> attachmentsByIssue = new HashMap<String,List<Attachment>>();
+    for (Issue i : batch) {
+      issues.put(i.getKey(), i);
+      commentsByIssue.put(i.getKey(), getComments(i));
+      attachmentsByIssue.put(i.getKey(), getAttachments(i));
+    }
+    return new JiraSet(issues, commentsByIssue, attachmentsByIssue);
+  }
+
+  /**
+   * Restrict a JQL query to issues updated at or after the given time, keeping any ORDER BY at the end
+   */
+  static String updatedSince(String jql, DateTime since) {
+    DateTimeFormatter f = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm");
+    if (jiraTimeZone != null) f = f.withZone(DateTimeZone.forID(jiraTimeZone));
+    return restrict(jql, "updated >= \"" + since.toString(f) + "\"");
+  }
+
+  /**
+   * AND a clause onto a JQL query, keeping any ORDER BY at the end
+   */
+  static String restrict(String jql, String clause) {
+    String orderBy = "";
+    int order = orderBy(jql);
+    if (order >= 0) {
+      orderBy = " " + jql.substring(order);
+      jql = jql.substring(0, order).trim();
+    }
+    if (jql.trim().length() == 0) return clause + orderBy;
+    return "(" + jql + ") AND " + clause + orderBy;
+  }
+
+  /**
+   * Replace any ORDER BY in a JQL query with the given one
+   */
+  static String orderedBy(String jql, String orderBy) {
+    int order = orderBy(jql);
+    if (order >= 0) jql = jql.substring(0, order).trim();
+    return jql + " ORDER BY " + orderBy;
+  }
+
+  private static int orderBy(String jql) {
+    return jql.toLowerCase().lastIndexOf("order by");
+  }
+
+  private static DateTime loadWatermark() throws Exception {
+    String value = PhoenixMetadata.get(WATERMARK_KEY);
+    return value == null ? null : new DateTime(value);
+  }
+
+  private static void saveWatermark(DateTime watermark) throws Exception {
+    PhoenixMetadata.put(WATERMARK_KEY, watermark.toString());
+  }
+
+  private static List<Attachment> getAttachments(Issue i) {
+    if (i.getAttachments() == null) return Lists.newArrayList();
+    return Lists.newArrayList(i.getAttachments());
+  }
+
+  private static List<Comment> getComments(Issue i) {
+    if (i.getComments() == null) return Lists.newArrayList();
+    return Lists.newArrayList(i.getComments());
   }
 
 }
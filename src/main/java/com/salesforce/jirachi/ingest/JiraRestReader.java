@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.atlassian.jira.rest.client.api.domain.SearchResult;
+import com.atlassian.jira.rest.client.internal.json.IssueJsonParser;
+import com.atlassian.jira.rest.client.internal.json.SearchResultJsonParser;
+
+/**
+ * Bare-bones client for the JIRA REST search and issue resources. 
+ * 
+ * JRJC's searchJql() always asks for the default (navigable) fields, which leaves out comments and 
+ * attachments, so we'd need a second getIssue() round trip per issue to get them. Instead we make the 
+ * requests ourselves, asking for those fields too, and hand the JSON back to JRJC's parsers.
+ * 
+ * Requests go through an AdaptiveLimiter, which finds out how many concurrent requests the server is happy 
+ * with. Throttled requests (429, 503), other 5xx responses and I/O failures are retried, up to 
+ * jirachi.fetch.maxRetries times, after a jittered exponential backoff, or after the server's Retry-After.
+ */
+public class JiraRestReader {
+
+  /**
+   * Everything the default search returns, plus the (non-navigable) comment and attachment fields
+   */
+  static final String SEARCH_FIELDS = "*navigable,comment,attachment";
+
+  private static int maxConcurrency = Integer.getInteger("jirachi.fetch.concurrency", 4);
+  private static int maxRetries = Integer.getInteger("jirachi.fetch.maxRetries", 8);
+  private static int backoffMillis = Integer.getInteger("jirachi.fetch.backoffMillis", 500);
+  private static int maxBackoffMillis = Integer.getInteger("jirachi.fetch.maxBackoffMillis", 60000);
+  private static int timeoutMillis = Integer.getInteger("jirachi.fetch.timeoutMillis", 120000);
+  /**
+   * How many times slower than usual a request can be before we take it as a sign of an overloaded server
+   */
+  private static double latencyTolerance = Double.parseDouble(System.getProperty("jirachi.fetch.latencyTolerance", "3"));
+
+  private static final Random random = new Random();
+
+  private final String baseUrl;
+  private final AdaptiveLimiter limiter;
+  private final int retries;
+  private final long backoff;
+  private final long maxBackoff;
+
+  public JiraRestReader(String baseUrl) {
+    // start with one request at a time, and let the limiter work its way up
+    this(baseUrl, new AdaptiveLimiter(1, maxConcurrency, latencyTolerance), maxRetries, backoffMillis, maxBackoffMillis);
+  }
+
+  JiraRestReader(String baseUrl, AdaptiveLimiter limiter, int retries, long backoff, long maxBackoff) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.limiter = limiter;
+    this.retries = retries;
+    this.backoff = backoff;
+    this.maxBackoff = maxBackoff;
+  }
+
+  /**
+   * The number of issues the query matches
+   */
+  public int count(String jql) throws Exception {
+    return get("rest/api/2/search?jql=" + URLEncoder.encode(jql, "UTF-8") + "&maxResults=0", "rest.count").getInt("total");
+  }
+
+  /**
+   * The value of one field of the first issue the query returns, or null if it returns nothing
+   */
+  public String firstValue(String jql, String field) throws Exception {
+    JSONObject page = get("rest/api/2/search?jql=" + URLEncoder.encode(jql, "UTF-8") + 
+        "&maxResults=1&fields=" + URLEncoder.encode(field, "UTF-8"), "rest.count");
+    JSONArray issues = page.getJSONArray("issues");
+    if (issues.length() == 0) return null;
+    return issues.getJSONObject(0).getJSONObject("fields").optString(field, null);
+  }
+
+  /**
+   * One page of search results, with comments and attachments embedded in each issue
+   */
+  public JSONObject search(String jql, int startAt, int maxResults) throws Exception {
+    return get("rest/api/2/search?jql=" + URLEncoder.encode(jql, "UTF-8") +
+        "&startAt=" + startAt + 
+        "&maxResults=" + maxResults + 
+        "&fields=" + URLEncoder.encode(SEARCH_FIELDS, "UTF-8") + 
+        "&expand=names,schema", "rest.search");
+  }
+
+  /**
+   * A single issue, with all of its fields
+   */
+  public JSONObject getIssue(String key) throws Exception {
+    return get("rest/api/2/issue/" + URLEncoder.encode(key, "UTF-8") + "?expand=names,schema", "rest.issue");
+  }
+
+  /**
+   * One page of search results with just these fields, as the raw json (see StreamingFetch)
+   */
+  public byte[] searchBytes(String jql, int startAt, int maxResults, String fields) throws Exception {
+    return getBytes("rest/api/2/search?jql=" + URLEncoder.encode(jql, "UTF-8") +
+        "&startAt=" + startAt + 
+        "&maxResults=" + maxResults + 
+        "&fields=" + URLEncoder.encode(fields, "UTF-8"), "rest.search");
+  }
+
+  /**
+   * A single issue with just these fields, as the raw json
+   */
+  public byte[] getIssueBytes(String key, String fields) throws Exception {
+    return getBytes("rest/api/2/issue/" + URLEncoder.encode(key, "UTF-8") + 
+        "?fields=" + URLEncoder.encode(fields, "UTF-8"), "rest.issue");
+  }
+
+  public static SearchResult parseSearch(JSONObject json) throws JSONException {
+    return new SearchResultJsonParser().parse(json);
+  }
+
+  public static Issue parseIssue(JSONObject json) throws JSONException {
+    return new IssueJsonParser().parse(json);
+  }
+
+  /**
+   * Does this issue json carry fewer comments than the issue really has? JIRA caps the number of comments
+   * embedded in a search result, and says how many there are in total.
+   */
+  public static boolean hasTruncatedComments(JSONObject issueJson) throws JSONException {
+    JSONObject comment = issueJson.getJSONObject("fields").optJSONObject("comment");
+    if (comment == null || comment.optJSONArray("comments") == null) return false;
+    return comment.getJSONArray("comments").length() < comment.optInt("total", 0);
+  }
+
+  private JSONObject get(String resource, String metric) throws Exception {
+    return new JSONObject(new String(getBytes(resource, metric), "UTF-8"));
+  }
+
+  /**
+   * GET a resource, retrying as needed. Successful requests are timed (through to the last byte) in the 
+   * named histogram, which is also the kind of request as far as the limiter's concerned. Responses are
+   * gzipped if the server will; the bytes counted are the ones on the wire. A body that won't gunzip is
+   * an I/O failure like any other, and the ticket is handed back exactly once whatever happens.
+   */
+  private byte[] getBytes(String resource, String metric) throws Exception {
+    URL url = new URL(baseUrl + resource);
+    for (int attempt = 0; ; attempt++) {
+      if (attempt > 0) ImportMetrics.count("rest.retries", 1);
+      long ticket = limiter.acquire();
+      boolean released = false;
+      long start = System.nanoTime();
+      HttpURLConnection conn;
+      int status;
+      try {
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_OK) {
+          byte[] body = readBody(conn);
+          long nanos = System.nanoTime() - start;
+          // decode before telling the limiter, so a corrupt body is only released as a failure
+          byte[] json = "gzip".equalsIgnoreCase(conn.getContentEncoding()) ? gunzip(body) : body;
+          released = true;
+          limiter.success(ticket, metric, nanos);
+          ImportMetrics.histogram(metric).record(nanos);
+          ImportMetrics.count(ImportMetrics.REST_BYTES, body.length);
+          return json;
+        }
+      } catch (RuntimeException ex) {
+        if (!released) limiter.failed(ticket);
+        throw ex;
+      } catch (IOException ex) {
+        limiter.failed(ticket);
+        ImportMetrics.count("rest.errors", 1);
+        if (attempt >= retries) throw ex;
+        System.out.println("Retrying " + url + " after " + ex);
+        Thread.sleep(backoffMillis(attempt, backoff, maxBackoff));
+        continue;
+      }
+      discardError(conn);
+      long retryAfter = 0;
+      if (status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE) {
+        retryAfter = retryAfterMillis(conn.getHeaderField("Retry-After"), System.currentTimeMillis());
+        limiter.throttled(ticket, retryAfter);
+        ImportMetrics.count("rest.throttled", 1);
+      } else {
+        limiter.failed(ticket);
+        ImportMetrics.count("rest.errors", 1);
+      }
+      if (!isRetryable(status) || attempt >= retries) {
+        throw new IOException("HTTP " + status + " from " + url + (attempt > 0 ? " (after " + attempt + " retries)" : ""));
+      }
+      // the limiter holds everyone back until a Retry-After is up; just spread out the stampede after it
+      Thread.sleep(retryAfter > 0 ? backoffMillis(0, backoff, maxBackoff) : backoffMillis(attempt, backoff, maxBackoff));
+    }
+  }
+
+  static boolean isRetryable(int status) {
+    return status == 429 || status == HttpURLConnection.HTTP_INTERNAL_ERROR || 
+        status == HttpURLConnection.HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_UNAVAILABLE || 
+        status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+  }
+
+  /**
+   * "Full jitter" exponential backoff: anywhere from zero to base * 2^attempt (capped at max), so retries 
+   * from concurrent requests don't all land together
+   */
+  static long backoffMillis(int attempt, long base, long max) {
+    long ceiling = attempt >= 30 ? max : Math.min(max, base << attempt);
+    return (long) (random.nextDouble() * ceiling);
+  }
+
+  /**
+   * A Retry-After header (either delay-seconds or an HTTP date) as a delay from now, or 0 if there isn't 
+   * a usable one
+   */
+  static long retryAfterMillis(String retryAfter, long now) {
+    if (retryAfter == null) return 0;
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000);
+    } catch (NumberFormatException notSeconds) {
+      try {
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        return Math.max(0, httpDate.parse(retryAfter).getTime() - now);
+      } catch (java.text.ParseException notDate) {
+        return 0;
+      }
+    }
+  }
+
+  private static byte[] readBody(HttpURLConnection conn) throws IOException {
+    InputStream in = conn.getInputStream();
+    try {
+      return readFully(in);
+    } finally {
+      in.close(); // but don't disconnect, so the connection can be kept alive and reused
+    }
+  }
+
+  /**
+   * Read what's left of an error response, so the connection can still be reused
+   */
+  private static void discardError(HttpURLConnection conn) {
+    InputStream err = conn.getErrorStream();
+    if (err == null) return;
+    try {
+      try {
+        readFully(err);
+      } finally {
+        err.close();
+      }
+    } catch (IOException ignored) {
+      conn.disconnect();
+    }
+  }
+
+  static byte[] gunzip(byte[] body) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    try {
+      return readFully(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
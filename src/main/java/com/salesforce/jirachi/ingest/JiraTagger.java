@@ -29,37 +29,78 @@ package com.salesforce.jirachi.ingest;
 
 import java.io.File;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 
 /**
- * Add search-term-based "tags" to the issue table (each as a column). Each search term is evaluated as
+ * Add search-term-based "tags" to the issue table (each as a column). Each search term is evaluated like
  * a LIKE clause against the summary field of the jira_issue table (case insensitive), and any records that 
- * match have 'is{tagName}' set to 'T'.
+ * match have 'is{tagName}' set to 'T'. All the tags are evaluated together by a TagMatcher, in one pass 
+ * over the summaries.
+ * 
+ * New issues are tagged as PhoenixJiraPersister writes them (see tagValues()); addTags() is only needed
+ * to re-tag what's already in the table. With the FullTextIndex on, addTags() only reads the summaries
+ * that the index says could match, instead of all of them.
+ * 
+ * A fingerprint of each tag's rules is kept in PhoenixMetadata, so that when include.json or exclude.json
+ * change (at startup, or when reloadIfChanged() notices), syncRules() adds columns for new tags and retags
+ * only the tags whose rules changed, rather than everything.
  * 
  * TODO: Why isn't it a BOOLEAN type? Because selecting that type in Squirrel client gives errors.  
  */
 public class JiraTagger {
 
+  static final String INCLUDE_FILE = "include.json";
+  static final String EXCLUDE_FILE = "exclude.json";
+  /**
+   * PhoenixMetadata key prefix for the fingerprint of each tag's rules, as JIRA_ISSUE was last tagged with
+   */
+  static final String RULES_KEY = "tagger.rules.";
+  static final String TAGS_KEY = "tagger.tags";
+
   /**
    * Strings to search on in summaries to apply tags. 
-   * Limited wildcarding is allowed (% for any characters, . for one character), per SQL syntax.
+   * Limited wildcarding is allowed (% for any characters, _ for one character), per SQL syntax.
    */
-  static Map<String,List<String>> tags = loadTags("include.json");
+  static volatile Map<String,List<String>> tags = loadTags(INCLUDE_FILE);
   /**
    * Strings to search on in summaries to remove tags.
-   * Limited wildcarding is allowed (% for any characters, . for one character), per SQL syntax.
+   * Limited wildcarding is allowed (% for any characters, _ for one character), per SQL syntax.
+   */
+  static volatile Map<String,List<String>> tagExclusions = loadTags(EXCLUDE_FILE);
+
+  static volatile TagMatcher matcher = new TagMatcher(tags, tagExclusions);
+
+  private static final int CANDIDATES_PER_QUERY = 500;
+
+  /**
+   * ImportMetrics counter names, in getTagNames() order
    */
-  static Map<String,List<String>> tagExclusions = loadTags("exclude.json");
+  private static volatile String[] tagCounters = tagCounters(matcher.getTagNames());
+
+  /**
+   * When the rule files were last read
+   */
+  private static long rulesModified = rulesModified();
   
   /**
    * Get a list of all the tag names, to be used in the create table statement
@@ -70,35 +111,364 @@ public class JiraTagger {
   }
 
   /**
-   * Update the database to set each tag, based on the search terms.
+   * Update the database to set each tag, based on the search terms. The summaries are scanned once, and
+   * each issue whose tags come out differently from what's stored gets all of its tag columns written in a 
+   * single UPSERT (so tags it no longer matches are cleared, as they are when it's tagged on the way in).
+   * With the FullTextIndex, only the issues it says could match and the ones tagged now are read, though in
+   * the classic layout finding the tagged ones is still a full scan (see addTagged()).
    */
   public static void addTags() throws Exception {
+    if (tags.isEmpty()) return;
+    String[] columns = new String[tags.size() + 1];
+    columns[0] = "id";
+    System.arraycopy(matcher.getTagNames(), 0, columns, 1, tags.size());
+    String tagColumns = Joiner.on(", ").join(matcher.getTagNames());
+
+    // what the retagged issues were, and are now, for the rollups
+    Rollups.Deltas deltas = Rollups.isEnabled() ? new Rollups.Deltas() : null;
+    String select = "SELECT id, summary, " + tagColumns + (deltas == null ? "" : ", " + Rollups.factColumns()) + 
+        " FROM JIRA_ISSUE";
     Connection conn = PhoenixUtils.getPhoenixConnection();
+    if (deltas != null) Rollups.lock.lock(); // the old facts stay as read until the deltas are applied
+    try {
+      if (Dictionary.isEnabled()) PhoenixJiraPersister.ensureSchema(conn); // reads the dictionary in
+      conn.setAutoCommit(false);
+      Set<Long> candidates = FullTextIndex.isEnabled() ? candidates(conn, matcher) : null;
+      List<Object[]> rows = Lists.newArrayList();
+      ImportMetrics.Histogram scanTimes = ImportMetrics.histogram("tagger.scan");
+      Statement scan = conn.createStatement();
+      try {
+        if (candidates == null) {
+          tagRows(scan.executeQuery(select), scanTimes, columns, rows, deltas);
+        } else {
+          // the issues that could match now, and the ones with any tag now (which may lose it)
+          addTagged(conn, Arrays.asList(matcher.getTagNames()), candidates);
+          ImportMetrics.set("tagger.candidates", candidates.size());
+          for (List<Long> ids : Iterables.partition(candidates, CANDIDATES_PER_QUERY)) {
+            StringBuilder sql = new StringBuilder(select).append(" WHERE id IN (");
+            for (int i = 0; i < ids.size(); i++) {
+              sql.append(i == 0 ? "?" : ", ?");
+            }
+            PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.append(")").toString());
+            PhoenixUtils.bind(stmt, ids.toArray());
+            tagRows(stmt.executeQuery(), scanTimes, columns, rows, deltas);
+          }
+        }
+      } finally {
+        scan.close();
+      }
+      PhoenixJiraPersister.upsert(conn, "JIRA_ISSUE", columns, rows);
+      if (PhoenixJiraPersister.isScanLayout()) IssueIndexes.rebuildTags(conn, Arrays.asList(matcher.getTagNames()));
+      if (deltas != null) {
+        Rollups.createTable(conn);
+        Rollups.apply(conn, deltas);
+      }
+    } finally {
+      if (deltas != null) Rollups.lock.unlock();
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  /**
+   * Add a row (id, then the tags) to 'rows' for each (id, summary, tags[, rollup facts]) result whose tags 
+   * come out differently now, and if there are rollup deltas to keep, move the issue from its old tags to 
+   * its new ones
+   */
+  private static void tagRows(ResultSet rs, ImportMetrics.Histogram scanTimes, String[] columns, List<Object[]> rows,
+      Rollups.Deltas deltas) throws Exception {
+    int n = columns.length - 1;
+    try {
+      while (next(rs, scanTimes)) {
+        Object[] tagValues = tagValues(rs.getString(2));
+        if (tagValues == null) tagValues = new Object[n];
+        boolean differs = false;
+        for (int t = 0; t < n; t++) {
+          if ((tagValues[t] != null) != rs.getBoolean(3 + t)) differs = true;
+        }
+        if (!differs) continue;
+        Object[] row = new Object[columns.length];
+        row[0] = rs.getLong(1);
+        System.arraycopy(tagValues, 0, row, 1, tagValues.length);
+        rows.add(row);
+        if (deltas != null) {
+          Object[] facts = Rollups.facts(rs, 3 + n);
+          deltas.add(facts, -1);
+          System.arraycopy(tagValues, 0, facts, Rollups.FACT_COLUMNS.length, tagValues.length);
+          deltas.add(facts, 1);
+        }
+      }
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * The ids of the only issues that could get a tag, from the FullTextIndex, or null if it can't narrow 
+   * them down. For a summary to be LIKE '%{matcher}%', each run of letters and digits in the matcher has to 
+   * be inside one of the summary's terms, so the issues with a term containing the longest run of any 
+   * include matcher are all the issues that can match (and then some).
+   */
+  private static Set<Long> candidates(Connection conn, TagMatcher matcher) throws Exception {
+    List<String> runs = Lists.newArrayList();
+    for (String key : matcher.getIncludeKeys()) {
+      String longest = "";
+      for (String term : FullTextIndex.tokens(key)) {
+        if (term.length() > longest.length()) longest = term;
+      }
+      if (longest.length() == 0) return null; // nothing to look up, so everything's a candidate
+      runs.add(longest);
+    }
+    return FullTextIndex.idsContaining(conn, runs, FullTextIndex.Field.SUMMARY);
+  }
 
+  /**
+   * Add the ids of the issues that have any of the tags now to 'ids'. In the scan layout they're read from
+   * JIRA_ISSUE_BY_TAG (which leaves out issues without a creationDate, and JIRA always sets one); the 
+   * classic layout has nothing to look them up in, so it's a full scan of JIRA_ISSUE.
+   */
+  private static void addTagged(Connection conn, Collection<String> tagNames, Set<Long> ids) throws Exception {
+    if (PhoenixJiraPersister.isScanLayout()) {
+      ids.addAll(IssueIndexes.taggedIds(conn, tagNames));
+      return;
+    }
+    Statement stmt = conn.createStatement();
     try {
-      for (String tagName : tags.keySet()){
-        List<String> searchTerms = tags.get(tagName);
-        StringBuilder b = new StringBuilder("UPSERT INTO Jira_Issue (id, ").append(tagName);
-        b.append(") SELECT id, true FROM Jira_Issue WHERE (");
-        // apply tags
-        for (String term : searchTerms) {
-          b.append("lower(summary) like '%").append(term.toLowerCase()).append("%' OR ");
+      ResultSet rs = stmt.executeQuery("SELECT id FROM JIRA_ISSUE WHERE " + 
+          Joiner.on(" = true OR ").join(tagNames) + " = true");
+      while (rs.next()) {
+        ids.add(rs.getLong(1));
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Bring JIRA_ISSUE up to date with the rules in include.json and exclude.json: add a column for each new 
+   * tag, and retag() the tags whose rules have changed since it was last tagged (by the fingerprints kept in
+   * PhoenixMetadata). The tags whose rules haven't changed are left alone. The first time through there's
+   * nothing to compare with, so the rules are just recorded (use jirachi.retag for a full retag).
+   */
+  public static void syncRules() throws Exception {
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(conn);
+      PhoenixJiraPersister.addTagColumns(conn); // for rules reloaded since ensureSchema()
+      boolean first = true;
+      List<String> changed = Lists.newArrayList();
+      for (String tagName : matcher.getTagNames()) {
+        String stored = PhoenixMetadata.get(conn, RULES_KEY + tagName);
+        if (stored != null) first = false;
+        if (!rulesFingerprint(tagName).equals(stored)) changed.add(tagName);
+      }
+      if (!first && !changed.isEmpty()) {
+        System.out.println("Retagging " + changed + ", whose rules have changed");
+        long start = System.nanoTime();
+        Rollups.lock.lock(); // the old facts stay as read until the deltas are applied
+        try {
+          retag(conn, changed);
+        } finally {
+          Rollups.lock.unlock();
+        }
+        ImportMetrics.time("tagger.retag", start);
+      }
+      for (String tagName : changed) {
+        PhoenixMetadata.put(conn, RULES_KEY + tagName, rulesFingerprint(tagName));
+      }
+      // forget the rules of tags that have been dropped, so they're retagged in full if they come back
+      String synced = PhoenixMetadata.get(conn, TAGS_KEY);
+      if (synced != null) {
+        for (String tagName : Splitter.on(',').split(synced)) {
+          if (!tags.containsKey(tagName)) PhoenixMetadata.put(conn, RULES_KEY + tagName, null);
         }
-        b.append(" 1 = 0)"); // cap it off series of ORs with expression that always evaluates to false 
-        // apply tag exclusions
-        List<String> exclusionTerms = tagExclusions.get(tagName);
-        if (exclusionTerms != null){
-          b.append(" AND (");
-          for (String exclusionTerm : exclusionTerms){
-            b.append("lower(summary) not like '%").append(exclusionTerm.toLowerCase()).append("%' AND ");
+      }
+      PhoenixMetadata.put(conn, TAGS_KEY, Joiner.on(',').join(matcher.getTagNames()));
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  /**
+   * Re-read include.json and exclude.json, and syncRules(), if either has changed since they were read.
+   * Call it where nothing is being tagged or persisted: rows already tagged with the old rules would 
+   * have the wrong number of tag columns.
+   * @return whether they'd changed
+   */
+  public static synchronized boolean reloadIfChanged() throws Exception {
+    long modified = rulesModified();
+    if (modified == rulesModified) return false;
+    reload();
+    rulesModified = modified;
+    syncRules();
+    return true;
+  }
+
+  static synchronized void reload() {
+    Map<String,List<String>> include = loadTags(INCLUDE_FILE);
+    Map<String,List<String>> exclude = loadTags(EXCLUDE_FILE);
+    TagMatcher m = new TagMatcher(include, exclude);
+    tags = include;
+    tagExclusions = exclude;
+    tagCounters = tagCounters(m.getTagNames());
+    matcher = m;
+  }
+
+  private static long rulesModified() {
+    return Math.max(new File(INCLUDE_FILE).lastModified(), new File(EXCLUDE_FILE).lastModified());
+  }
+
+  /**
+   * A hash of a tag's include and exclude matchers
+   */
+  static String rulesFingerprint(String tagName) {
+    return rulesFingerprint(tags.get(tagName), tagExclusions.get(tagName));
+  }
+
+  static String rulesFingerprint(List<String> include, List<String> exclude) {
+    StringBuilder rules = new StringBuilder();
+    for (String term : include) {
+      rules.append(term).append('\n');
+    }
+    rules.append('\u0000');
+    if (exclude != null) {
+      for (String term : exclude) {
+        rules.append(term).append('\n');
+      }
+    }
+    return Hashing.md5().hashString(rules, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * Re-apply just these tags to what's in JIRA_ISSUE: set where they match now, cleared where they no 
+   * longer do. The other tag columns aren't read or written, and only the issues whose tags actually 
+   * change are written (along with their index and rollup rows).
+   */
+  static void retag(Connection conn, List<String> tagNames) throws Exception {
+    Map<String,List<String>> include = Maps.newLinkedHashMap();
+    Map<String,List<String>> exclude = Maps.newHashMap();
+    for (String tagName : tagNames) {
+      include.put(tagName, tags.get(tagName));
+      if (tagExclusions.containsKey(tagName)) exclude.put(tagName, tagExclusions.get(tagName));
+    }
+    TagMatcher changed = new TagMatcher(include, exclude);
+    String[] columns = new String[tagNames.size() + 1];
+    columns[0] = "id";
+    System.arraycopy(changed.getTagNames(), 0, columns, 1, tagNames.size());
+    // where each of them is in the rollup facts
+    List<String> all = Arrays.asList(matcher.getTagNames());
+    int[] factPositions = new int[tagNames.size()];
+    for (int t = 0; t < factPositions.length; t++) {
+      factPositions[t] = Rollups.FACT_COLUMNS.length + all.indexOf(columns[t + 1]);
+    }
+
+    Rollups.Deltas deltas = Rollups.isEnabled() ? new Rollups.Deltas() : null;
+    String tagColumns = Joiner.on(", ").join(tagNames);
+    String select = "SELECT id, summary, " + tagColumns + (deltas == null ? "" : ", " + Rollups.factColumns()) + 
+        " FROM JIRA_ISSUE";
+    Set<Long> candidates = FullTextIndex.isEnabled() ? candidates(conn, changed) : null;
+    conn.setAutoCommit(false);
+    List<Object[]> rows = Lists.newArrayList();
+    Statement scan = conn.createStatement();
+    try {
+      if (candidates == null) {
+        retagRows(scan.executeQuery(select), changed, factPositions, rows, deltas);
+      } else {
+        // the issues that could match now, and the ones that have the tags now (which may lose them)
+        addTagged(conn, tagNames, candidates);
+        for (List<Long> ids : Iterables.partition(candidates, CANDIDATES_PER_QUERY)) {
+          StringBuilder sql = new StringBuilder(select).append(" WHERE id IN (");
+          for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+          }
+          PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.append(")").toString());
+          PhoenixUtils.bind(stmt, ids.toArray());
+          retagRows(stmt.executeQuery(), changed, factPositions, rows, deltas);
+        }
+      }
+    } finally {
+      scan.close();
+    }
+    PhoenixJiraPersister.upsert(conn, "JIRA_ISSUE", columns, rows);
+    ImportMetrics.count("tagger.retagged", rows.size());
+    if (PhoenixJiraPersister.isScanLayout()) IssueIndexes.rebuildTags(conn, tagNames);
+    if (deltas != null) {
+      Rollups.createTable(conn);
+      Rollups.apply(conn, deltas);
+    }
+  }
+
+  /**
+   * Add a row (id, then the changed tags) to 'rows' for each (id, summary, changed tags[, rollup facts])
+   * result whose changed tags come out differently now
+   */
+  private static void retagRows(ResultSet rs, TagMatcher changed, int[] factPositions, List<Object[]> rows,
+      Rollups.Deltas deltas) throws Exception {
+    int n = factPositions.length;
+    try {
+      while (rs.next()) {
+        boolean[] matches = changed.match(rs.getString(2));
+        Object[] row = new Object[n + 1];
+        row[0] = rs.getLong(1);
+        boolean differs = false;
+        for (int t = 0; t < n; t++) {
+          if (matches[t]) row[t + 1] = Boolean.TRUE;
+          if (matches[t] != rs.getBoolean(3 + t)) differs = true;
+        }
+        if (!differs) continue;
+        rows.add(row);
+        if (deltas != null) {
+          Object[] facts = Rollups.facts(rs, 3 + n);
+          deltas.add(facts, -1);
+          for (int t = 0; t < n; t++) {
+            facts[factPositions[t]] = row[t + 1];
           }
-          b.append(" 1 = 1)"); // cap off series of ANDs with expression that always evaluates to true
+          deltas.add(facts, 1);
         }
-        PhoenixUtils.execute(conn, b.toString());
       }
     } finally {
-      conn.close();
+      rs.close();
+    }
+  }
+
+  /**
+   * The tag column values for a summary, in getTagNames() order: TRUE where the tag applies, null where 
+   * it doesn't. Returns null if no tag applies at all.
+   * 
+   * All the tags are matched in one pass, so there's no time per tag to speak of; ImportMetrics gets the
+   * time per summary, and a count of hits per tag.
+   */
+  static Object[] tagValues(String summary) {
+    long start = System.nanoTime();
+    boolean[] matches = matcher.match(summary);
+    ImportMetrics.time("tagger.match", start);
+    Object[] values = new Object[matches.length];
+    boolean any = false;
+    for (int t = 0; t < matches.length; t++) {
+      if (matches[t]) {
+        values[t] = Boolean.TRUE;
+        any = true;
+        ImportMetrics.count(tagCounters[t], 1);
+      }
+    }
+    return any ? values : null;
+  }
+
+  /**
+   * rs.next(), timed
+   */
+  private static boolean next(ResultSet rs, ImportMetrics.Histogram times) throws Exception {
+    long start = System.nanoTime();
+    boolean next = rs.next();
+    times.record(System.nanoTime() - start);
+    return next;
+  }
+
+  private static String[] tagCounters(String[] tagNames) {
+    String[] counters = new String[tagNames.length];
+    for (int t = 0; t < tagNames.length; t++) {
+      counters[t] = "tagger.tag." + tagNames[t];
     }
+    return counters;
   }
 
   /**
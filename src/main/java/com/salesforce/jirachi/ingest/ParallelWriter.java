@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Writes each batch over jirachi.phoenix.writers connections at once, rather than one row after another
+ * on one, so the write rate isn't bounded by a single client's round trips to the region servers.
+ * 
+ * Each table's rows are split by a hash of their row key, so a row always goes to the same writer, and 
+ * batches that touch the same row are applied in the order they were written. Every writer is a thread 
+ * with a connection of its own (not from the pool, so writers are never waiting on the callers that hold 
+ * pooled ones), upserting and committing its share like PhoenixJiraPersister.upsert(). write() returns 
+ * once every writer has committed its share of the batch, and fails if any of them did.
+ */
+class ParallelWriter {
+
+  private static int writers = Integer.getInteger("jirachi.phoenix.writers", 1);
+  private static ParallelWriter instance;
+
+  /**
+   * One table's rows, and which of their columns to partition them on
+   */
+  static class TableRows {
+    final String table;
+    final String[] columns;
+    final List<Object[]> rows;
+    final int keyColumn;
+
+    TableRows(String table, String[] columns, List<Object[]> rows, int keyColumn) {
+      this.table = table;
+      this.columns = columns;
+      this.rows = rows;
+      this.keyColumn = keyColumn;
+    }
+  }
+
+  private final ExecutorService[] threads;
+  /**
+   * Writer n's connection, only ever used on writer n's thread
+   */
+  private final Connection[] connections;
+
+  static boolean isEnabled() {
+    return writers > 1;
+  }
+
+  /**
+   * The writers for this run, started on first use
+   */
+  static synchronized ParallelWriter get() {
+    if (instance == null) instance = new ParallelWriter(writers);
+    return instance;
+  }
+
+  /**
+   * Close the writers' connections (see PhoenixUtils.closeConnections())
+   */
+  static synchronized void close() throws InterruptedException {
+    if (instance != null) instance.shutdown();
+    instance = null;
+  }
+
+  ParallelWriter(int n) {
+    threads = new ExecutorService[n];
+    connections = new Connection[n];
+    for (int w = 0; w < n; w++) {
+      // daemon threads, so idle writers don't keep the JVM up
+      threads[w] = Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("phoenix-writer-" + w).build());
+    }
+  }
+
+  /**
+   * Write the rows for each table, in the order given, waiting until all of them are committed
+   */
+  void write(TableRows... tables) throws Exception {
+    final int n = threads.length;
+    final List<List<List<Object[]>>> parts = Lists.newArrayListWithCapacity(tables.length);
+    for (TableRows t : tables) {
+      parts.add(partition(t.rows, t.keyColumn, n));
+    }
+    List<Integer> busy = Lists.newArrayList();
+    for (int w = 0; w < n; w++) {
+      for (List<List<Object[]>> p : parts) {
+        if (!p.get(w).isEmpty()) {
+          busy.add(w);
+          break;
+        }
+      }
+    }
+    final CountDownLatch committed = new CountDownLatch(busy.size());
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final TableRows[] ts = tables;
+    for (final int w : busy) {
+      threads[w].execute(new Runnable() {
+        public void run() {
+          long start = System.nanoTime();
+          try {
+            Connection conn = connection(w);
+            for (int t = 0; t < ts.length; t++) {
+              PhoenixJiraPersister.upsert(conn, ts[t].table, ts[t].columns, parts.get(t).get(w));
+            }
+          } catch (Exception ex) {
+            failure.compareAndSet(null, ex);
+            reset(w);
+          } finally {
+            ImportMetrics.time("phoenix.writer", start);
+            committed.countDown();
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    committed.await();
+    ImportMetrics.time("phoenix.writers.wait", start);
+    if (failure.get() != null) throw failure.get();
+  }
+
+  /**
+   * Split rows n ways by the hash of one column, keeping their order within each part
+   */
+  static List<List<Object[]>> partition(List<Object[]> rows, int keyColumn, int n) {
+    List<List<Object[]>> parts = Lists.newArrayListWithCapacity(n);
+    for (int p = 0; p < n; p++) {
+      parts.add(Lists.<Object[]>newArrayList());
+    }
+    for (Object[] row : rows) {
+      Object key = row[keyColumn];
+      int hash = key == null ? 0 : key.hashCode();
+      parts.get(((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % n).add(row);
+    }
+    return parts;
+  }
+
+  private Connection connection(int w) throws Exception {
+    if (connections[w] == null || connections[w].isClosed()) {
+      connections[w] = PhoenixUtils.newConnection();
+      connections[w].setAutoCommit(false);
+    }
+    return connections[w];
+  }
+
+  /**
+   * Drop a connection that failed, uncommitted rows and all; the next batch gets a new one
+   */
+  private void reset(int w) {
+    if (connections[w] != null) PhoenixUtils.close(connections[w]);
+    connections[w] = null;
+  }
+
+  /**
+   * Close the connections and stop the threads, once the writes already handed over are done
+   */
+  void shutdown() throws InterruptedException {
+    for (int w = 0; w < threads.length; w++) {
+      final int writer = w;
+      threads[w].execute(new Runnable() {
+        public void run() {
+          reset(writer);
+        }
+      });
+      threads[w].shutdown();
+    }
+    for (ExecutorService thread : threads) {
+      thread.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+}
@@ -28,14 +28,15 @@
 package com.salesforce.jirachi.ingest;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
 import com.atlassian.jira.rest.client.api.NamedEntity;
 import com.atlassian.jira.rest.client.api.domain.Attachment;
@@ -48,188 +49,392 @@ import com.atlassian.jira.rest.client.api.domain.BasicWatchers;
 import com.atlassian.jira.rest.client.api.domain.Comment;
 import com.atlassian.jira.rest.client.api.domain.Issue;
 import com.atlassian.jira.rest.client.api.domain.User;
+import com.google.common.collect.Lists;
 import com.salesforce.jirachi.ingest.JiraFetcher.JiraSet;
 
 /**
  * Dump a map of JIRA issues into Phoenix
+ * 
+ * Rows are written with one prepared UPSERT per table and typed bind parameters, and committed every
+ * jirachi.phoenix.batchSize rows, so Phoenix can ship the mutations to HBase in bulk. With 
+ * jirachi.phoenix.writers set above 1, each batch is split across that many connections (see ParallelWriter).
+ * 
+ * Batches can be handed over as a JiraSet, or already flattened into a RowBatch (see rows()). With
+ * jirachi.fingerprints=true, rows that are the same as what's in the tables are skipped (see Fingerprints).
+ * 
+ * Issues are tagged on the way in: the JiraTagger tag columns are computed from the summary and written 
+ * in the same UPSERT as the rest of the issue row.
+ * 
+ * The tables come in two layouts (jirachi.phoenix.layout). "classic" is the original one. "scan" salts every 
+ * table into jirachi.phoenix.saltBuckets buckets, so the ever-increasing ids don't all land in one region, 
+ * keys comments by (issue_key, comment_id), so an issue's comments are read with one short range scan, and 
+ * keeps the IssueIndexes up to date alongside JIRA_ISSUE. SchemaMigration converts classic tables to scan.
  */
 public class PhoenixJiraPersister  {
+
+  static final String[] ISSUE_COLUMNS = {
+    "id", 
+    "issue_key", 
+    "summary", 
+    "description", 
+    "assignee", 
+    "reporter", 
+    "creationDate", 
+    "updateDate", 
+    "issueType", 
+    "priority", 
+    "resolution", 
+    "status", 
+    "watchers", 
+    "numAffectedVersions", 
+    "fixVersions", 
+    "numAttachments", 
+    "numChangelogs", 
+    "numComments", 
+    "numIssueLinks", 
+    "numLabels", 
+    "numSubtasks", 
+    "numWorkLogs" };
+
+  static final String[] COMMENT_COLUMNS = {
+    "comment_id", 
+    "issue_key", 
+    "author", 
+    "body", 
+    "creationDate" };
+
+  static final String[] ATTACHMENT_COLUMNS = {
+    "issue_key", 
+    "filename", 
+    "contentUri", 
+    "author", 
+    "mimeType", 
+    "size", 
+    "creationDate" };
+
+  private static int batchSize = Integer.getInteger("jirachi.phoenix.batchSize", 1000);
+  private static boolean schemaCreated = false;
+
+  static final String CLASSIC = "classic";
+  static final String SCAN = "scan";
+  /**
+   * JIRACHI_METADATA key for the layout the tables are in
+   */
+  static final String LAYOUT_KEY = "schema.layout";
+  private static String layout = System.getProperty("jirachi.phoenix.layout", CLASSIC);
+  private static int saltBuckets = Integer.getInteger("jirachi.phoenix.saltBuckets", 8);
   
+  /**
+   * Batches written straight into the tables with persist()
+   */
+  public static final JiraSink UPSERT = new JiraSink() {
+    public void persist(RowBatch rows) throws Exception {
+      PhoenixJiraPersister.persist(rows);
+    }
+
+    public void flush() {
+      // every batch is committed as it's written
+    }
+
+    public boolean isBuffered() {
+      return false;
+    }
+  };
+
   public static void persist(JiraSet js) throws Exception {
+    persist(rows(js));
+  }
+
+  public static void persist(RowBatch rows) throws Exception {
     Connection conn = PhoenixUtils.getPhoenixConnection();
     try {
-      createSchema(conn);
-      // push the comments into the comment table
-      for (Entry<String,List<Comment>> e : js.comments.entrySet()){
-        insertComments(e.getKey(), e.getValue(), conn);
+      ensureSchema(conn);
+      conn.setAutoCommit(false);
+      if (Fingerprints.isEnabled()) rows = Fingerprints.changed(conn, rows);
+      // dictionary codes for the issues and comments (any new ones are committed here, before they're used)
+      List<Object[]> comments = Dictionary.encode(conn, "JIRA_COMMENT", COMMENT_COLUMNS, rows.comments);
+      List<Object[]> issues = Dictionary.encode(conn, "JIRA_ISSUE", issueColumns(), rows.issues);
+      String[] commentColumns = Fingerprints.columns(Dictionary.columns("JIRA_COMMENT", COMMENT_COLUMNS));
+      String[] attachmentColumns = Fingerprints.columns(attachmentColumns());
+      String[] issueColumns = Fingerprints.columns(Dictionary.columns("JIRA_ISSUE", issueColumns()));
+      // the indexes and rollups need to see what the issues were before they're written
+      if (isScanLayout()) IssueIndexes.update(conn, rows.issues);
+      // and nothing else may change what the rollups saw until the deltas are applied
+      if (Rollups.isEnabled()) Rollups.lock.lock();
+      try {
+        Rollups.Deltas deltas = Rollups.isEnabled() ? Rollups.deltas(conn, rows.issues) : null;
+        if (ParallelWriter.isEnabled()) {
+          // all three tables at once, split by row key across the writers (comments and attachments by issue)
+          ParallelWriter.get().write(
+              new ParallelWriter.TableRows("JIRA_COMMENT", commentColumns, comments, 1),
+              new ParallelWriter.TableRows("JIRA_ATTACHMENT", attachmentColumns, rows.attachments, 0),
+              new ParallelWriter.TableRows("JIRA_ISSUE", issueColumns, issues, 0));
+        } else {
+          // push the comments into the comment table
+          upsert(conn, "JIRA_COMMENT", commentColumns, comments);
+          // push the attachments into the attachment table
+          upsert(conn, "JIRA_ATTACHMENT", attachmentColumns, rows.attachments);
+          // push the issues into the issue table
+          upsert(conn, "JIRA_ISSUE", issueColumns, issues);
+        }
+        // only counted once the issues are committed, so a batch that fails and is retried isn't counted twice
+        if (deltas != null) Rollups.apply(conn, deltas);
+      } finally {
+        if (Rollups.isEnabled()) Rollups.lock.unlock();
       }
-      // push the attachments into the attachment table
-      for (Entry<String,List<Attachment>> e : js.attachments.entrySet()){
-        insertAttachments(e.getKey(), e.getValue(), conn);
+      if (FullTextIndex.isEnabled()) FullTextIndex.update(conn, rows);
+      if (Fingerprints.isEnabled()) Fingerprints.written(rows);
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  /**
+   * Flatten a JiraSet into the rows for each table (tagging the issues as we go). If there's an 
+   * AttachmentStore, the attachment contents are downloaded into it too.
+   */
+  static RowBatch rows(JiraSet js) throws Exception {
+    List<Object[]> comments = Lists.newArrayList();
+    List<Object[]> attachments = Lists.newArrayList();
+    List<Object[]> issues = Lists.newArrayListWithCapacity(js.issues.size());
+    DateTime maxUpdated = null;
+    for (Entry<String,List<Comment>> e : js.comments.entrySet()){
+      for (Comment c : e.getValue()){
+        comments.add(commentValues(e.getKey(), c));
       }
-      // push the issues into the issue table
-      for (Issue i : js.issues.values()){
-        int numComments = js.comments.get(i.getKey()).size();
-        int numAttachments = js.attachments.get(i.getKey()).size();
-        insertIssue(i, numComments, numAttachments, conn);
+    }
+    for (Entry<String,List<Attachment>> e : js.attachments.entrySet()){
+      for (Attachment a : e.getValue()){
+        attachments.add(attachmentValues(e.getKey(), a));
       }
-    } finally {
-      conn.close();
     }
+    AttachmentStore store = AttachmentStore.get();
+    if (store != null && !attachments.isEmpty()) attachments = store.store(attachments);
+    for (Issue i : js.issues.values()){
+      int numComments = js.comments.get(i.getKey()).size();
+      int numAttachments = js.attachments.get(i.getKey()).size();
+      issues.add(withTags(issueValues(i, numComments, numAttachments), i.getSummary()));
+      DateTime updated = i.getUpdateDate();
+      if (updated != null && (maxUpdated == null || updated.isAfter(maxUpdated))) maxUpdated = updated;
+    }
+    return new RowBatch(issues, comments, attachments, maxUpdated);
   }
 
-  private static void insertAttachments(String key, List<Attachment> attachments, Connection conn) throws Exception {
-    for (Attachment a : attachments){
-      
-      StringBuilder upsert = new StringBuilder("UPSERT INTO JIRA_ATTACHMENT (")
-      .append("issue_key, ")
-      .append("filename, ")
-      .append("contentUri, ")
-      .append("author, ")
-      .append("mimeType, ")
-      .append("size, ")
-      .append("creationDate");
-      
-      upsert.append(") VALUES (")
-          .append(getString(key) + ", ")
-          .append(getString(a.getFilename()) + ", ")
-          .append(getString(a.getContentUri()) + ", ")
-          .append(getString(a.getAuthor()) + ", ")
-          .append(getString(a.getMimeType()) + ", ")
-          .append(a.getSize() + ", ")
-          .append(getNullableDate(a.getCreationDate()) + ")");
-      
-      PhoenixUtils.execute(conn, upsert.toString());
+  /**
+   * Write rows (in the order of the given columns) through a single prepared statement, committing as we go.
+   * Each row and each commit is timed, per table, in ImportMetrics.
+   */
+  static void upsert(Connection conn, String table, String[] columns, List<Object[]> rows) throws Exception {
+    if (rows.isEmpty()) return;
+    ImportMetrics.Histogram rowTimes = ImportMetrics.histogram("phoenix.upsert." + table);
+    ImportMetrics.Histogram commitTimes = ImportMetrics.histogram("phoenix.commit." + table);
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, PhoenixUtils.upsertSql(table, columns));
+    int uncommitted = 0;
+    for (Object[] row : rows) {
+      long start = System.nanoTime();
+      PhoenixUtils.bind(stmt, row);
+      stmt.execute();
+      rowTimes.record(System.nanoTime() - start);
+      if (++uncommitted >= batchSize) {
+        commit(conn, commitTimes);
+        uncommitted = 0;
+      }
     }
+    commit(conn, commitTimes);
   }
 
-  private static void insertComments(String key, List<Comment> comments, Connection conn) throws Exception {
-    for (Comment c : comments){
-      
-      StringBuilder upsert = new StringBuilder("UPSERT INTO JIRA_COMMENT (")
-      .append("comment_id, ")
-      .append("issue_key, ")
-      .append("author, ")
-      .append("body, ")
-      .append("creationDate");
-      
-      upsert.append(") VALUES (")
-          .append(getLong(c.getId()) + ", ")
-          .append(getString(key) + ", ")
-          .append(getString(c.getAuthor()) + ", ")
-          .append(getString(c.getBody()) + ", ")
-          .append(getNullableDate(c.getCreationDate()) + ")");
-      
-      PhoenixUtils.execute(conn, upsert.toString());
+  private static void commit(Connection conn, ImportMetrics.Histogram commitTimes) throws Exception {
+    long start = System.nanoTime();
+    conn.commit();
+    commitTimes.record(System.nanoTime() - start);
+  }
+
+  /**
+   * The issue columns, followed by a column per tag
+   */
+  static String[] issueColumns() {
+    Collection<String> tagNames = JiraTagger.getTagNames();
+    String[] columns = new String[ISSUE_COLUMNS.length + tagNames.size()];
+    System.arraycopy(ISSUE_COLUMNS, 0, columns, 0, ISSUE_COLUMNS.length);
+    int i = ISSUE_COLUMNS.length;
+    for (String tagName : tagNames) {
+      columns[i++] = tagName;
     }
+    return columns;
   }
 
-  private static void insertIssue(Issue issue, int numComments, int numAttachments, Connection conn) throws Exception {
-    StringBuilder upsert = new StringBuilder("UPSERT INTO JIRA_ISSUE (")
-    .append("id, ")
-    .append("issue_key, ")
-    .append("summary, ")
-    .append("description, ")
-    .append("assignee, ")
-    .append("reporter, ")
-    .append("creationDate, ")
-    .append("updateDate, ")
-    .append("issueType, ")
-    .append("priority, ")
-    .append("resolution, ")
-    .append("status, ")
-    .append("watchers, ")
-    .append("numAffectedVersions, ")
-    .append("fixVersions, ")
-    .append("numAttachments, ")
-    .append("numChangelogs, ")
-    .append("numComments, ")
-    .append("numIssueLinks, ")
-    .append("numLabels, ")
-    .append("numSubtasks, ")
-    .append("numWorkLogs");
-    
-    upsert.append(") VALUES (")
-        .append(getLong(issue.getId()) + ", ")
-        .append(getString(issue.getKey()) + ", ")
-        .append(getString(issue.getSummary()) + ", ")
-        .append(getString(issue.getDescription()) + ", ")
-        .append(getString(issue.getAssignee()) + ", ")
-        .append(getString(issue.getReporter()) + ", ")
-        .append(getNullableDate(issue.getCreationDate()) + ", ")
-        .append(getNullableDate(issue.getUpdateDate()) + ", ")
-        .append(getString(issue.getIssueType()) + ", ")
-        .append(getString(issue.getPriority()) + ", ")
-        .append(getString(issue.getResolution()) + ", ")
-        .append(getString(issue.getStatus()) + ", ")
-        .append(getInteger(issue.getWatchers()) + ", ")
-        .append(getCount(issue.getAffectedVersions()) + ", ")
-        .append(getCount(issue.getFixVersions()) + ", ")
-        .append(numAttachments + ", ")
-        .append(getCount(issue.getChangelog()) + ", ")
-        .append(numComments + ", ")
-        .append(getCount(issue.getIssueLinks()) + ", ")
-        .append(getCount(issue.getLabels()) + ", ")
-        .append(getCount(issue.getSubtasks()) + ", ")
-        .append(getCount(issue.getWorklogs()) + ")");
-    
-    PhoenixUtils.execute(conn, upsert.toString());
+  /**
+   * The attachment columns, plus the AttachmentStore ones if it's in use
+   */
+  static String[] attachmentColumns() {
+    if (!AttachmentStore.isEnabled()) return ATTACHMENT_COLUMNS;
+    String[] columns = Arrays.copyOf(ATTACHMENT_COLUMNS, ATTACHMENT_COLUMNS.length + AttachmentStore.COLUMNS.length);
+    System.arraycopy(AttachmentStore.COLUMNS, 0, columns, ATTACHMENT_COLUMNS.length, AttachmentStore.COLUMNS.length);
+    return columns;
+  }
+
+  /**
+   * Add the tag column values (TRUE, or null to clear) to an issue row
+   */
+  static Object[] withTags(Object[] issueValues, String summary) {
+    Object[] row = new Object[issueValues.length + JiraTagger.getTagNames().size()];
+    System.arraycopy(issueValues, 0, row, 0, issueValues.length);
+    Object[] tagValues = JiraTagger.tagValues(summary);
+    if (tagValues != null) {
+      System.arraycopy(tagValues, 0, row, issueValues.length, tagValues.length);
+    }
+    return row;
+  }
+
+  static Object[] attachmentValues(String key, Attachment a) {
+    return new Object[] {
+        key,
+        getString(a.getFilename()),
+        getString(a.getContentUri()),
+        getString(a.getAuthor()),
+        getString(a.getMimeType()),
+        a.getSize(),
+        getNullableDate(a.getCreationDate()) };
   }
 
-  private static String getLong(Long l) {
-    if (l == null) return "null";
-    return l.toString();
+  static Object[] commentValues(String key, Comment c) {
+    return new Object[] {
+        c.getId(),
+        key,
+        Dictionary.intern(getString(c.getAuthor())),
+        getString(c.getBody()),
+        getNullableDate(c.getCreationDate()) };
+  }
+
+  static Object[] issueValues(Issue issue, int numComments, int numAttachments) {
+    return new Object[] {
+        issue.getId(),
+        getString(issue.getKey()),
+        getString(issue.getSummary()),
+        getString(issue.getDescription()),
+        Dictionary.intern(getString(issue.getAssignee())),
+        Dictionary.intern(getString(issue.getReporter())),
+        getNullableDate(issue.getCreationDate()),
+        getNullableDate(issue.getUpdateDate()),
+        Dictionary.intern(getString(issue.getIssueType())),
+        Dictionary.intern(getString(issue.getPriority())),
+        Dictionary.intern(getString(issue.getResolution())),
+        Dictionary.intern(getString(issue.getStatus())),
+        getInteger(issue.getWatchers()),
+        getCount(issue.getAffectedVersions()),
+        getCount(issue.getFixVersions()),
+        numAttachments,
+        getCount(issue.getChangelog()),
+        numComments,
+        getCount(issue.getIssueLinks()),
+        getCount(issue.getLabels()),
+        getCount(issue.getSubtasks()),
+        getCount(issue.getWorklogs()) };
   }
 
   @SuppressWarnings("rawtypes")
-  private static String getCount(Iterable i) {
-    if (i == null) return "null";
+  static Integer getCount(Iterable i) {
+    if (i == null) return null;
     int counter = 0;
     Iterator it = i.iterator();
     while (it.hasNext() && it.next() != null){
       counter++;
     }
-    return String.valueOf(counter);
+    return counter;
   }
 
-  private static String getInteger(BasicWatchers watchers) {
+  static Integer getInteger(BasicWatchers watchers) {
     if (watchers != null)
-      return String.valueOf(watchers.getNumWatchers());
+      return watchers.getNumWatchers();
     else
-      return "null";
+      return null;
   }
 
-  private static DateTimeFormatter f = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
-  
-  private static String getNullableDate(DateTime d) {
-    if(d == null) return "null"; 
-    return "TO_DATE('" + d.toString(f) + "')";
+  static Timestamp getNullableDate(DateTime d) {
+    if(d == null) return null; 
+    return new Timestamp(d.getMillis());
   }
 
-  private static String getString(Object thing) {
+  /**
+   * The string form of a field: display name for users, name for the named JIRA types (status, priority etc.)
+   * No escaping needed, since it's bound as a parameter.
+   */
+  static String getString(Object thing) {
     if (thing == null) return null;
     if (thing.getClass().equals(User.class) ||
         thing.getClass().equals(BasicUser.class)){
-      return "'" + ((BasicUser)thing).getDisplayName().replace("'", "''") + "'";
+      return ((BasicUser)thing).getDisplayName();
     } else if (thing.getClass().equals(BasicIssueType.class) ||
       thing.getClass().equals(BasicPriority.class) ||
       thing.getClass().equals(BasicResolution.class) ||
       thing.getClass().equals(BasicStatus.class)) {
-      return "'" + ((NamedEntity)thing).getName() + "'";
+      return ((NamedEntity)thing).getName();
     } else {
-      return "'" + thing.toString().replace("'", "''").replace("\\", "\\\\").replace("\"","\\\"").replace('\n', ' ') + "'";
+      return thing.toString();
     }
   }
   
-  private static void createSchema(Connection conn) throws Exception {
-    createCommentTable(conn);
-    createAttachmentTable(conn);
-    createJiraTable(conn);
+  /**
+   * Create the tables, the first time through in this run
+   */
+  static synchronized void ensureSchema(Connection conn) throws Exception {
+    if (schemaCreated) return;
+    createSchema(conn);
+    schemaCreated = true;
+  }
+
+  static boolean isScanLayout() {
+    return SCAN.equals(layout);
   }
 
+  static void createSchema(Connection conn) throws Exception {
+    checkLayout(conn);
+    boolean scan = isScanLayout();
+    createCommentTable(conn, "JIRA_COMMENT", scan);
+    createAttachmentTable(conn, "JIRA_ATTACHMENT", scan);
+    createJiraTable(conn, "JIRA_ISSUE", scan);
+    addTagColumns(conn);
+    // tables from before there was an attachment store
+    PhoenixUtils.addColumnIfMissing(conn, "JIRA_ATTACHMENT", "localPath", "varchar");
+    PhoenixUtils.addColumnIfMissing(conn, "JIRA_ATTACHMENT", "checksum", "varchar");
+    if (Fingerprints.isEnabled()) Fingerprints.addColumns(conn);
+    if (Dictionary.isEnabled()) Dictionary.createSchema(conn);
+    if (scan) IssueIndexes.createTables(conn);
+  }
+
+  /**
+   * Refuse to write into tables in the other layout. Tables from before there was a choice are classic.
+   */
+  private static void checkLayout(Connection conn) throws Exception {
+    String current = PhoenixMetadata.get(conn, LAYOUT_KEY);
+    if (current == null) {
+      current = PhoenixUtils.tableExists(conn, "JIRA_ISSUE") ? CLASSIC : layout;
+      PhoenixMetadata.put(conn, LAYOUT_KEY, current);
+    }
+    if (!current.equals(layout)) {
+      throw new IllegalStateException("The jirachi tables are in the " + current + " layout, not " + layout + 
+          "; run SchemaMigration to convert them");
+    }
+  }
+
+  /**
+   * The table options for a layout
+   */
+  static String tableOptions(boolean scan) {
+    return scan ? " SALT_BUCKETS=" + saltBuckets : "";
+  }
 
-  private static void createJiraTable(Connection conn) throws Exception {
-    String SQL = "CREATE TABLE JIRA_ISSUE (id bigint NOT NULL, " +
+  /**
+   * Add a column to JIRA_ISSUE for each tag that's been added to include.json since it was created
+   */
+  static void addTagColumns(Connection conn) throws Exception {
+    for (String tagName : JiraTagger.getTagNames()) {
+      PhoenixUtils.addColumnIfMissing(conn, "JIRA_ISSUE", tagName, "BOOLEAN");
+    }
+  }
+
+  static void createJiraTable(Connection conn, String table, boolean scan) throws Exception {
+    String SQL = "CREATE TABLE " + table + " (id bigint NOT NULL, " +
         "issue_key varchar(11) NOT NULL, " +
         "summary varchar NOT NULL, " +
         "description varchar NULL, " +
@@ -252,7 +457,7 @@ public class PhoenixJiraPersister  {
         "numSubtasks integer NULL, " +
         "numWorkLogs integer NULL, " +
         createColumns(JiraTagger.getTagNames()) + 
-        "CONSTRAINT pk primary key (id))";
+        "CONSTRAINT pk primary key (id))" + tableOptions(scan);
     PhoenixUtils.executeNoTableExistsThrow(conn, SQL);
   }
   
@@ -267,27 +472,31 @@ public class PhoenixJiraPersister  {
     return s.toString().substring(0, s.length() - 2) + " "; // remove trailing ", "
   }
 
-  private static void createCommentTable(Connection conn) throws Exception {
-    String SQL = "CREATE TABLE JIRA_COMMENT (" +
-          "comment_id bigint NOT NULL," +
-          "issue_key varchar(11) NOT NULL, " +
-          "author varchar NOT NULL, " +
+  static void createCommentTable(Connection conn, String table, boolean scan) throws Exception {
+    // the key columns are declared in key order, which Phoenix checks
+    String key = scan ? "issue_key varchar(11) NOT NULL, comment_id bigint NOT NULL, " : 
+        "comment_id bigint NOT NULL, issue_key varchar(11) NOT NULL, ";
+    String SQL = "CREATE TABLE " + table + " (" + key +
+          "author varchar NULL, " + // NULL, so the Dictionary can leave it out
           "body varchar NOT NULL, " +
           "creationDate timestamp NULL " +
-          "CONSTRAINT pk primary key (comment_id))";
+          "CONSTRAINT pk primary key (" + (scan ? "issue_key, comment_id" : "comment_id") + "))" + 
+          tableOptions(scan);
     PhoenixUtils.executeNoTableExistsThrow(conn, SQL);
   }
   
-  private static void createAttachmentTable(Connection conn) throws Exception {
-    String SQL = "CREATE TABLE JIRA_ATTACHMENT (" +
+  static void createAttachmentTable(Connection conn, String table, boolean scan) throws Exception {
+    String SQL = "CREATE TABLE " + table + " (" +
           "issue_key varchar(11) NOT NULL, " +
           "filename varchar NOT NULL, " +
           "contentUri varchar NOT NULL, " +
           "author varchar NULL, " +
           "mimeType varchar NULL, " +
           "size integer NOT NULL, " +
-          "creationDate timestamp NULL " +
-          "CONSTRAINT pk primary key (issue_key, filename))";
+          "creationDate timestamp NULL, " +
+          "localPath varchar NULL, " +
+          "checksum varchar NULL " +
+          "CONSTRAINT pk primary key (issue_key, filename))" + tableOptions(scan);
     PhoenixUtils.executeNoTableExistsThrow(conn, SQL);
   }
 
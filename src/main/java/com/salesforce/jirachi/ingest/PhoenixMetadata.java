@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * A small key/value table for the bookkeeping jirachi needs between runs (sync watermarks and the like).
+ */
+public class PhoenixMetadata {
+
+  private static boolean tableCreated = false;
+
+  private static synchronized void createMetadataTable(Connection conn) throws Exception {
+    if (tableCreated) return;
+    String SQL = "CREATE TABLE JIRACHI_METADATA (" +
+          "meta_key varchar NOT NULL, " +
+          "meta_value varchar NULL " +
+          "CONSTRAINT pk primary key (meta_key))";
+    PhoenixUtils.executeNoTableExistsThrow(conn, SQL);
+    tableCreated = true;
+  }
+
+  /**
+   * @return the stored value, or null if there isn't one
+   */
+  public static String get(Connection conn, String key) throws Exception {
+    createMetadataTable(conn);
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, "SELECT meta_value FROM JIRACHI_METADATA WHERE meta_key = ?");
+    stmt.setString(1, key);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      return rs.next() ? rs.getString(1) : null;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * get(), on a pooled connection
+   */
+  public static String get(String key) throws Exception {
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      return get(conn, key);
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  /**
+   * put(), on a pooled connection
+   */
+  public static void put(String key, String value) throws Exception {
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      put(conn, key, value);
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  /**
+   * Store a value for the key (or clear it, with null)
+   */
+  public static void put(Connection conn, String key, String value) throws Exception {
+    createMetadataTable(conn);
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, "UPSERT INTO JIRACHI_METADATA (meta_key, meta_value) VALUES (?, ?)");
+    stmt.setString(1, key);
+    stmt.setString(2, value);
+    stmt.execute();
+    if (!conn.getAutoCommit()) conn.commit();
+  }
+}
@@ -29,23 +29,161 @@ package com.salesforce.jirachi.ingest;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.salesforce.phoenix.schema.TableAlreadyExistsException;
+import com.salesforce.phoenix.util.PhoenixRuntime;
 
 /**
  * Various utilities for Phoenix.
+ * 
+ * Connections come from a small pool (at most jirachi.phoenix.poolSize checked out at once), so the 
+ * ZooKeeper and metadata setup is paid once per run rather than once per batch. Borrow one with 
+ * getPhoenixConnection() and hand it back with release(); closeConnections() at the end of the run.
  */
 public class PhoenixUtils {
   
   private static String zkQuorum = System.getProperty("hbase.zookeeper.quorum");
+  private static int poolSize = Integer.getInteger("jirachi.phoenix.poolSize", 4);
+
+  static {
+    try {
+      Class.forName("com.salesforce.phoenix.jdbc.PhoenixDriver");
+    } catch (ClassNotFoundException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
 
+  private static final Semaphore checkedOut = new Semaphore(poolSize);
+  private static final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+  /**
+   * Prepared statements, by SQL, for each pooled connection
+   */
+  private static final Map<Connection,Map<String,PreparedStatement>> statements = 
+      Collections.synchronizedMap(new IdentityHashMap<Connection,Map<String,PreparedStatement>>());
+
+  /**
+   * Borrow a connection from the pool, waiting if they're all in use. It comes back in auto-commit mode.
+   */
   public static Connection getPhoenixConnection() throws Exception {
-    Class.forName("com.salesforce.phoenix.jdbc.PhoenixDriver");
-    String connectionURL = "jdbc:phoenix:" + zkQuorum;
-    Connection r = DriverManager.getConnection (connectionURL);
-    r.setAutoCommit(true);
-    return r;
+    checkedOut.acquire();
+    try {
+      Connection r = idle.poll();
+      if (r == null || r.isClosed()) {
+        String connectionURL = "jdbc:phoenix:" + zkQuorum;
+        r = DriverManager.getConnection (connectionURL);
+      }
+      r.setAutoCommit(true);
+      return r;
+    } catch (Exception ex) {
+      checkedOut.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * A connection of its own, not from the pool; close it with close() when done
+   */
+  public static Connection newConnection() throws Exception {
+    return DriverManager.getConnection("jdbc:phoenix:" + zkQuorum);
+  }
+
+  /**
+   * A connection of its own (not from the pool; close it when done) that writes everything with the given
+   * timestamp
+   */
+  public static Connection getConnectionAt(long timestamp) throws Exception {
+    Properties props = new Properties();
+    props.setProperty(PhoenixRuntime.CURRENT_SCN_ATTRIB, Long.toString(timestamp));
+    return DriverManager.getConnection("jdbc:phoenix:" + zkQuorum, props);
+  }
+
+  /**
+   * The HBase cluster's ZooKeeper quorum, as given to Phoenix ("host1,host2[:port]")
+   */
+  public static String getZkQuorum() {
+    return zkQuorum;
+  }
+
+  /**
+   * Give a connection back to the pool. Anything left uncommitted on it is rolled back.
+   */
+  public static void release(Connection conn) {
+    try {
+      if (!conn.isClosed()) {
+        if (!conn.getAutoCommit()) conn.rollback();
+        idle.add(conn);
+      }
+    } catch (SQLException ex) {
+      close(conn);
+    } finally {
+      checkedOut.release();
+    }
+  }
+
+  /**
+   * Close all the idle connections (and their statements), and the ParallelWriter ones. Call once the run 
+   * is done.
+   */
+  public static void closeConnections() {
+    Connection conn;
+    while ((conn = idle.poll()) != null) {
+      close(conn);
+    }
+    try {
+      ParallelWriter.close();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Close a connection that isn't going back to the pool, along with its statements
+   */
+  static void close(Connection conn) {
+    Map<String,PreparedStatement> cached = statements.remove(conn);
+    try {
+      if (cached != null) {
+        for (PreparedStatement stmt : cached.values()) {
+          stmt.close();
+        }
+      }
+      conn.close();
+    } catch (SQLException ex) {
+      // GULP, we're throwing it away anyway
+    }
+  }
+
+  /**
+   * A prepared statement for this SQL on this connection, reused across calls. Don't close it; it's closed 
+   * along with the connection.
+   */
+  public static PreparedStatement prepare(Connection conn, String SQL) throws SQLException {
+    Map<String,PreparedStatement> cached = statements.get(conn);
+    if (cached == null) {
+      cached = Maps.newHashMap();
+      statements.put(conn, cached);
+    }
+    PreparedStatement stmt = cached.get(SQL);
+    if (stmt == null) {
+      stmt = conn.prepareStatement(SQL);
+      cached.put(SQL, stmt);
+    }
+    return stmt;
   }
   
   public static void execute(Connection conn, String SQL) throws Exception {
@@ -55,7 +193,89 @@ public class PhoenixUtils {
     } catch (Exception ex){
       System.out.println("Exception running SQL: " + SQL.toString());
       throw ex;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Build "UPSERT INTO table (c1, c2, ...) VALUES (?, ?, ...)"
+   */
+  public static String upsertSql(String table, String[] columns) {
+    StringBuilder b = new StringBuilder("UPSERT INTO ").append(table).append(" (");
+    StringBuilder params = new StringBuilder();
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        b.append(", ");
+        params.append(", ");
+      }
+      b.append(columns[i]);
+      params.append("?");
+    }
+    return b.append(") VALUES (").append(params).append(")").toString();
+  }
+
+  /**
+   * Bind a row of values to a prepared statement's parameters, in order, by java type
+   */
+  public static void bind(PreparedStatement stmt, Object[] values) throws SQLException {
+    for (int i = 0; i < values.length; i++) {
+      Object v = values[i];
+      int p = i + 1;
+      if (v == null) {
+        stmt.setNull(p, Types.NULL);
+      } else if (v instanceof String) {
+        stmt.setString(p, (String)v);
+      } else if (v instanceof Long) {
+        stmt.setLong(p, (Long)v);
+      } else if (v instanceof Integer) {
+        stmt.setInt(p, (Integer)v);
+      } else if (v instanceof Timestamp) {
+        stmt.setTimestamp(p, (Timestamp)v);
+      } else if (v instanceof Boolean) {
+        stmt.setBoolean(p, (Boolean)v);
+      } else {
+        stmt.setObject(p, v);
+      }
+    }
+  }
+
+  /**
+   * Add a column to an existing table, unless it's there already
+   */
+  public static void addColumnIfMissing(Connection conn, String table, String column, String type) throws Exception {
+    ResultSet rs = conn.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+    try {
+      if (rs.next()) return;
+    } finally {
+      rs.close();
+    }
+    execute(conn, "ALTER TABLE " + table + " ADD " + column + " " + type);
+  }
+
+  public static boolean tableExists(Connection conn, String table) throws Exception {
+    ResultSet rs = conn.getMetaData().getTables(null, null, table.toUpperCase(), null);
+    try {
+      return rs.next();
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * The table's column names (upper case, as Phoenix keeps them), in table order
+   */
+  public static List<String> columns(Connection conn, String table) throws Exception {
+    List<String> columns = Lists.newArrayList();
+    ResultSet rs = conn.getMetaData().getColumns(null, null, table.toUpperCase(), null);
+    try {
+      while (rs.next()) {
+        columns.add(rs.getString("COLUMN_NAME"));
+      }
+    } finally {
+      rs.close();
     }
+    return columns;
   }
 
   /**
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Pre-aggregated counts for the usual breakdowns, kept in JIRA_ROLLUP: the number of issues and their total
+ * comments for each tag, creation month (UTC), issue type, priority and resolution. Every issue also counts
+ * under the tag "*", so that's the untagged totals. Dashboards can read these instead of aggregating 
+ * JIRA_ISSUE every time, e.g. tests per month:
+ * 
+ *   SELECT month, sum(issues) FROM JIRA_ROLLUP WHERE tag = 'isTest' GROUP BY month
+ * 
+ * With jirachi.rollups=true, the persister and JiraTagger.addTags() keep the counts up to date: what the
+ * issues counted for before they're written is taken off, and what they count for now is added on, once 
+ * they've been committed. Each batch holds 'lock' from reading what its issues counted for until its 
+ * deltas are applied, so batches written at once (e.g. by ShardedFetcher's shards) can't both take the 
+ * same issue off; that serializes them within the process, and only one process should be importing at 
+ * a time (which is the case anyway). Run main() to (re)build the counts from scratch, e.g. for tables 
+ * filled before this was turned on, or by a bulk load.
+ */
+public class Rollups {
+
+  static final String ALL = "*";
+  static final String NONE = "none";
+  static final String[] COLUMNS = { "tag", "month", "issueType", "priority", "resolution", "issues", "comments" };
+
+  /**
+   * The JIRA_ISSUE columns an issue's rollup keys and counts come from, followed by the tags
+   */
+  static final String[] FACT_COLUMNS = { "creationDate", "issueType", "priority", "resolution", "numComments" };
+
+  private static final int[] FACT_POSITIONS = positions(FACT_COLUMNS);
+
+  private static boolean enabled = Boolean.getBoolean("jirachi.rollups");
+  private static boolean tableCreated = false;
+  /**
+   * Held by a batch from its deltas() to its apply()
+   */
+  static final ReentrantLock lock = new ReentrantLock();
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  static synchronized void createTable(Connection conn) throws Exception {
+    if (tableCreated) return;
+    PhoenixUtils.executeNoTableExistsThrow(conn, "CREATE TABLE JIRA_ROLLUP (" +
+        "tag varchar NOT NULL, " +
+        "month varchar NOT NULL, " +
+        "issueType varchar NOT NULL, " +
+        "priority varchar NOT NULL, " +
+        "resolution varchar NOT NULL, " +
+        "issues bigint NULL, " +
+        "comments bigint NULL " +
+        "CONSTRAINT pk primary key (tag, month, issueType, priority, resolution))");
+    tableCreated = true;
+  }
+
+  /**
+   * The counts to add, by rollup key ({tag, month, issueType, priority, resolution})
+   */
+  static class Deltas {
+    final Map<List<String>,long[]> counts = Maps.newHashMap();
+
+    /**
+     * Count an issue (the FACT_COLUMNS, then the tag values in JiraTagger order) in, or with -1, out
+     */
+    void add(Object[] facts, int sign) {
+      String month = facts[0] == null ? NONE : 
+          new DateTime(((Timestamp)facts[0]).getTime(), DateTimeZone.UTC).toString("yyyy-MM");
+      long comments = facts[4] == null ? 0 : ((Number)facts[4]).intValue();
+      add(ALL, month, facts, sign, comments);
+      String[] tagNames = JiraTagger.matcher.getTagNames();
+      for (int t = 0; t < tagNames.length; t++) {
+        if (Boolean.TRUE.equals(facts[FACT_COLUMNS.length + t])) add(tagNames[t], month, facts, sign, comments);
+      }
+    }
+
+    private void add(String tag, String month, Object[] facts, int sign, long comments) {
+      List<String> key = Arrays.asList(tag, month, orNone(facts[1]), orNone(facts[2]), orNone(facts[3]));
+      long[] count = counts.get(key);
+      if (count == null) {
+        count = new long[2];
+        counts.put(key, count);
+      }
+      count[0] += sign;
+      count[1] += sign * comments;
+    }
+  }
+
+  private static String orNone(Object value) {
+    return value == null ? NONE : value.toString();
+  }
+
+  /**
+   * What moving these issues from what they were (in JIRA_ISSUE) to what they are now (these rows, in 
+   * PhoenixJiraPersister.issueColumns() order) does to the counts. Call it before the rows are written, 
+   * holding 'lock', and apply() the deltas only once they've been committed: if the write fails, the batch
+   * is taken off and added on again from the same old version when it's retried, rather than counted twice.
+   */
+  static Deltas deltas(Connection conn, List<Object[]> issues) throws Exception {
+    if (issues.isEmpty()) return new Deltas();
+    createTable(conn);
+    return deltas(current(conn, issues), issues);
+  }
+
+  /**
+   * The deltas for issues going from the 'before' facts (of the ones that were there) to these rows
+   */
+  static Deltas deltas(List<Object[]> before, List<Object[]> issues) {
+    Deltas deltas = new Deltas();
+    for (Object[] facts : before) {
+      deltas.add(facts, -1);
+    }
+    for (Object[] issue : issues) {
+      deltas.add(facts(issue), 1);
+    }
+    return deltas;
+  }
+
+  /**
+   * The facts (FACT_COLUMNS, then the tags) of an issue row in PhoenixJiraPersister.issueColumns() order
+   */
+  static Object[] facts(Object[] issue) {
+    int tags = JiraTagger.matcher.getTagNames().length;
+    Object[] facts = new Object[FACT_COLUMNS.length + tags];
+    for (int i = 0; i < FACT_POSITIONS.length; i++) {
+      facts[i] = issue[FACT_POSITIONS[i]];
+    }
+    System.arraycopy(issue, PhoenixJiraPersister.ISSUE_COLUMNS.length, facts, FACT_COLUMNS.length, tags);
+    return facts;
+  }
+
+  /**
+   * The facts for these issues as JIRA_ISSUE has them now (issues that aren't there yet are left out)
+   */
+  private static List<Object[]> current(Connection conn, List<Object[]> issues) throws Exception {
+    StringBuilder sql = new StringBuilder("SELECT ").append(factColumns()).append(" FROM JIRA_ISSUE WHERE id IN (");
+    Object[] ids = new Object[issues.size()];
+    for (int i = 0; i < ids.length; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+      ids[i] = issues.get(i)[0];
+    }
+    sql.append(")");
+    PreparedStatement stmt = PhoenixUtils.prepare(conn, sql.toString());
+    PhoenixUtils.bind(stmt, ids);
+    List<Object[]> facts = Lists.newArrayList();
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        facts.add(facts(rs, 1));
+      }
+    } finally {
+      rs.close();
+    }
+    return facts;
+  }
+
+  /**
+   * "creationDate, issueType, ..., isTest, isDoc, ...", to select what facts() reads
+   */
+  static String factColumns() {
+    StringBuilder b = new StringBuilder();
+    for (String column : FACT_COLUMNS) {
+      b.append(Dictionary.select(column)).append(", ");
+    }
+    for (String tagName : JiraTagger.matcher.getTagNames()) {
+      b.append(tagName).append(", ");
+    }
+    return b.substring(0, b.length() - 2);
+  }
+
+  /**
+   * Read the factColumns(), starting at this column
+   */
+  static Object[] facts(ResultSet rs, int first) throws Exception {
+    int tags = JiraTagger.matcher.getTagNames().length;
+    Object[] facts = new Object[FACT_COLUMNS.length + tags];
+    facts[0] = rs.getTimestamp(first);
+    facts[1] = Dictionary.read(rs, first + 1, FACT_COLUMNS[1]);
+    facts[2] = Dictionary.read(rs, first + 2, FACT_COLUMNS[2]);
+    facts[3] = Dictionary.read(rs, first + 3, FACT_COLUMNS[3]);
+    int numComments = rs.getInt(first + 4);
+    facts[4] = rs.wasNull() ? null : numComments;
+    for (int t = 0; t < tags; t++) {
+      facts[FACT_COLUMNS.length + t] = rs.getBoolean(first + FACT_COLUMNS.length + t) ? Boolean.TRUE : null;
+    }
+    return facts;
+  }
+
+  /**
+   * Add the deltas to the stored counts, dropping the rows that come to nothing
+   */
+  static void apply(Connection conn, Deltas deltas) throws Exception {
+    if (deltas.counts.isEmpty()) return;
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      PreparedStatement read = PhoenixUtils.prepare(conn, "SELECT issues, comments FROM JIRA_ROLLUP " +
+          "WHERE tag = ? AND month = ? AND issueType = ? AND priority = ? AND resolution = ?");
+      List<Object[]> rows = Lists.newArrayList();
+      List<Object[]> empty = Lists.newArrayList();
+      for (Map.Entry<List<String>,long[]> delta : deltas.counts.entrySet()) {
+        long[] d = delta.getValue();
+        if (d[0] == 0 && d[1] == 0) continue; // e.g. an issue written again, unchanged
+        Object[] key = delta.getKey().toArray();
+        PhoenixUtils.bind(read, key);
+        long issues = d[0];
+        long comments = d[1];
+        ResultSet rs = read.executeQuery();
+        try {
+          if (rs.next()) {
+            issues += rs.getLong(1);
+            comments += rs.getLong(2);
+          }
+        } finally {
+          rs.close();
+        }
+        if (issues <= 0) {
+          empty.add(key);
+        } else {
+          Object[] row = Arrays.copyOf(key, COLUMNS.length);
+          row[5] = issues;
+          row[6] = comments;
+          rows.add(row);
+        }
+      }
+      PhoenixJiraPersister.upsert(conn, "JIRA_ROLLUP", COLUMNS, rows);
+      if (!empty.isEmpty()) {
+        PreparedStatement delete = PhoenixUtils.prepare(conn, "DELETE FROM JIRA_ROLLUP " +
+            "WHERE tag = ? AND month = ? AND issueType = ? AND priority = ? AND resolution = ?");
+        for (Object[] key : empty) {
+          PhoenixUtils.bind(delete, key);
+          delete.execute();
+        }
+        if (!conn.getAutoCommit()) conn.commit();
+      }
+    } finally {
+      lock.unlock();
+    }
+    ImportMetrics.time("rollups.update", start);
+  }
+
+  /**
+   * Count everything in JIRA_ISSUE from scratch, replacing whatever JIRA_ROLLUP had
+   */
+  public static void main(String[] args) throws Exception {
+    CliMain.setProperties();
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(conn);
+      createTable(conn);
+      long start = System.nanoTime();
+      Deltas deltas = new Deltas();
+      Statement stmt = conn.createStatement();
+      try {
+        ResultSet rs = stmt.executeQuery("SELECT " + factColumns() + " FROM JIRA_ISSUE");
+        while (rs.next()) {
+          deltas.add(facts(rs, 1), 1);
+        }
+        stmt.execute("DELETE FROM JIRA_ROLLUP");
+      } finally {
+        stmt.close();
+      }
+      conn.setAutoCommit(false);
+      apply(conn, deltas);
+      System.out.println("Rebuilt " + deltas.counts.size() + " rollup rows in " + 
+          (System.nanoTime() - start) / 1000000 + "ms");
+    } finally {
+      PhoenixUtils.release(conn);
+      PhoenixUtils.closeConnections();
+    }
+  }
+
+  private static int[] positions(String[] columns) {
+    int[] positions = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      positions[i] = Arrays.asList(PhoenixJiraPersister.ISSUE_COLUMNS).indexOf(columns[i]);
+    }
+    return positions;
+  }
+}
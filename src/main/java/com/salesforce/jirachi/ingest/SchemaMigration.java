@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.sql.Connection;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Converts the jirachi tables from the classic layout to the scan layout (see PhoenixJiraPersister), in place.
+ * Run it once, with nothing importing, then set jirachi.phoenix.layout=scan. Run it with the same
+ * jirachi.phoenix.dictionary and jirachi.fingerprints settings as the imports, so the dictionary codes and
+ * fingerprints are carried across.
+ * 
+ * Phoenix can't re-key or salt an existing table, so each table is copied out to a _MIGRATING table in the
+ * new layout, dropped, created again in the new layout, and copied back, with UPSERT SELECT. Phoenix only 
+ * runs an UPSERT SELECT on the region servers when it writes back into the table it reads, so every row is
+ * scanned back to this client and written out again, twice per table: expect it to take about as long as 
+ * writing the tables twice over. The connection auto-commits, so the client only holds 
+ * phoenix.mutate.batchSize rows (10000 by default) of mutations at a time, and how many rows come back per 
+ * scanner round trip is hbase.client.scanner.caching; both are set in the client's hbase-site.xml. Then the
+ * IssueIndexes are built from JIRA_ISSUE. A run that dies part way can be started again: a table is only 
+ * dropped once it's all in the _MIGRATING copy, and the copy is only dropped once it's all back.
+ */
+public class SchemaMigration {
+
+  interface TableCreator {
+    void create(Connection conn, String table) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    CliMain.setProperties();
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      String current = PhoenixMetadata.get(conn, PhoenixJiraPersister.LAYOUT_KEY);
+      if (PhoenixJiraPersister.SCAN.equals(current)) {
+        System.out.println("The tables are already in the scan layout");
+        return;
+      }
+      migrate(conn, "JIRA_COMMENT", new TableCreator() {
+        public void create(Connection conn, String table) throws Exception {
+          PhoenixJiraPersister.createCommentTable(conn, table, true);
+          if (Dictionary.isEnabled()) Dictionary.addColumns(conn, table, Dictionary.COMMENT_ENCODED);
+          if (Fingerprints.isEnabled()) Fingerprints.addColumn(conn, table);
+        }
+      });
+      migrate(conn, "JIRA_ATTACHMENT", new TableCreator() {
+        public void create(Connection conn, String table) throws Exception {
+          PhoenixJiraPersister.createAttachmentTable(conn, table, true);
+          if (Fingerprints.isEnabled()) Fingerprints.addColumn(conn, table);
+        }
+      });
+      migrate(conn, "JIRA_ISSUE", new TableCreator() {
+        public void create(Connection conn, String table) throws Exception {
+          PhoenixJiraPersister.createJiraTable(conn, table, true);
+          if (Dictionary.isEnabled()) Dictionary.addColumns(conn, table, Dictionary.ISSUE_ENCODED);
+          if (Fingerprints.isEnabled()) Fingerprints.addColumn(conn, table);
+        }
+      });
+      IssueIndexes.createTables(conn);
+      if (Dictionary.isEnabled()) Dictionary.createSchema(conn);
+      long start = System.nanoTime();
+      IssueIndexes.rebuild(conn);
+      System.out.println("Built the issue indexes in " + (System.nanoTime() - start) / 1000000 + "ms");
+      PhoenixMetadata.put(conn, PhoenixJiraPersister.LAYOUT_KEY, PhoenixJiraPersister.SCAN);
+    } finally {
+      PhoenixUtils.release(conn);
+      PhoenixUtils.closeConnections();
+    }
+  }
+
+  static void migrate(Connection conn, String table, TableCreator creator) throws Exception {
+    long start = System.nanoTime();
+    String temp = table + "_MIGRATING";
+    if (PhoenixUtils.tableExists(conn, table)) {
+      creator.create(conn, temp); // no-op if a previous attempt got this far
+      copy(conn, table, temp);
+      PhoenixUtils.execute(conn, "DROP TABLE " + table);
+    } else if (!PhoenixUtils.tableExists(conn, temp)) {
+      return;
+    }
+    creator.create(conn, table);
+    copy(conn, temp, table);
+    PhoenixUtils.execute(conn, "DROP TABLE " + temp);
+    System.out.println("Migrated " + table + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+  }
+
+  /**
+   * UPSERT SELECT the columns the two tables have in common (a tag dropped from include.json is left behind),
+   * through the client
+   */
+  private static void copy(Connection conn, String from, String to) throws Exception {
+    List<String> columns = Lists.newArrayList(PhoenixUtils.columns(conn, from));
+    columns.retainAll(PhoenixUtils.columns(conn, to));
+    String list = Joiner.on(", ").join(columns);
+    PhoenixUtils.execute(conn, "UPSERT INTO " + to + " (" + list + ") SELECT " + list + " FROM " + from);
+    if (!conn.getAutoCommit()) conn.commit();
+  }
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import com.google.common.collect.Lists;
+import com.salesforce.jirachi.ingest.JiraFetcher.BatchSource;
+
+/**
+ * Splits the query into disjoint shards by date windows on one field (jirachi.shard.field, 'created' by 
+ * default, jirachi.shard.days wide), plus one for issues with no value for that field, and ingests them 
+ * on jirachi.shard.workers independent workers. Each worker pages through its shard and persists as it 
+ * goes.
+ * 
+ * Progress is checkpointed in JIRACHI_METADATA after each persisted page, so a run that dies part way 
+ * can be started again, and only picks up the shards (and pages) it hadn't finished. The checkpoints are 
+ * cleared once every shard is done. They're keyed by the query, so changing it starts from scratch.
+ * 
+ * A shard's pages come from a much smaller result than the whole query, so issues changing mid-run 
+ * shift fewer of the startAt offsets, and a field that doesn't change (like created) keeps them put.
+ */
+public class ShardedFetcher {
+
+  private static int shardDays = Integer.getInteger("jirachi.shard.days", 0);
+  private static String shardField = System.getProperty("jirachi.shard.field", "created");
+  /**
+   * First day of the first window, yyyy-MM-dd (defaults to the earliest value of the field)
+   */
+  private static String shardFrom = System.getProperty("jirachi.shard.from");
+  private static int workers = Integer.getInteger("jirachi.shard.workers", Integer.getInteger("jirachi.fetch.concurrency", 4));
+
+  static final String DONE = "done";
+
+  private final JiraRestReader reader;
+  private final String jql;
+  private final SnapshotFile snapshot;
+
+  public static boolean isEnabled() {
+    return shardDays > 0;
+  }
+
+  ShardedFetcher(JiraRestReader reader, String jql, SnapshotFile snapshot) {
+    this.reader = reader;
+    this.jql = jql;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * One slice of the query
+   */
+  static class Shard {
+    final String name;
+    final String jql;
+
+    Shard(String name, String jql) {
+      this.name = name;
+      this.jql = jql;
+    }
+  }
+
+  /**
+   * Ingest every shard that isn't done yet into the sink
+   * 
+   * @return the newest updateDate seen (or the given watermark, if nothing was newer)
+   */
+  public DateTime run(final JiraSink sink, DateTime watermark) throws Exception {
+    LocalDate from = shardFrom != null ? new LocalDate(shardFrom) : earliest();
+    if (from == null) return watermark; // nothing matches at all
+    List<Shard> shards = shards(jql, shardField, from, new LocalDate().plusDays(1), shardDays);
+    System.out.println("Fetching " + shards.size() + " shards of " + shardDays + " days by " + shardField + 
+        ", on " + workers + " workers");
+
+    final ConcurrentLinkedQueue<Shard> todo = new ConcurrentLinkedQueue<Shard>(shards);
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    DateTime maxUpdated = watermark;
+    try {
+      List<Future<DateTime>> results = Lists.newArrayList();
+      for (int w = 0; w < workers; w++) {
+        results.add(pool.submit(new Callable<DateTime>() {
+          public DateTime call() throws Exception {
+            DateTime max = null;
+            Shard shard;
+            while ((shard = todo.poll()) != null) {
+              max = JiraFetcher.later(max, ingest(shard, sink));
+            }
+            return max;
+          }
+        }));
+      }
+      for (Future<DateTime> result : results) {
+        maxUpdated = JiraFetcher.later(maxUpdated, result.get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    // all done, so the next run starts over
+    for (Shard shard : shards) {
+      PhoenixMetadata.put(checkpointKey(shard), null);
+    }
+    return maxUpdated;
+  }
+
+  /**
+   * Ingest one shard, picking up from its checkpoint
+   */
+  private DateTime ingest(Shard shard, JiraSink sink) throws Exception {
+    String checkpoint = PhoenixMetadata.get(checkpointKey(shard));
+    if (DONE.equals(checkpoint)) {
+      System.out.println("Shard " + shard.name + " was already done");
+      return null;
+    }
+    int startAt = checkpoint == null ? 0 : Integer.parseInt(checkpoint);
+    int total = reader.count(shard.jql);
+    System.out.println("Shard " + shard.name + ": " + total + " issues" + (startAt > 0 ? ", resuming at " + startAt : ""));
+    DateTime max = JiraFetcher.ingest(new ShardBatches(shard, startAt, total, sink.isBuffered()), sink, null);
+    // ingest() flushed the sink, so the shard is in the tables
+    PhoenixMetadata.put(checkpointKey(shard), DONE);
+    ImportMetrics.count("shards.done", 1);
+    return max;
+  }
+
+  /**
+   * The pages of one shard, in order. Asking for the next page means the last one was persisted, so 
+   * that's when the checkpoint moves (unless the sink is buffered, in which case the shard is only
+   * checkpointed once it's done).
+   */
+  private class ShardBatches implements BatchSource {
+    private final Shard shard;
+    private final int total;
+    private final boolean buffered;
+    private int startAt;
+    private boolean fetchedAny = false;
+
+    ShardBatches(Shard shard, int startAt, int total, boolean buffered) {
+      this.shard = shard;
+      this.startAt = startAt;
+      this.total = total;
+      this.buffered = buffered;
+    }
+
+    public RowBatch next() throws Exception {
+      if (startAt >= total) return null;
+      if (fetchedAny && !buffered) PhoenixMetadata.put(checkpointKey(shard), Integer.toString(startAt));
+      RowBatch rows = JiraFetcher.fetchRows(reader, shard.jql, startAt, snapshot);
+      startAt += JiraFetcher.BATCH_SIZE;
+      fetchedAny = true;
+      return rows;
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * The date of the earliest value of the shard field, or null if the query matches nothing that has one
+   */
+  private LocalDate earliest() throws Exception {
+    String first = reader.firstValue(JiraFetcher.orderedBy(JiraFetcher.restrict(jql, shardField + " is not EMPTY"), 
+        shardField + " ASC"), shardField);
+    if (first == null) return null;
+    // a day early, in case the server's day starts before ours
+    return new LocalDate(first.substring(0, 10)).minusDays(1);
+  }
+
+  /**
+   * Windows of 'days' days on the field from 'from' up to (not including) 'to', and one for issues that 
+   * have no value for the field
+   */
+  static List<Shard> shards(String jql, String field, LocalDate from, LocalDate to, int days) {
+    List<Shard> shards = Lists.newArrayList();
+    for (LocalDate start = from; start.isBefore(to); start = start.plusDays(days)) {
+      LocalDate end = start.plusDays(days);
+      String name = field + " " + start.toString("yyyy/MM/dd") + "-" + end.toString("yyyy/MM/dd");
+      shards.add(new Shard(name, JiraFetcher.restrict(jql, 
+          field + " >= \"" + start.toString("yyyy/MM/dd") + "\" AND " + field + " < \"" + end.toString("yyyy/MM/dd") + "\"")));
+    }
+    shards.add(new Shard(field + " empty", JiraFetcher.restrict(jql, field + " is EMPTY")));
+    return shards;
+  }
+
+  private String checkpointKey(Shard shard) {
+    return "shard." + Integer.toHexString(jql.hashCode()) + "." + shard.name;
+  }
+}
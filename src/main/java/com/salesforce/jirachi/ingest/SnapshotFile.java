@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.atlassian.jira.rest.client.internal.json.IssueJsonParser;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * An append-only local copy of the raw issue JSON fetched from JIRA, so the data can be re-ingested 
+ * (say, after a schema change) without going back to the server.
+ * 
+ * Each record is [type byte][key length][key][updateDate millis][compressed length][deflated json]. 
+ * Issue records are keyed by issue key and updateDate, and an issue is only appended if that pair isn't 
+ * in the file yet. Search results share one "names" and "schema" section per page rather than carrying 
+ * it on every issue, so that's written as its own record whenever it changes. Replay memory-maps the file 
+ * and returns the newest version of each issue.
+ * 
+ * A record cut short at the end of the file (by a run that died mid-append) is ignored by replay, and cut 
+ * off before anything more is appended.
+ */
+public class SnapshotFile {
+
+  private static final byte SCHEMA = 'M';
+  private static final byte ISSUE = 'I';
+  /**
+   * How much of the file to map at a time when replaying
+   */
+  private static final long WINDOW = 256L * 1024 * 1024;
+  private static final DateTimeFormatter JIRA_DATE = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+  private final File file;
+  private final long window;
+  private FileChannel out;
+  private Set<String> present;
+  private String lastSchema;
+
+  public SnapshotFile(File file) {
+    this(file, WINDOW);
+  }
+
+  /**
+   * @param window how much of the file to map at a time when reading it
+   */
+  SnapshotFile(File file, long window) {
+    this.file = file;
+    this.window = window;
+  }
+
+  /**
+   * Add an issue (as returned by the search or issue resource), unless this version of it is already here.
+   * names and schema are the sections that came back alongside it, or null if the issue json has its own.
+   */
+  public synchronized void append(JSONObject names, JSONObject schema, JSONObject issueJson) throws Exception {
+    if (out == null) openForAppend();
+    String key = issueJson.getString("key");
+    String updated = issueJson.getJSONObject("fields").optString("updated", null);
+    long updatedMillis = updated == null ? 0 : JIRA_DATE.parseMillis(updated);
+    if (!present.add(key + "@" + updatedMillis)) return;
+
+    if (names != null && schema != null) {
+      JSONObject s = new JSONObject();
+      s.put("names", names);
+      s.put("schema", schema);
+      String schemaJson = s.toString();
+      if (!schemaJson.equals(lastSchema)) {
+        write(SCHEMA, "", 0, schemaJson);
+        lastSchema = schemaJson;
+      }
+    }
+    write(ISSUE, key, updatedMillis, issueJson.toString());
+  }
+
+  public synchronized void close() throws IOException {
+    if (out != null) out.close();
+    out = null;
+  }
+
+  private void openForAppend() throws Exception {
+    present = Sets.newHashSet();
+    long end = 0;
+    if (file.exists()) {
+      Reader r = new Reader();
+      try {
+        while (r.advance()) {
+          if (r.type == ISSUE) present.add(r.key + "@" + r.updated);
+          if (r.type == SCHEMA) lastSchema = r.json();
+        }
+        end = r.end;
+      } finally {
+        r.close();
+      }
+    }
+    out = new RandomAccessFile(file, "rw").getChannel();
+    if (out.size() > end) {
+      System.out.println("Dropping the truncated record at the end of " + file);
+      out.truncate(end);
+    }
+    out.position(end);
+  }
+
+  private void write(byte type, String key, long updated, String json) throws IOException {
+    byte[] keyBytes = key.getBytes("UTF-8");
+    byte[] compressed = deflate(json.getBytes("UTF-8"));
+    ByteBuffer b = ByteBuffer.allocate(1 + 4 + keyBytes.length + 8 + 4 + compressed.length);
+    b.put(type).putInt(keyBytes.length).put(keyBytes).putLong(updated).putInt(compressed.length).put(compressed);
+    b.flip();
+    while (b.hasRemaining()) {
+      out.write(b);
+    }
+  }
+
+  private static byte[] deflate(byte[] raw) {
+    Deflater d = new Deflater();
+    try {
+      d.setInput(raw);
+      d.finish();
+      byte[] buf = new byte[Math.max(64, raw.length / 2)];
+      int len = 0;
+      while (!d.finished()) {
+        if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+        len += d.deflate(buf, len, buf.length - len);
+      }
+      return Arrays.copyOf(buf, len);
+    } finally {
+      d.end();
+    }
+  }
+
+  /**
+   * Read back the newest version of every issue in the file, in the order they were first written
+   */
+  public Replay replay() throws Exception {
+    // first pass: where's the newest copy of each issue?
+    Map<String,Long> newest = Maps.newHashMap();
+    Map<String,Long> newestUpdated = Maps.newHashMap();
+    Reader r = new Reader();
+    try {
+      while (r.advance()) {
+        if (r.type != ISSUE) continue;
+        Long seen = newestUpdated.get(r.key);
+        if (seen == null || r.updated >= seen) {
+          newest.put(r.key, r.offset);
+          newestUpdated.put(r.key, r.updated);
+        }
+      }
+    } finally {
+      r.close();
+    }
+    return new Replay(newest);
+  }
+
+  public class Replay {
+    private final Map<String,Long> newest;
+    private final Reader r;
+    private JSONObject names;
+    private JSONObject schema;
+
+    Replay(Map<String,Long> newest) throws IOException {
+      this.newest = newest;
+      this.r = new Reader();
+    }
+
+    /**
+     * @return the next issue, or null when there are no more
+     */
+    public Issue next() throws Exception {
+      JSONObject issueJson = nextJson();
+      if (issueJson == null) return null;
+      if (issueJson.has("names")) return new IssueJsonParser().parse(issueJson);
+      return new IssueJsonParser(names, schema).parse(issueJson);
+    }
+
+    /**
+     * @return the next issue's json (whose names and schema are then getNames() and getSchema(), unless it
+     * has its own), or null when there are no more
+     */
+    JSONObject nextJson() throws Exception {
+      while (r.advance()) {
+        if (r.type == SCHEMA) {
+          JSONObject s = new JSONObject(r.json());
+          names = s.getJSONObject("names");
+          schema = s.getJSONObject("schema");
+        } else if (newest.get(r.key) == r.offset) {
+          return new JSONObject(r.json());
+        }
+      }
+      return null;
+    }
+
+    JSONObject getNames() {
+      return names;
+    }
+
+    JSONObject getSchema() {
+      return schema;
+    }
+
+    public void close() throws IOException {
+      r.close();
+    }
+  }
+
+  /**
+   * Walks the records through a sliding memory-mapped window
+   */
+  private class Reader {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+    private long next = 0;
+    /**
+     * Where the last whole record read ends
+     */
+    long end = 0;
+
+    byte type;
+    String key;
+    long updated;
+    long offset;
+    private long bodyAt;
+    private int bodyLength;
+
+    Reader() throws IOException {
+      raf = new RandomAccessFile(file, "r");
+      channel = raf.getChannel();
+      size = channel.size();
+    }
+
+    /**
+     * Move on to the next record
+     * @return false at the end of the file, or at a record that's cut short there
+     */
+    boolean advance() throws IOException {
+      if (next >= size) return false;
+      offset = next;
+      if (offset + 5 > size) return false;
+      ByteBuffer b = map(offset, 1 + 4);
+      type = b.get();
+      int keyLength = b.getInt();
+      if (keyLength < 0 || offset + 5 + keyLength + 8 + 4 > size) return false;
+      b = map(offset + 5, keyLength + 8 + 4);
+      byte[] keyBytes = new byte[keyLength];
+      b.get(keyBytes);
+      key = new String(keyBytes, "UTF-8");
+      updated = b.getLong();
+      bodyLength = b.getInt();
+      bodyAt = offset + 5 + keyLength + 8 + 4;
+      if (bodyLength < 0 || bodyAt + bodyLength > size) return false;
+      next = bodyAt + bodyLength;
+      end = next;
+      return true;
+    }
+
+    String json() throws IOException {
+      ByteBuffer b = map(bodyAt, bodyLength);
+      Inflater inflater = new Inflater();
+      try {
+        byte[] compressed = new byte[bodyLength];
+        b.get(compressed);
+        inflater.setInput(compressed);
+        byte[] buf = new byte[Math.max(256, bodyLength * 4)];
+        int len = 0;
+        while (!inflater.finished()) {
+          if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+          int n = inflater.inflate(buf, len, buf.length - len);
+          if (n == 0 && inflater.needsInput()) throw new IOException("Truncated record at " + offset + " in " + file);
+          len += n;
+        }
+        return new String(buf, 0, len, "UTF-8");
+      } catch (DataFormatException ex) {
+        throw new IOException("Corrupt record at " + offset + " in " + file, ex);
+      } finally {
+        inflater.end();
+      }
+    }
+
+    /**
+     * A buffer positioned at the given file offset with at least length bytes readable
+     */
+    private ByteBuffer map(long at, int length) throws IOException {
+      if (at + length > size) throw new IOException("Truncated record at " + offset + " in " + file);
+      if (mapped == null || at < mappedStart || at + length > mappedStart + mapped.capacity()) {
+        mappedStart = at;
+        mapped = channel.map(MapMode.READ_ONLY, at, Math.min(size - at, Math.max(window, length)));
+      }
+      ByteBuffer b = mapped.duplicate();
+      b.position((int)(at - mappedStart));
+      return b;
+    }
+
+    void close() throws IOException {
+      raf.close();
+    }
+  }
+}
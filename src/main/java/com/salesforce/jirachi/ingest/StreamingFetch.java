@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A leaner way to fetch a page of issues than BatchFetch: only the fields that end up in the tables are 
+ * asked for (gzipped), and the response is read with Jackson's streaming parser straight into the rows 
+ * PhoenixJiraPersister.rows() would have made, with no json objects or JRJC Issues in between. Lists that 
+ * are only stored as counts (versions, links, subtasks...) are counted as they're skipped over.
+ * 
+ * On with jirachi.fetch.streaming=true. It can't keep a SnapshotFile (which holds the full issue json), so 
+ * with jirachi.snapshot.file set the fetcher uses BatchFetch regardless. The changelog isn't asked for by
+ * either path, so numChangelogs is null either way.
+ */
+public class StreamingFetch {
+
+  /**
+   * The fields the rows are made from
+   */
+  static final String FIELDS = "summary,description,assignee,reporter,created,updated,issuetype,priority," +
+      "resolution,status,watches,versions,fixVersions,attachment,issuelinks,labels,subtasks,worklog,comment";
+
+  private static boolean enabled = Boolean.getBoolean("jirachi.fetch.streaming");
+
+  private static final JsonFactory json = new JsonFactory();
+  private static final DateTimeFormatter JIRA_DATE = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+  private static final int ID = 0;
+  private static final int KEY = 1;
+  private static final int SUMMARY = 2;
+  private static final int DESCRIPTION = 3;
+  private static final int ASSIGNEE = 4;
+  private static final int REPORTER = 5;
+  private static final int CREATED = 6;
+  private static final int UPDATED = 7;
+  private static final int ISSUE_TYPE = 8;
+  private static final int PRIORITY = 9;
+  private static final int RESOLUTION = 10;
+  private static final int STATUS = 11;
+  private static final int WATCHERS = 12;
+  private static final int AFFECTED_VERSIONS = 13;
+  private static final int FIX_VERSIONS = 14;
+  private static final int ATTACHMENTS = 15;
+  private static final int COMMENTS = 17;
+  private static final int ISSUE_LINKS = 18;
+  private static final int LABELS = 19;
+  private static final int SUBTASKS = 20;
+  private static final int WORKLOGS = 21;
+
+  /**
+   * An issue's row (in ISSUE_COLUMNS order, without tags), comment rows and attachment rows
+   */
+  static class ParsedIssue {
+    final Object[] values = new Object[PhoenixJiraPersister.ISSUE_COLUMNS.length];
+    List<Object[]> comments = Lists.newArrayList();
+    final List<Object[]> attachments = Lists.newArrayList();
+    /**
+     * How many comments the issue has, which may be more than the search embedded
+     */
+    int commentTotal;
+    DateTime updated;
+
+    String key() {
+      return (String)values[KEY];
+    }
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Fetch a page of search results as rows, going back for the full comment list of any issue that has 
+   * more than the search embedded
+   */
+  static RowBatch fetch(JiraRestReader reader, String jql, int startAt, int maxResults) throws Exception {
+    long start = System.nanoTime();
+    List<ParsedIssue> issues = parseSearch(reader.searchBytes(jql, startAt, maxResults, FIELDS));
+    for (ParsedIssue issue : issues) {
+      if (issue.commentTotal > issue.comments.size()) {
+        issue.comments = parseIssue(reader.getIssueBytes(issue.key(), FIELDS)).comments;
+      }
+    }
+    ImportMetrics.time("fetch.batch", start);
+    return rows(issues);
+  }
+
+  /**
+   * The rows for parsed issues: tagged, with the comment counts filled in, and the attachments stored if 
+   * there's an AttachmentStore
+   */
+  static RowBatch rows(List<ParsedIssue> parsed) throws Exception {
+    List<Object[]> comments = Lists.newArrayList();
+    List<Object[]> attachments = Lists.newArrayList();
+    List<Object[]> issues = Lists.newArrayListWithCapacity(parsed.size());
+    DateTime maxUpdated = null;
+    for (ParsedIssue issue : parsed) {
+      comments.addAll(issue.comments);
+      attachments.addAll(issue.attachments);
+      issue.values[ATTACHMENTS] = issue.attachments.size();
+      issue.values[COMMENTS] = issue.comments.size();
+      issues.add(PhoenixJiraPersister.withTags(issue.values, (String)issue.values[SUMMARY]));
+      maxUpdated = JiraFetcher.later(maxUpdated, issue.updated);
+    }
+    AttachmentStore store = AttachmentStore.get();
+    if (store != null && !attachments.isEmpty()) attachments = store.store(attachments);
+    return new RowBatch(issues, comments, attachments, maxUpdated);
+  }
+
+  /**
+   * The issues in a page of search results
+   */
+  static List<ParsedIssue> parseSearch(byte[] page) throws IOException {
+    List<ParsedIssue> issues = Lists.newArrayList();
+    JsonParser p = json.createJsonParser(page);
+    try {
+      expect(p.nextToken(), JsonToken.START_OBJECT);
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String name = p.getCurrentName();
+        JsonToken value = p.nextToken();
+        if (name.equals("issues") && value == JsonToken.START_ARRAY) {
+          while (p.nextToken() == JsonToken.START_OBJECT) {
+            issues.add(issue(p));
+          }
+        } else {
+          p.skipChildren();
+        }
+      }
+    } finally {
+      p.close();
+    }
+    return issues;
+  }
+
+  /**
+   * A single issue, from the issue resource
+   */
+  static ParsedIssue parseIssue(byte[] issue) throws IOException {
+    JsonParser p = json.createJsonParser(issue);
+    try {
+      expect(p.nextToken(), JsonToken.START_OBJECT);
+      return issue(p);
+    } finally {
+      p.close();
+    }
+  }
+
+  private static ParsedIssue issue(JsonParser p) throws IOException {
+    ParsedIssue issue = new ParsedIssue();
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      p.nextToken();
+      if (name.equals("id")) {
+        issue.values[ID] = Long.valueOf(p.getText());
+      } else if (name.equals("key")) {
+        issue.values[KEY] = p.getText();
+      } else if (name.equals("fields") && p.getCurrentToken() == JsonToken.START_OBJECT) {
+        fields(p, issue);
+      } else {
+        p.skipChildren();
+      }
+    }
+    // "key" can come after "fields"
+    for (Object[] comment : issue.comments) {
+      comment[1] = issue.key();
+    }
+    for (Object[] attachment : issue.attachments) {
+      attachment[0] = issue.key();
+    }
+    return issue;
+  }
+
+  private static void fields(JsonParser p, ParsedIssue issue) throws IOException {
+    Object[] v = issue.values;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      p.nextToken();
+      if (name.equals("summary")) {
+        v[SUMMARY] = text(p);
+      } else if (name.equals("description")) {
+        v[DESCRIPTION] = text(p);
+      } else if (name.equals("assignee")) {
+        v[ASSIGNEE] = Dictionary.intern(member(p, "displayName"));
+      } else if (name.equals("reporter")) {
+        v[REPORTER] = Dictionary.intern(member(p, "displayName"));
+      } else if (name.equals("created")) {
+        v[CREATED] = timestamp(text(p));
+      } else if (name.equals("updated")) {
+        String updated = text(p);
+        issue.updated = updated == null ? null : JIRA_DATE.parseDateTime(updated);
+        v[UPDATED] = issue.updated == null ? null : new Timestamp(issue.updated.getMillis());
+      } else if (name.equals("issuetype")) {
+        v[ISSUE_TYPE] = Dictionary.intern(member(p, "name"));
+      } else if (name.equals("priority")) {
+        v[PRIORITY] = Dictionary.intern(member(p, "name"));
+      } else if (name.equals("resolution")) {
+        v[RESOLUTION] = Dictionary.intern(member(p, "name"));
+      } else if (name.equals("status")) {
+        v[STATUS] = Dictionary.intern(member(p, "name"));
+      } else if (name.equals("watches")) {
+        String watchCount = member(p, "watchCount");
+        v[WATCHERS] = watchCount == null ? null : Integer.valueOf(watchCount);
+      } else if (name.equals("versions")) {
+        v[AFFECTED_VERSIONS] = count(p);
+      } else if (name.equals("fixVersions")) {
+        v[FIX_VERSIONS] = count(p);
+      } else if (name.equals("issuelinks")) {
+        v[ISSUE_LINKS] = count(p);
+      } else if (name.equals("labels")) {
+        v[LABELS] = count(p);
+      } else if (name.equals("subtasks")) {
+        v[SUBTASKS] = count(p);
+      } else if (name.equals("worklog")) {
+        v[WORKLOGS] = memberCount(p, "worklogs");
+      } else if (name.equals("attachment")) {
+        attachments(p, issue);
+      } else if (name.equals("comment")) {
+        comments(p, issue);
+      } else {
+        p.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * {"comments": [...], "total": n}
+   */
+  private static void comments(JsonParser p, ParsedIssue issue) throws IOException {
+    if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+      p.skipChildren();
+      return;
+    }
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken value = p.nextToken();
+      if (name.equals("total")) {
+        issue.commentTotal = p.getIntValue();
+      } else if (name.equals("comments") && value == JsonToken.START_ARRAY) {
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+          Object[] row = new Object[PhoenixJiraPersister.COMMENT_COLUMNS.length];
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            if (field.equals("id")) {
+              row[0] = Long.valueOf(p.getText());
+            } else if (field.equals("author")) {
+              row[2] = Dictionary.intern(member(p, "displayName"));
+            } else if (field.equals("body")) {
+              row[3] = text(p);
+            } else if (field.equals("created")) {
+              row[4] = timestamp(text(p));
+            } else {
+              p.skipChildren();
+            }
+          }
+          issue.comments.add(row);
+        }
+      } else {
+        p.skipChildren();
+      }
+    }
+    issue.commentTotal = Math.max(issue.commentTotal, issue.comments.size());
+  }
+
+  private static void attachments(JsonParser p, ParsedIssue issue) throws IOException {
+    if (p.getCurrentToken() != JsonToken.START_ARRAY) {
+      p.skipChildren();
+      return;
+    }
+    while (p.nextToken() == JsonToken.START_OBJECT) {
+      Object[] row = new Object[PhoenixJiraPersister.ATTACHMENT_COLUMNS.length];
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        p.nextToken();
+        if (field.equals("filename")) {
+          row[1] = text(p);
+        } else if (field.equals("content")) {
+          row[2] = text(p);
+        } else if (field.equals("author")) {
+          row[3] = member(p, "displayName");
+        } else if (field.equals("mimeType")) {
+          row[4] = text(p);
+        } else if (field.equals("size")) {
+          row[5] = p.getIntValue();
+        } else if (field.equals("created")) {
+          row[6] = timestamp(text(p));
+        } else {
+          p.skipChildren();
+        }
+      }
+      issue.attachments.add(row);
+    }
+  }
+
+  /**
+   * The current value as text, or null for a json null
+   */
+  private static String text(JsonParser p) throws IOException {
+    if (p.getCurrentToken() == JsonToken.VALUE_NULL) return null;
+    if (p.getCurrentToken().isScalarValue()) return p.getText();
+    p.skipChildren();
+    return null;
+  }
+
+  /**
+   * One scalar member of the current object (e.g. a user's displayName), skipping the rest
+   */
+  private static String member(JsonParser p, String member) throws IOException {
+    if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+      p.skipChildren();
+      return null;
+    }
+    String value = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      p.nextToken();
+      if (name.equals(member)) {
+        value = text(p);
+      } else {
+        p.skipChildren();
+      }
+    }
+    return value;
+  }
+
+  /**
+   * The length of the current array, or null for a json null
+   */
+  private static Integer count(JsonParser p) throws IOException {
+    if (p.getCurrentToken() != JsonToken.START_ARRAY) {
+      p.skipChildren();
+      return null;
+    }
+    int n = 0;
+    JsonToken t;
+    while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (t != JsonToken.VALUE_NULL) n++;
+      p.skipChildren();
+    }
+    return n;
+  }
+
+  /**
+   * The length of an array member of the current object
+   */
+  private static Integer memberCount(JsonParser p, String member) throws IOException {
+    if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+      p.skipChildren();
+      return null;
+    }
+    Integer count = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      p.nextToken();
+      if (name.equals(member)) {
+        count = count(p);
+      } else {
+        p.skipChildren();
+      }
+    }
+    return count;
+  }
+
+  private static Timestamp timestamp(String jiraDate) {
+    return jiraDate == null ? null : new Timestamp(JIRA_DATE.parseMillis(jiraDate));
+  }
+
+  private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+    if (actual != expected) throw new IOException("Expected " + expected + " but found " + actual);
+  }
+}
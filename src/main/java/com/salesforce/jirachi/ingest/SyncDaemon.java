@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the tables in step with JIRA as it changes, instead of in periodic full imports
+ * 
+ * JIRA webhooks (issue created/updated, comment added, ...) are POSTed to http://host:jirachi.daemon.port/,
+ * and the issues they name are fetched and upserted (and tagged) jirachi.daemon.coalesceMillis after the 
+ * first event, so a burst of edits to an issue costs one fetch. Webhooks are not guaranteed to arrive, so 
+ * an incremental import (see JiraFetcher) also runs at startup and every jirachi.daemon.reconcileMinutes, 
+ * and that's what moves the watermark. Flushes and reconciles run on one thread, so they never overlap, 
+ * and changed tagger rules are picked up in between (see JiraTagger.reloadIfChanged()).
+ * 
+ * Deleted issues are not removed from the tables. The endpoint has no authentication, so it should only 
+ * be reachable by the JIRA server.
+ */
+public class SyncDaemon {
+
+  private static int port = Integer.getInteger("jirachi.daemon.port", 8765);
+  private static long coalesceMillis = Long.getLong("jirachi.daemon.coalesceMillis", 2000);
+  private static long reconcileMinutes = Long.getLong("jirachi.daemon.reconcileMinutes", 15);
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+  /**
+   * What an issue key looks like; nothing else gets near the JQL
+   */
+  static final Pattern ISSUE_KEY = Pattern.compile("[A-Z][A-Z0-9_]*-[0-9]+");
+
+  private final JiraRestReader reader;
+  private final String jql;
+  private final JiraSink sink;
+  private final long coalesce;
+  /**
+   * Issue key -> System.nanoTime() of its first event since the last flush
+   */
+  private final Map<String,Long> pending = Maps.newLinkedHashMap();
+  private final ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1);
+  private HttpServer server;
+
+  public static void main(String[] args) throws Exception {
+    CliMain.setProperties();
+    ImportMetrics.start();
+    JiraTagger.syncRules();
+    final SyncDaemon daemon = new SyncDaemon(JiraFetcher.reader(), JiraFetcher.query(), 
+        PhoenixJiraPersister.UPSERT, coalesceMillis);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        try {
+          daemon.stop();
+          ImportMetrics.finish();
+        } catch (Exception e) {
+          e.printStackTrace();
+        } finally {
+          PhoenixUtils.closeConnections();
+        }
+      }
+    });
+    daemon.start(port);
+    daemon.reconcileEvery(reconcileMinutes);
+    System.out.println("Listening for JIRA webhooks on port " + port);
+  }
+
+  /**
+   * @param jql what's being imported; webhook issues are fetched with this restricted to their keys
+   */
+  public SyncDaemon(JiraRestReader reader, String jql, JiraSink sink, long coalesceMillis) {
+    this.reader = reader;
+    this.jql = jql;
+    this.sink = sink;
+    this.coalesce = coalesceMillis;
+    worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // stop() flushes what's pending
+  }
+
+  /**
+   * Start listening for webhooks (port 0 picks a free one, see getPort())
+   */
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          int status = 405;
+          if (exchange.getRequestMethod().equals("POST")) {
+            InputStream in = exchange.getRequestBody();
+            try {
+              status = event(JSON.readTree(in)) ? 204 : 400;
+            } catch (IOException e) {
+              status = 400; // not json
+            } finally {
+              in.close();
+            }
+          }
+          exchange.sendResponseHeaders(status, -1);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Run an incremental import now, then every so many minutes after the last one finishes
+   */
+  public void reconcileEvery(long minutes) {
+    worker.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          JiraTagger.reloadIfChanged();
+          long start = System.nanoTime();
+          JiraFetcher.fetchAndPersist(true);
+          ImportMetrics.time("daemon.reconcile", start);
+        } catch (Exception e) {
+          // the next one will try again
+          ImportMetrics.count("daemon.errors", 1);
+          e.printStackTrace();
+        }
+      }
+    }, 0, minutes, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Queue the issue in a webhook payload to be synced; events without one (or with a key that doesn't 
+   * look like an issue key) are ignored, and so are deletes
+   * 
+   * @return false if the payload isn't a json object at all
+   */
+  boolean event(JsonNode json) {
+    ImportMetrics.count("daemon.events", 1);
+    if (json == null || !json.isObject()) {
+      ImportMetrics.count("daemon.ignored", 1);
+      return false;
+    }
+    JsonNode key = json.path("issue").path("key");
+    if (!key.isTextual() || !ISSUE_KEY.matcher(key.getTextValue()).matches() || 
+        "jira:issue_deleted".equals(json.path("webhookEvent").getTextValue())) {
+      ImportMetrics.count("daemon.ignored", 1);
+      return true;
+    }
+    accept(key.getTextValue());
+    return true;
+  }
+
+  /**
+   * Queue this issue to be synced, at the end of the current coalescing window
+   */
+  public void accept(String key) {
+    if (!ISSUE_KEY.matcher(key).matches()) throw new IllegalArgumentException("Not an issue key: " + key);
+    synchronized (pending) {
+      if (pending.containsKey(key)) {
+        ImportMetrics.count("daemon.coalesced", 1);
+        return;
+      }
+      pending.put(key, System.nanoTime());
+      if (pending.size() > 1) return; // a flush is already scheduled
+    }
+    worker.schedule(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (Exception e) {
+          // missed issues are picked up by the next reconcile
+          ImportMetrics.count("daemon.errors", 1);
+          e.printStackTrace();
+        }
+      }
+    }, coalesce, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Fetch and persist every queued issue, a search page at a time
+   */
+  public void flush() throws Exception {
+    Map<String,Long> keys;
+    synchronized (pending) {
+      keys = Maps.newLinkedHashMap(pending);
+      pending.clear();
+    }
+    if (keys.isEmpty()) return;
+    JiraTagger.reloadIfChanged();
+    for (List<String> chunk : Lists.partition(Lists.newArrayList(keys.keySet()), JiraFetcher.BATCH_SIZE)) {
+      try {
+        sync(chunk);
+      } catch (IOException e) {
+        // JIRA rejects the whole search if any key doesn't exist (any more), so go one at a time
+        if (chunk.size() == 1 || !e.getMessage().startsWith("HTTP 400")) throw e;
+        for (String key : chunk) {
+          try {
+            sync(Lists.newArrayList(key));
+          } catch (IOException e1) {
+            if (!e1.getMessage().startsWith("HTTP 400")) throw e1;
+            ImportMetrics.count("daemon.ignored", 1);
+          }
+        }
+      }
+    }
+    sink.flush();
+    for (long received : keys.values()) {
+      ImportMetrics.time("daemon.lag", received);
+    }
+  }
+
+  private void sync(List<String> keys) throws Exception {
+    RowBatch rows = JiraFetcher.fetchRows(reader, 
+        JiraFetcher.restrict(jql, "key in (\"" + Joiner.on("\", \"").join(keys) + "\")"), 0, null);
+    if (rows != null && !rows.issues.isEmpty()) sink.persist(rows);
+  }
+
+  /**
+   * Stop taking webhooks, and sync what's already been received
+   */
+  public void stop() throws Exception {
+    if (server != null) server.stop(0);
+    worker.shutdown();
+    worker.awaitTermination(1, TimeUnit.MINUTES);
+    flush();
+  }
+}
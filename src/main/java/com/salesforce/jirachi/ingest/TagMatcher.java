@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Evaluates every tag's include and exclude matchers against a summary in a single pass.
+ * 
+ * Matchers have the semantics of the old "lower(summary) like '%{matcher}%'" clauses: case insensitive,
+ * with '%' matching any run of characters and '_' matching exactly one. The longest literal run of each 
+ * matcher goes into one Aho-Corasick automaton, so a summary is scanned once no matter how many tags and 
+ * terms there are; a matcher with wildcards is only checked in full when its literal run shows up.
+ */
+public class TagMatcher {
+
+  private final String[] tagNames;
+  private final Matcher[] matchers;
+  /**
+   * Matchers with no literal characters at all, which have to be checked against everything
+   */
+  private final int[] alwaysCheck;
+
+  // the automaton: for each state, its sorted transition chars and target states, its failure state, 
+  // and the matchers whose literal run ends there
+  private final char[][] labels;
+  private final int[][] targets;
+  private final int[] fail;
+  private final int[][] output;
+
+  private static class Matcher {
+    final int tag;
+    final boolean exclude;
+    final char[] like;
+    final boolean literal;
+
+    Matcher(int tag, boolean exclude, String term) {
+      this.tag = tag;
+      this.exclude = exclude;
+      this.like = term.toLowerCase().toCharArray();
+      this.literal = term.indexOf('%') < 0 && term.indexOf('_') < 0;
+    }
+
+    /**
+     * The longest run of non-wildcard characters
+     */
+    String key() {
+      String best = "";
+      StringBuilder run = new StringBuilder();
+      for (char c : like) {
+        if (c == '%' || c == '_') {
+          run.setLength(0);
+        } else {
+          run.append(c);
+          if (run.length() > best.length()) best = run.toString();
+        }
+      }
+      return best;
+    }
+  }
+
+  public TagMatcher(Map<String,List<String>> tags, Map<String,List<String>> tagExclusions) {
+    tagNames = tags.keySet().toArray(new String[tags.size()]);
+    List<Matcher> all = Lists.newArrayList();
+    for (int t = 0; t < tagNames.length; t++) {
+      for (String term : tags.get(tagNames[t])) {
+        all.add(new Matcher(t, false, term));
+      }
+      List<String> exclusions = tagExclusions.get(tagNames[t]);
+      if (exclusions != null) {
+        for (String term : exclusions) {
+          all.add(new Matcher(t, true, term));
+        }
+      }
+    }
+    matchers = all.toArray(new Matcher[all.size()]);
+
+    // build the trie of literal runs
+    List<TreeMap<Character,Integer>> trie = Lists.newArrayList();
+    List<List<Integer>> ends = Lists.newArrayList();
+    trie.add(new TreeMap<Character,Integer>());
+    ends.add(new ArrayList<Integer>());
+    List<Integer> noKey = Lists.newArrayList();
+    for (int m = 0; m < matchers.length; m++) {
+      String key = matchers[m].key();
+      if (key.length() == 0) {
+        noKey.add(m);
+        continue;
+      }
+      int state = 0;
+      for (char c : key.toCharArray()) {
+        Integer next = trie.get(state).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(new TreeMap<Character,Integer>());
+          ends.add(new ArrayList<Integer>());
+          trie.get(state).put(c, next);
+        }
+        state = next;
+      }
+      ends.get(state).add(m);
+    }
+    alwaysCheck = toArray(noKey);
+
+    int size = trie.size();
+    labels = new char[size][];
+    targets = new int[size][];
+    for (int s = 0; s < size; s++) {
+      TreeMap<Character,Integer> edges = trie.get(s);
+      labels[s] = new char[edges.size()];
+      targets[s] = new int[edges.size()];
+      int i = 0;
+      for (Entry<Character,Integer> e : edges.entrySet()) {
+        labels[s][i] = e.getKey();
+        targets[s][i++] = e.getValue();
+      }
+    }
+
+    // failure links, breadth first, folding each state's failure outputs into its own
+    fail = new int[size];
+    output = new int[size][];
+    output[0] = toArray(ends.get(0));
+    LinkedList<Integer> queue = new LinkedList<Integer>();
+    for (int child : targets[0]) {
+      fail[child] = 0;
+      output[child] = toArray(ends.get(child));
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int s = queue.removeFirst();
+      for (int i = 0; i < labels[s].length; i++) {
+        char c = labels[s][i];
+        int child = targets[s][i];
+        int f = fail[s];
+        while (f != 0 && next(f, c) < 0) f = fail[f];
+        int n = next(f, c);
+        fail[child] = n < 0 ? 0 : n;
+        List<Integer> out = Lists.newArrayList(ends.get(child));
+        for (int m : output[fail[child]]) out.add(m);
+        output[child] = toArray(out);
+        queue.add(child);
+      }
+    }
+  }
+
+  public String[] getTagNames() {
+    return tagNames.clone();
+  }
+
+  /**
+   * The longest literal run of each include matcher: a summary can only get a tag if it contains one of them
+   */
+  public List<String> getIncludeKeys() {
+    List<String> keys = Lists.newArrayList();
+    for (Matcher m : matchers) {
+      if (!m.exclude) keys.add(m.key());
+    }
+    return keys;
+  }
+
+  /**
+   * @return for each tag (in getTagNames() order), whether it applies to this summary
+   */
+  public boolean[] match(String summary) {
+    boolean[] result = new boolean[tagNames.length];
+    if (summary == null) return result;
+    String text = summary.toLowerCase();
+    // collect the matchers whose literal run occurs, each once
+    boolean[] seen = new boolean[matchers.length];
+    int[] candidates = new int[16];
+    int count = 0;
+    for (int m : alwaysCheck) {
+      if (count == candidates.length) candidates = Arrays.copyOf(candidates, count * 2);
+      candidates[count++] = m;
+      seen[m] = true;
+    }
+    int state = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int n;
+      while ((n = next(state, c)) < 0 && state != 0) state = fail[state];
+      state = n < 0 ? 0 : n;
+      for (int m : output[state]) {
+        if (seen[m]) continue;
+        seen[m] = true;
+        if (count == candidates.length) candidates = Arrays.copyOf(candidates, count * 2);
+        candidates[count++] = m;
+      }
+    }
+
+    boolean[] excluded = new boolean[tagNames.length];
+    for (int c = 0; c < count; c++) {
+      Matcher matcher = matchers[candidates[c]];
+      boolean[] flags = matcher.exclude ? excluded : result;
+      if (flags[matcher.tag]) continue; // already know
+      if (matcher.literal || like(text, matcher.like)) flags[matcher.tag] = true;
+    }
+    for (int t = 0; t < result.length; t++) {
+      result[t] &= !excluded[t];
+    }
+    return result;
+  }
+
+  /**
+   * Is the text like '%{pattern}%'? Each '%'-separated segment has to appear, in order; taking the earliest 
+   * occurrence of each one is always safe.
+   */
+  static boolean like(String text, char[] pattern) {
+    int pos = 0;
+    int start = 0;
+    for (int i = 0; i <= pattern.length; i++) {
+      if (i == pattern.length || pattern[i] == '%') {
+        if (i > start) {
+          int found = find(text, pos, pattern, start, i);
+          if (found < 0) return false;
+          pos = found + (i - start);
+        }
+        start = i + 1;
+      }
+    }
+    return true;
+  }
+
+  private static int find(String text, int from, char[] pattern, int start, int end) {
+    int len = end - start;
+    outer:
+    for (int at = from; at + len <= text.length(); at++) {
+      for (int j = 0; j < len; j++) {
+        char p = pattern[start + j];
+        if (p != '_' && p != text.charAt(at + j)) continue outer;
+      }
+      return at;
+    }
+    return -1;
+  }
+
+  private int next(int state, char c) {
+    int i = Arrays.binarySearch(labels[state], c);
+    return i < 0 ? -1 : targets[state][i];
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] a = new int[list.size()];
+    for (int i = 0; i < a.length; i++) {
+      a[i] = list.get(i);
+    }
+    return a;
+  }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * AttachmentStoreTest, downloading from a StubJiraServer
+ */
+public class AttachmentStoreTest {
+
+  private StubJiraServer stub;
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    stub = new StubJiraServer(new SyntheticJira(3), 10);
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    stub.stop();
+    delete(dir);
+  }
+
+  @Test
+  public void storesByContent() throws Exception {
+    AttachmentStore store = new AttachmentStore(dir, 2);
+    List<Object[]> rows = store.store(rows(
+        row("HBASE-1", "1", "HBASE-1.patch"), 
+        row("HBASE-2", "2", "HBASE-1.patch"), // same content, different attachment
+        row("HBASE-2", "3", "HBASE-2.txt")));
+    assertEquals(3, stub.getRequests());
+
+    String checksum = sha1(StubJiraServer.attachmentContent("HBASE-1.patch"));
+    assertEquals(checksum, rows.get(0)[8]);
+    assertEquals(checksum, rows.get(1)[8]);
+    assertEquals(rows.get(0)[7], rows.get(1)[7]);
+    assertArrayEquals(StubJiraServer.attachmentContent("HBASE-1.patch"), Files.toByteArray(new File((String) rows.get(0)[7])));
+    assertEquals(sha1(StubJiraServer.attachmentContent("HBASE-2.txt")), rows.get(2)[8]);
+    // the original columns are left alone
+    assertEquals("HBASE-2", rows.get(2)[0]);
+  }
+
+  @Test
+  public void downloadsEachAttachmentOnce() throws Exception {
+    new AttachmentStore(dir, 2).store(rows(row("HBASE-1", "1", "HBASE-1.patch")));
+    assertEquals(1, stub.getRequests());
+    // a later run, with a new store over the same directory
+    List<Object[]> rows = new AttachmentStore(dir, 2).store(rows(row("HBASE-1", "1", "HBASE-1.patch")));
+    assertEquals(1, stub.getRequests());
+    assertEquals(sha1(StubJiraServer.attachmentContent("HBASE-1.patch")), rows.get(0)[8]);
+  }
+
+  @Test
+  public void failedDownloadLeavesColumnsEmpty() throws Exception {
+    List<Object[]> rows = new AttachmentStore(dir, 2).store(rows(
+        new Object[] { "HBASE-1", "x.txt", stub.getBaseUrl() + "nothing/here", null, null, 10, null }));
+    assertEquals(9, rows.get(0).length);
+    assertNull(rows.get(0)[7]);
+    assertNull(rows.get(0)[8]);
+  }
+
+  private static List<Object[]> rows(Object[]... rows) {
+    List<Object[]> list = Lists.newArrayList();
+    for (Object[] row : rows) {
+      list.add(row);
+    }
+    return list;
+  }
+
+  private Object[] row(String key, String id, String filename) {
+    return new Object[] { key, filename, stub.getBaseUrl() + "secure/attachment/" + id + "/" + filename, "stack", "text/plain", 100, null };
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+  private static String sha1(byte[] content) throws Exception {
+    return AttachmentStore.hex(MessageDigest.getInstance("SHA-1").digest(content));
+  }
+}
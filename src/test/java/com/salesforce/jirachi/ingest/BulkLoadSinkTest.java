@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * BulkLoadSinkTest: the HFiles it writes (without Phoenix to encode the rows, or HBase to load them)
+ */
+public class BulkLoadSinkTest {
+
+  private static final RowBatch NO_ROWS = new RowBatch(Collections.<Object[]>emptyList(), 
+      Collections.<Object[]>emptyList(), Collections.<Object[]>emptyList(), null);
+
+  private Configuration conf;
+  private FileSystem fs;
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(new Path(dir.getPath()), true);
+  }
+
+  @Test
+  public void writesSortedFilePerTableAndFamily() throws Exception {
+    BulkLoadSink sink = new BulkLoadSink(conf, new Path(dir.getPath()), Long.MAX_VALUE);
+    Map<String,List<KeyValue>> batch = Maps.newHashMap();
+    batch.put("JIRA_ISSUE", Lists.newArrayList(kv("row3", "_0", 1), kv("row1", "_0", 1), kv("row2", "_0", 1)));
+    batch.put("JIRA_COMMENT", Lists.newArrayList(kv("c2", "_0", 1), kv("c1", "_0", 1), kv("c1", "other", 1)));
+    sink.buffer(batch, NO_ROWS);
+    batch = Maps.newHashMap();
+    batch.put("JIRA_ISSUE", Lists.newArrayList(kv("row0", "_0", 2), kv("row1", "_0", 2)));
+    sink.buffer(batch, NO_ROWS);
+    sink.writeFiles();
+
+    List<KeyValue> issues = read(new Path(dir.getPath(), "JIRA_ISSUE/_0"));
+    assertEquals(5, issues.size());
+    for (int i = 1; i < issues.size(); i++) {
+      assertTrue(KeyValue.COMPARATOR.compare(issues.get(i - 1), issues.get(i)) < 0);
+    }
+    // the newer copy of row1 sorts first, so it's the one HBase returns
+    assertEquals("row1", Bytes.toString(issues.get(1).getRow()));
+    assertEquals(2, issues.get(1).getTimestamp());
+    assertEquals(2, read(new Path(dir.getPath(), "JIRA_COMMENT/_0")).size());
+    assertEquals(1, read(new Path(dir.getPath(), "JIRA_COMMENT/other")).size());
+  }
+
+  @Test
+  public void writesWhenBufferIsFull() throws Exception {
+    BulkLoadSink sink = new BulkLoadSink(conf, new Path(dir.getPath()), 1);
+    Map<String,List<KeyValue>> batch = Maps.newHashMap();
+    batch.put("JIRA_ISSUE", Lists.newArrayList(kv("row1", "_0", 1)));
+    sink.buffer(batch, NO_ROWS);
+    sink.buffer(batch, NO_ROWS);
+    assertEquals(2, fs.listStatus(new Path(dir.getPath(), "JIRA_ISSUE/_0")).length);
+  }
+
+  @Test
+  public void remembersFingerprintsOnlyOnceLoaded() throws Exception {
+    final List<RowBatch> written = Lists.newArrayList();
+    final int[] loads = { 0 };
+    BulkLoadSink sink = new BulkLoadSink(conf, new Path(dir.getPath()), Long.MAX_VALUE, true) {
+      @Override
+      void load(Path tableDir) throws Exception {
+        if (loads[0]++ == 0) throw new IOException("region server went away");
+        fs.delete(tableDir, true);
+      }
+
+      @Override
+      void written(RowBatch rows) {
+        written.add(rows);
+      }
+    };
+    Map<String,List<KeyValue>> batch = Maps.newHashMap();
+    batch.put("JIRA_ISSUE", Lists.newArrayList(kv("row1", "_0", 1)));
+    RowBatch rows = new RowBatch(Lists.<Object[]>newArrayList(new Object[] { 1L, "HBASE-1", 42L }), 
+        Collections.<Object[]>emptyList(), Collections.<Object[]>emptyList(), null);
+    sink.buffer(batch, rows);
+    assertTrue(written.isEmpty());
+    try {
+      sink.flush();
+      fail();
+    } catch (IOException expected) {
+    }
+    // the file's still there to load, and the rows aren't taken as written
+    assertEquals(1, fs.listStatus(new Path(dir.getPath(), "JIRA_ISSUE/_0")).length);
+    assertTrue(written.isEmpty());
+
+    sink.flush();
+    assertEquals(1, written.size());
+    assertTrue(written.get(0) == rows);
+    assertTrue(!fs.exists(new Path(dir.getPath(), "JIRA_ISSUE")));
+    sink.flush();
+    assertEquals(1, written.size());
+  }
+
+  private static KeyValue kv(String row, String family, long timestamp) {
+    return new KeyValue(Bytes.toBytes(row), Bytes.toBytes(family), Bytes.toBytes("SUMMARY"), timestamp, 
+        Bytes.toBytes("value of " + row));
+  }
+
+  /**
+   * Everything in the (one) HFile in the directory, in file order
+   */
+  private List<KeyValue> read(Path familyDir) throws Exception {
+    FileStatus[] files = fs.listStatus(familyDir);
+    assertEquals(1, files.length);
+    HFile.Reader reader = HFile.createReader(fs, files[0].getPath(), new CacheConfig(conf));
+    try {
+      reader.loadFileInfo();
+      List<KeyValue> kvs = Lists.newArrayList();
+      HFileScanner scanner = reader.getScanner(false, false);
+      if (scanner.seekTo()) {
+        do {
+          kvs.add(scanner.getKeyValue());
+        } while (scanner.next());
+      }
+      return kvs;
+    } finally {
+      reader.close();
+    }
+  }
+}
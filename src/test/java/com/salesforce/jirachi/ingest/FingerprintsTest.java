@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+/**
+ * FingerprintsTest
+ */
+public class FingerprintsTest {
+
+  @Test
+  public void fingerprintChangesWithAnyValue() {
+    Object[] row = { 1L, "HBASE-1", "summary", null, new Timestamp(1000L), 3, Boolean.TRUE };
+    long fingerprint = Fingerprints.fingerprint(row);
+    assertEquals(fingerprint, Fingerprints.fingerprint(row.clone()));
+    for (int i = 0; i < row.length; i++) {
+      Object[] changed = row.clone();
+      changed[i] = i == 3 ? "" : null;
+      assertFalse("column " + i, fingerprint == Fingerprints.fingerprint(changed));
+    }
+    // a value moving between columns is a change too
+    assertFalse(Fingerprints.fingerprint(new Object[] { "ab", "c" }) == Fingerprints.fingerprint(new Object[] { "a", "bc" }));
+  }
+
+  @Test
+  public void keysAreIdsOrHashesOfTheKeyColumns() {
+    assertEquals(42L, Fingerprints.key(new Object[] { 42L, "HBASE-1" }, 1));
+    assertEquals(Fingerprints.key(new Object[] { "HBASE-1", "a.patch", 100 }, 2), 
+        Fingerprints.key(new Object[] { "HBASE-1", "a.patch", 200 }, 2));
+    assertFalse(Fingerprints.key(new Object[] { "HBASE-1", "a.patch" }, 2) == 
+        Fingerprints.key(new Object[] { "HBASE-1", "b.patch" }, 2));
+  }
+
+  @Test
+  public void longMapGrowsAndReplaces() {
+    Fingerprints.LongMap map = new Fingerprints.LongMap(4);
+    for (long k = 0; k < 10000; k++) {
+      map.put(k * 1024, k + 1);
+    }
+    map.put(0, 99);
+    assertEquals(10000, map.size());
+    assertEquals(99, map.get(0));
+    assertEquals(5000, map.get(4999 * 1024));
+    assertEquals(0, map.get(7));
+  }
+}
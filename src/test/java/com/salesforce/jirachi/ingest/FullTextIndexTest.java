@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * FullTextIndexTest: the tokenizing and phrase matching (the lookups themselves need Phoenix)
+ */
+public class FullTextIndexTest {
+
+  @Test
+  public void tokensAreLowerCaseRunsOfLettersAndDigits() {
+    assertEquals(Arrays.asList("npe", "in", "hregionserver", "abort", "hbase", "8123"), 
+        FullTextIndex.tokens("NPE in HRegionServer.abort() (HBASE-8123)"));
+    assertEquals(Arrays.asList(), FullTextIndex.tokens("  -- "));
+    assertEquals(Arrays.asList(), FullTextIndex.tokens(null));
+  }
+
+  @Test
+  public void positionsPerDistinctTerm() {
+    Map<String,String> positions = FullTextIndex.positions(FullTextIndex.tokens("the region server, the master"));
+    assertEquals(Arrays.asList("the", "region", "server", "master"), Arrays.asList(positions.keySet().toArray()));
+    assertEquals("0,3", positions.get("the"));
+    assertArrayEquals(new int[] { 0, 3 }, FullTextIndex.parsePositions(positions.get("the")));
+  }
+
+  @Test
+  public void followedByKeepsPositionsRightAfterOnes() {
+    assertArrayEquals(new int[] { 2, 8 }, FullTextIndex.followedBy(new int[] { 1, 4, 7 }, new int[] { 0, 2, 3, 8, 9 }));
+    assertArrayEquals(new int[0], FullTextIndex.followedBy(new int[] { 5 }, new int[] { 5, 7 }));
+  }
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.salesforce.jirachi.ingest.ImportMetrics.Histogram;
+
+/**
+ * ImportMetricsTest
+ */
+public class ImportMetricsTest {
+
+  @Test
+  public void bucketsCoverEveryValue() {
+    for (long micros = 0; micros < 100000; micros++) {
+      int b = Histogram.bucket(micros);
+      assertTrue(micros <= Histogram.bucketLimit(b));
+      assertTrue(b == 0 || micros > Histogram.bucketLimit(b - 1));
+    }
+  }
+
+  @Test
+  public void percentilesWithinABucket() {
+    Histogram h = new Histogram();
+    for (int micros = 1; micros <= 1000; micros++) {
+      h.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000, h.getMaxMicros());
+    assertEquals(500.5, h.getMeanMicros(), 0.001);
+    assertNear(500, h.getP50Micros());
+    assertNear(900, h.getP90Micros());
+    assertNear(990, h.getP99Micros());
+    assertEquals(1000, h.percentile(1.0));
+  }
+
+  @Test
+  public void countersAdd() {
+    ImportMetrics.count("test.counter", 2);
+    ImportMetrics.count("test.counter", 3);
+    assertEquals(5, ImportMetrics.get("test.counter"));
+    assertEquals(0, ImportMetrics.get("test.missing"));
+  }
+
+  private static void assertNear(long expected, long actual) {
+    assertTrue(actual + " vs " + expected, actual >= expected && actual <= expected * 1.125);
+  }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * End to end ingest at scale: JiraFetcher's pipeline against a StubJiraServer serving SyntheticJira issues, 
+ * through PhoenixJiraPersister into an in-process HBase mini-cluster, then JiraTagger.addTags(). Reports 
+ * issues/sec, fetch and persist batch latencies, and peak heap for each size, and fails if any is worse 
+ * than the baseline file allows, or if there's no baseline to check. Not part of the normal build (it
+ * needs the HBase test jar, which only the profile brings in); run it with
+ * 
+ *   mvn test -Ploadtest
+ * 
+ * Settings (system properties, which the profile passes through):
+ *   jirachi.loadtest.sink          phoenix (the default) or binding
+ *   jirachi.loadtest.sizes         issue counts to run, default 1000,10000,100000
+ *   jirachi.loadtest.seed          SyntheticJira seed, default 42
+ *   jirachi.loadtest.comments      average comments per issue, default 8
+ *   jirachi.loadtest.latencyMillis time the stub takes over each request, default 20
+ *   jirachi.loadtest.baseline      baseline file, default src/test/resources/loadtest-baseline.properties
+ *   jirachi.loadtest.tolerance     how much worse than the baseline is still a pass, default 0.3
+ *   jirachi.loadtest.writeBaseline record this run's numbers as the baseline instead of checking them
+ * 
+ * With hbase.zookeeper.quorum set, the rows go to that cluster rather than a mini-cluster. The mini-cluster 
+ * runs in the test's JVM, so its heap is in the peak heap too. Each size is imported over the last (the 
+ * issues of a smaller size are the first issues of a bigger one), so the tables hold just that many issues
+ * when the tagger runs. The binding sink only binds every row to a statement that goes nowhere, for 
+ * measuring the fetch and row building on their own.
+ * 
+ * Baseline keys are {path}.{sink}.{issues}.{metric}, where the path is "streaming" or "jrjc" (see 
+ * StreamingFetch), so each fetch path and sink has its own numbers.
+ */
+public class IngestLoadTest {
+
+  private static final String JQL = "project = HBASE";
+  private static final String[] LOWER_IS_BETTER = { "fetchP99Millis", "persistP99Millis", "peakHeapMB" };
+  /**
+   * Latencies this close to the baseline pass whatever the tolerance, so a 2ms p99 can't fail at 3ms
+   */
+  private static final double SLACK_MILLIS = 5;
+  private static final boolean phoenix = 
+      "phoenix".equals(System.getProperty("jirachi.loadtest.sink", "phoenix"));
+
+  private static HBaseTestingUtility cluster;
+
+  private final String[] sizes = System.getProperty("jirachi.loadtest.sizes", "1000,10000,100000").split(",");
+  private final long seed = Long.getLong("jirachi.loadtest.seed", 42);
+  private final int comments = Integer.getInteger("jirachi.loadtest.comments", 8);
+  private final long latencyMillis = Long.getLong("jirachi.loadtest.latencyMillis", 20);
+  private final File baselineFile = new File(System.getProperty("jirachi.loadtest.baseline", 
+      "src/test/resources/loadtest-baseline.properties"));
+  private final double tolerance = Double.parseDouble(System.getProperty("jirachi.loadtest.tolerance", "0.3"));
+  private final boolean writeBaseline = Boolean.getBoolean("jirachi.loadtest.writeBaseline");
+  /**
+   * Start a mini-cluster, unless there's a cluster to use already (this has to come before anything 
+   * touches PhoenixUtils, which reads the quorum when it's loaded), and create the tables up front, so the
+   * first batch's persist time isn't mostly DDL
+   */
+  @BeforeClass
+  public static void startCluster() throws Exception {
+    if (!phoenix) return;
+    if (System.getProperty("hbase.zookeeper.quorum") == null) {
+      cluster = new HBaseTestingUtility();
+      cluster.startMiniCluster(1);
+      System.setProperty("hbase.zookeeper.quorum", "localhost:" + cluster.getZkCluster().getClientPort());
+    }
+    Connection conn = PhoenixUtils.getPhoenixConnection();
+    try {
+      PhoenixJiraPersister.ensureSchema(conn);
+    } finally {
+      PhoenixUtils.release(conn);
+    }
+  }
+
+  @AfterClass
+  public static void stopCluster() throws Exception {
+    if (phoenix) PhoenixUtils.closeConnections();
+    if (cluster != null) cluster.shutdownMiniCluster();
+  }
+
+  @Test
+  public void ingestAtScale() throws Exception {
+    Properties baseline = load(baselineFile);
+    Properties results = new Properties();
+    List<String> regressions = Lists.newArrayList();
+    String path = (StreamingFetch.isEnabled() ? "streaming" : "jrjc") + "." + (phoenix ? "phoenix" : "binding");
+    for (String size : sizes) {
+      int issues = Integer.parseInt(size.trim());
+      String prefix = path + "." + issues + ".";
+      Properties run = run(issues);
+      System.out.println(String.format(Locale.ROOT, "%-17s %7d issues: %8.1f issues/sec, fetch p50 %.1fms p99 %.1fms, " +
+          "persist p50 %.1fms p99 %.1fms, peak heap %sMB", path, issues, 
+          value(run, "issuesPerSec"), value(run, "fetchP50Millis"), value(run, "fetchP99Millis"),
+          value(run, "persistP50Millis"), value(run, "persistP99Millis"), run.getProperty("peakHeapMB")));
+      for (String metric : run.stringPropertyNames()) {
+        results.setProperty(prefix + metric, run.getProperty(metric));
+      }
+      if (writeBaseline) continue;
+      if (baseline.getProperty(prefix + "issuesPerSec") == null) {
+        regressions.add("no " + prefix + "* baseline in " + baselineFile + 
+            " (record one with -Djirachi.loadtest.writeBaseline=true)");
+      } else {
+        regressions.addAll(regressions(prefix, run, baseline));
+      }
+    }
+    new File("target").mkdirs();
+    store(results, new File("target/loadtest-results.properties"));
+    if (writeBaseline) {
+      baseline.putAll(results);
+      store(baseline, baselineFile);
+      System.out.println("Wrote the baseline to " + baselineFile);
+    }
+    assertTrue("Not up to the baseline: " + regressions, regressions.isEmpty());
+  }
+
+  private Properties run(int issues) throws Exception {
+    StubJiraServer stub = new StubJiraServer(new SyntheticJira(seed).commentsPerIssue(comments), issues);
+    stub.delayMillis(latencyMillis);
+    try {
+      JiraSink sink = phoenix ? PhoenixJiraPersister.UPSERT : new BindingSink();
+      JiraRestReader reader = new JiraRestReader(stub.getBaseUrl());
+      System.gc();
+      resetPeakHeap();
+      ImportMetrics.start();
+      long start = System.nanoTime();
+      JiraFetcher.ingest(new JiraFetcher.FetchedBatches(reader, JQL, issues, null), sink, null);
+      if (phoenix) JiraTagger.addTags();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      Properties run = new Properties();
+      run.setProperty("issuesPerSec", format(issues / seconds));
+      ImportMetrics.Histogram fetch = ImportMetrics.histogram("fetch.batch");
+      ImportMetrics.Histogram persist = ImportMetrics.histogram("persist.batch");
+      run.setProperty("fetchP50Millis", format(fetch.getP50Micros() / 1000.0));
+      run.setProperty("fetchP99Millis", format(fetch.getP99Micros() / 1000.0));
+      run.setProperty("persistP50Millis", format(persist.getP50Micros() / 1000.0));
+      run.setProperty("persistP99Millis", format(persist.getP99Micros() / 1000.0));
+      run.setProperty("peakHeapMB", String.valueOf(peakHeap() >> 20));
+      return run;
+    } finally {
+      stub.stop();
+    }
+  }
+
+  /**
+   * The metrics in this run that are worse than the baseline (by more than the tolerance)
+   */
+  List<String> regressions(String prefix, Properties run, Properties baseline) {
+    List<String> regressions = Lists.newArrayList();
+    String base = baseline.getProperty(prefix + "issuesPerSec");
+    if (base != null && value(run, "issuesPerSec") < Double.parseDouble(base) * (1 - tolerance)) {
+      regressions.add(prefix + "issuesPerSec " + run.getProperty("issuesPerSec") + " < " + base);
+    }
+    for (String metric : LOWER_IS_BETTER) {
+      base = baseline.getProperty(prefix + metric);
+      if (base == null) continue;
+      double limit = Double.parseDouble(base) * (1 + tolerance);
+      if (metric.endsWith("Millis")) limit = Math.max(limit, Double.parseDouble(base) + SLACK_MILLIS);
+      if (value(run, metric) > limit) {
+        regressions.add(prefix + metric + " " + run.getProperty(metric) + " > " + base);
+      }
+    }
+    return regressions;
+  }
+
+  /**
+   * Binds each row to a prepared statement that does nothing
+   */
+  static class BindingSink implements JiraSink {
+    private final PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+        IngestLoadTest.class.getClassLoader(), new Class[] { PreparedStatement.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+          }
+        });
+
+    public synchronized void persist(RowBatch rows) throws Exception {
+      bind(rows.issues);
+      bind(rows.comments);
+      bind(rows.attachments);
+    }
+
+    private void bind(List<Object[]> rows) throws Exception {
+      for (Object[] row : rows) {
+        PhoenixUtils.bind(stmt, row);
+        stmt.execute();
+      }
+    }
+
+    public void flush() {
+    }
+
+    public boolean isBuffered() {
+      return false;
+    }
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+  }
+
+  /**
+   * The sum of the heap pools' peaks (which needn't have come at the same time, so it's an upper bound)
+   */
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  private static double value(Properties p, String metric) {
+    return Double.parseDouble(p.getProperty(metric));
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.1f", value);
+  }
+
+  private static Properties load(File file) throws Exception {
+    Properties p = new Properties();
+    if (file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Write the properties out sorted, so baseline changes diff cleanly
+   */
+  private static void store(Properties p, File file) throws Exception {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+    try {
+      out.println("# IngestLoadTest numbers: {fetch path}.{sink}.{issues}.{metric}");
+      for (String key : new TreeSet<String>(p.stringPropertyNames())) {
+        out.println(key + "=" + p.getProperty(key));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * IssueIndexesTest: the index rows for a batch of issue rows
+ */
+public class IssueIndexesTest {
+
+  private static final Timestamp CREATED = new Timestamp(1369958400000L);
+
+  @Test
+  public void keyRowsForEveryIssue() {
+    List<Object[]> rows = IssueIndexes.keyRows(Arrays.asList(issue(1L, "HBASE-1", CREATED), issue(2L, "HBASE-2", null)));
+    assertEquals(2, rows.size());
+    assertArrayEquals(new Object[] { "HBASE-1", 1L }, rows.get(0));
+    assertArrayEquals(new Object[] { "HBASE-2", 2L }, rows.get(1));
+  }
+
+  @Test
+  public void createdRowsCarryTheCoveredColumns() {
+    List<Object[]> rows = IssueIndexes.createdRows(Arrays.asList(issue(1L, "HBASE-1", CREATED), issue(2L, "HBASE-2", null)));
+    assertEquals(1, rows.size()); // no creation date, no row
+    assertEquals(IssueIndexes.BY_CREATED_COLUMNS.length, rows.get(0).length);
+    assertArrayEquals(new Object[] { CREATED, 1L, "HBASE-1", "Bug", "Major", "Fixed", "Closed", 4 }, rows.get(0));
+  }
+
+  @Test
+  public void tagRowsForEachTagThatApplies() {
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    Object[] both = issue(1L, "HBASE-1", CREATED);
+    both[PhoenixJiraPersister.ISSUE_COLUMNS.length] = Boolean.TRUE;
+    both[PhoenixJiraPersister.ISSUE_COLUMNS.length + 1] = Boolean.TRUE;
+    Object[] none = issue(2L, "HBASE-2", CREATED);
+    Object[] undated = issue(3L, "HBASE-3", null);
+    undated[PhoenixJiraPersister.ISSUE_COLUMNS.length] = Boolean.TRUE;
+    List<Object[]> rows = IssueIndexes.tagRows(Arrays.asList(both, none, undated));
+    assertEquals(2, rows.size());
+    assertEquals(IssueIndexes.BY_TAG_COLUMNS.length, rows.get(0).length);
+    assertArrayEquals(new Object[] { tagNames[0], CREATED, 1L, "HBASE-1", "Bug", "Major", "Fixed", "Closed", 4 }, 
+        rows.get(0));
+    assertEquals(tagNames[1], rows.get(1)[0]);
+  }
+
+  private static Object[] issue(long id, String key, Timestamp created) {
+    Object[] issue = new Object[PhoenixJiraPersister.ISSUE_COLUMNS.length + JiraTagger.matcher.getTagNames().length];
+    issue[0] = id;
+    issue[1] = key;
+    issue[2] = "summary of " + key;
+    issue[6] = created;
+    issue[8] = "Bug";
+    issue[9] = "Major";
+    issue[10] = "Fixed";
+    issue[11] = "Closed";
+    issue[17] = 4; // numComments
+    return issue;
+  }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.salesforce.jirachi.ingest.JiraFetcher.BatchSource;
+import com.salesforce.jirachi.ingest.ShardedFetcher.Shard;
+
+/**
+ * JiraFetcherTest
+ */
+public class JiraFetcherTest {
+
+  private static final DateTime SINCE = new DateTime(2013, 5, 24, 9, 30, 0, 0);
+
+  @Test
+  public void updatedSinceWrapsQuery() {
+    assertEquals("(project = HBASE AND resolution = Fixed) AND updated >= \"2013/05/24 09:30\"",
+        JiraFetcher.updatedSince("project = HBASE AND resolution = Fixed", SINCE));
+  }
+
+  @Test
+  public void updatedSinceKeepsOrderByLast() {
+    assertEquals("(project = HBASE) AND updated >= \"2013/05/24 09:30\" ORDER BY key ASC",
+        JiraFetcher.updatedSince("project = HBASE ORDER BY key ASC", SINCE));
+  }
+
+  @Test
+  public void updatedSinceEmptyQuery() {
+    assertEquals("updated >= \"2013/05/24 09:30\"", JiraFetcher.updatedSince("", SINCE));
+  }
+
+  @Test
+  public void orderedByReplacesOrderBy() {
+    assertEquals("project = HBASE ORDER BY created ASC", JiraFetcher.orderedBy("project = HBASE order by key", "created ASC"));
+    assertEquals("project = HBASE ORDER BY created ASC", JiraFetcher.orderedBy("project = HBASE", "created ASC"));
+  }
+
+  @Test
+  public void shardsCoverTheRangeOnce() {
+    List<Shard> shards = ShardedFetcher.shards("project = HBASE ORDER BY key", "created", 
+        new LocalDate(2013, 1, 1), new LocalDate(2013, 1, 25), 10);
+    assertEquals(4, shards.size());
+    assertEquals("(project = HBASE) AND created >= \"2013/01/01\" AND created < \"2013/01/11\" ORDER BY key", shards.get(0).jql);
+    assertEquals("(project = HBASE) AND created >= \"2013/01/11\" AND created < \"2013/01/21\" ORDER BY key", shards.get(1).jql);
+    assertEquals("(project = HBASE) AND created >= \"2013/01/21\" AND created < \"2013/01/31\" ORDER BY key", shards.get(2).jql);
+    assertEquals("(project = HBASE) AND created is EMPTY ORDER BY key", shards.get(3).jql);
+  }
+
+  @Test
+  public void ingestReplacesRepeatedRowsAndFlushesOnce() throws Exception {
+    final Iterator<RowBatch> batches = Lists.newArrayList(
+        batch(new Object[] { 1L, "HBASE-1", "first" }, new Object[] { 2L, "HBASE-2", "second" }, SINCE.minusDays(2)),
+        batch(new Object[] { 1L, "HBASE-1", "first, updated" }, null, SINCE.minusDays(1))).iterator();
+    LocalSink sink = new LocalSink();
+    DateTime maxUpdated = JiraFetcher.ingest(new BatchSource() {
+      public RowBatch next() {
+        return batches.hasNext() ? batches.next() : null;
+      }
+
+      public void close() {
+      }
+    }, sink, SINCE.minusDays(3));
+    assertEquals(SINCE.minusDays(1), maxUpdated);
+    assertEquals(2, sink.getBatches());
+    assertEquals(1, sink.getFlushes());
+    assertEquals(2, sink.issueCount());
+    assertEquals("first, updated", sink.issue(1L)[2]);
+  }
+
+  private static RowBatch batch(Object[] issue, Object[] other, DateTime maxUpdated) {
+    List<Object[]> issues = Lists.newArrayList();
+    issues.add(issue);
+    if (other != null) issues.add(other);
+    return new RowBatch(issues, Lists.<Object[]>newArrayList(), Lists.<Object[]>newArrayList(), maxUpdated);
+  }
+}
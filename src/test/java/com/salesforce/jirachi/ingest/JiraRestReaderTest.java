@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * JiraRestReaderTest, against a StubJiraServer
+ */
+public class JiraRestReaderTest {
+
+  private static final int TOTAL = 400;
+  private static final int PAGE = 10;
+
+  private StubJiraServer stub;
+
+  @Before
+  public void startStub() throws Exception {
+    stub = new StubJiraServer(new SyntheticJira(11).commentsPerIssue(1).attachmentsPerIssue(0), TOTAL);
+  }
+
+  @After
+  public void stopStub() {
+    stub.stop();
+  }
+
+  @Test
+  public void fetchesEverythingWhileThrottled() throws Exception {
+    stub.maxConcurrent(3).delayMillis(20);
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 16, 1000);
+    final JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), limiter, 20, 5, 100);
+    assertEquals(TOTAL, reader.count("project = HBASE"));
+
+    ExecutorService fetchers = Executors.newFixedThreadPool(16);
+    List<Future<JSONObject>> pages = Lists.newArrayList();
+    for (int startAt = 0; startAt < TOTAL; startAt += PAGE) {
+      final int start = startAt;
+      pages.add(fetchers.submit(new Callable<JSONObject>() {
+        public JSONObject call() throws Exception {
+          return reader.search("project = HBASE", start, PAGE);
+        }
+      }));
+    }
+    int n = 0;
+    for (Future<JSONObject> page : pages) {
+      JSONArray issues = page.get().getJSONArray("issues");
+      for (int i = 0; i < issues.length(); i++) {
+        assertEquals(SyntheticJira.key(n++), issues.getJSONObject(i).getString("key"));
+      }
+    }
+    fetchers.shutdown();
+    assertEquals(TOTAL, n);
+    // the limiter went past what the server would take, got pushed back, and stayed near it
+    assertTrue(stub.getRejected() > 0);
+    assertTrue("limit " + limiter.getLimit(), limiter.getLimit() <= 6);
+  }
+
+  @Test
+  public void honorsRetryAfter() throws Exception {
+    stub.fail(1, 429, "1");
+    JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), new AdaptiveLimiter(1, 4, 1000), 3, 5, 100);
+    long start = System.currentTimeMillis();
+    assertEquals("HBASE-3", reader.getIssue("HBASE-3").getString("key"));
+    assertTrue(System.currentTimeMillis() - start >= 1000);
+    assertEquals(2, stub.getRequests());
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() throws Exception {
+    stub.fail(100, 503, null);
+    JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), new AdaptiveLimiter(1, 4, 1000), 2, 5, 100);
+    try {
+      reader.getIssue("HBASE-3");
+      fail();
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().startsWith("HTTP 503"));
+    }
+    assertEquals(3, stub.getRequests());
+  }
+
+  @Test
+  public void corruptBodiesReleaseTheirSlotOnce() throws Exception {
+    stub.corruptGzip(2);
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 1000);
+    JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), limiter, 3, 5, 100);
+    assertEquals("HBASE-3", reader.getIssue("HBASE-3").getString("key"));
+    assertEquals(3, stub.getRequests());
+    assertEquals(0, limiter.getInFlight());
+    // only the good response counts as a success
+    assertEquals(2, limiter.getLimit());
+
+    stub.corruptGzip(100);
+    limiter = new AdaptiveLimiter(1, 4, 1000);
+    reader = new JiraRestReader(stub.getBaseUrl(), limiter, 2, 5, 100);
+    try {
+      reader.getIssue("HBASE-3");
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() throws Exception {
+    JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), new AdaptiveLimiter(1, 4, 1000), 5, 5, 100);
+    try {
+      reader.getIssue("HBASE-" + (TOTAL + 1));
+      fail();
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().startsWith("HTTP 404"));
+    }
+    assertEquals(1, stub.getRequests());
+  }
+
+  @Test
+  public void retryAfterFormats() {
+    long now = 1369382400000L; // Fri, 24 May 2013 08:00:00 GMT
+    assertEquals(120000, JiraRestReader.retryAfterMillis("120", now));
+    assertEquals(30000, JiraRestReader.retryAfterMillis("Fri, 24 May 2013 08:00:30 GMT", now));
+    assertEquals(0, JiraRestReader.retryAfterMillis("Fri, 24 May 2013 07:00:00 GMT", now));
+    assertEquals(0, JiraRestReader.retryAfterMillis("soon", now));
+    assertEquals(0, JiraRestReader.retryAfterMillis(null, now));
+  }
+
+  @Test
+  public void backoffIsJitteredAndCapped() {
+    for (int attempt = 0; attempt < 40; attempt++) {
+      long delay = JiraRestReader.backoffMillis(attempt, 100, 5000);
+      assertTrue(delay >= 0 && delay <= Math.min(5000, 100L << Math.min(attempt, 20)));
+    }
+  }
+
+  @Test
+  public void limiterCutsOncePerRound() throws Exception {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(8, 8, 1000);
+    long[] tickets = new long[8];
+    for (int t = 0; t < 8; t++) {
+      tickets[t] = limiter.acquire();
+    }
+    // everything sent at the old limit comes back throttled; that's one signal, not eight
+    for (int t = 0; t < 8; t++) {
+      limiter.throttled(tickets[t], 0);
+    }
+    assertEquals(4, limiter.getLimit());
+    limiter.throttled(limiter.acquire(), 0);
+    assertEquals(2, limiter.getLimit());
+    // and back up by about one per round (2 -> 2.5 -> 2.9 -> 3.24)
+    for (int t = 0; t < 3; t++) {
+      limiter.success(limiter.acquire(), "test", 1000);
+    }
+    assertEquals(3, limiter.getLimit());
+  }
+}
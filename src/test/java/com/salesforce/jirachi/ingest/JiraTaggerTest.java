@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * JiraTaggerTest
+ */
+public class JiraTaggerTest {
+
+  @Test
+  public void rulesFingerprintChangesWithAnyMatcher() {
+    String rules = JiraTagger.rulesFingerprint(Arrays.asList("test", "junit"), null);
+    assertEquals(rules, JiraTagger.rulesFingerprint(Arrays.asList("test", "junit"), Collections.<String>emptyList()));
+    assertFalse(rules.equals(JiraTagger.rulesFingerprint(Arrays.asList("test", "junit", "hbase-it"), null)));
+    assertFalse(rules.equals(JiraTagger.rulesFingerprint(Arrays.asList("test"), Arrays.asList("junit"))));
+    assertFalse(rules.equals(JiraTagger.rulesFingerprint(Arrays.asList("testjunit"), null)));
+  }
+
+  @Test
+  public void reloadKeepsTagsAndMatcherInStep() {
+    JiraTagger.reload();
+    assertEquals(Arrays.asList(JiraTagger.matcher.getTagNames()), 
+        Arrays.asList(JiraTagger.getTagNames().toArray(new String[0])));
+    assertEquals(JiraTagger.rulesFingerprint("isTest"), 
+        JiraTagger.rulesFingerprint(JiraTagger.tags.get("isTest"), JiraTagger.tagExclusions.get("isTest")));
+  }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A JiraSink that keeps the rows in memory, keyed the way the tables are (so a row persisted twice is 
+ * replaced, like an UPSERT), for tests that want to see what an ingest would have written.
+ */
+public class LocalSink implements JiraSink {
+
+  private final Map<List<Object>,Object[]> issues = Maps.newLinkedHashMap();
+  private final Map<List<Object>,Object[]> comments = Maps.newLinkedHashMap();
+  private final Map<List<Object>,Object[]> attachments = Maps.newLinkedHashMap();
+  private int batches = 0;
+  private int flushes = 0;
+
+  public synchronized void persist(RowBatch rows) {
+    put(issues, rows.issues, 1);      // id
+    put(comments, rows.comments, 1);  // comment_id
+    put(attachments, rows.attachments, 2); // issue_key, filename
+    batches++;
+  }
+
+  public synchronized void flush() {
+    flushes++;
+  }
+
+  public boolean isBuffered() {
+    return false;
+  }
+
+  private static void put(Map<List<Object>,Object[]> table, List<Object[]> rows, int keyColumns) {
+    for (Object[] row : rows) {
+      table.put(Arrays.asList(row).subList(0, keyColumns), row);
+    }
+  }
+
+  /**
+   * The issue row with this id, or null
+   */
+  public synchronized Object[] issue(long id) {
+    return issues.get(Arrays.<Object>asList(id));
+  }
+
+  public synchronized int issueCount() {
+    return issues.size();
+  }
+
+  public synchronized int commentCount() {
+    return comments.size();
+  }
+
+  public synchronized int attachmentCount() {
+    return attachments.size();
+  }
+
+  public synchronized int getBatches() {
+    return batches;
+  }
+
+  public synchronized int getFlushes() {
+    return flushes;
+  }
+}
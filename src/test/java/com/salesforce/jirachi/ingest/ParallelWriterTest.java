@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * ParallelWriterTest
+ */
+public class ParallelWriterTest {
+
+  @Test
+  public void partitionsByKeyInOrder() throws Exception {
+    List<Object[]> rows = Lists.newArrayList();
+    for (int c = 0; c < 1000; c++) {
+      rows.add(new Object[] { (long) c, SyntheticJira.key(c % 97), "body " + c });
+    }
+    List<List<Object[]>> parts = ParallelWriter.partition(rows, 1, 4);
+    assertEquals(4, parts.size());
+    Map<Object,Integer> partOf = Maps.newHashMap();
+    int total = 0;
+    for (int p = 0; p < parts.size(); p++) {
+      List<Object[]> part = parts.get(p);
+      assertTrue("part " + p + " is empty", !part.isEmpty());
+      total += part.size();
+      long last = -1;
+      for (Object[] row : part) {
+        Integer before = partOf.put(row[1], p);
+        assertTrue(row[1] + " is in two parts", before == null || before == p);
+        assertTrue((Long) row[0] > last);
+        last = (Long) row[0];
+      }
+    }
+    assertEquals(rows.size(), total);
+  }
+
+  @Test
+  public void onePartIsEverything() throws Exception {
+    List<Object[]> rows = Lists.newArrayList();
+    rows.add(new Object[] { 1L, null });
+    rows.add(new Object[] { 2L, "HBASE-2" });
+    List<List<Object[]>> parts = ParallelWriter.partition(rows, 1, 1);
+    assertEquals(1, parts.size());
+    assertEquals(rows, parts.get(0));
+  }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * RollupsTest: the deltas an issue's changes make to the counts
+ */
+public class RollupsTest {
+
+  private static final Timestamp MAY_31 = new Timestamp(new DateTime(2013, 5, 31, 23, 0, 0, 0, DateTimeZone.UTC).getMillis());
+
+  @Test
+  public void countsUnderAllAndEachTag() {
+    Rollups.Deltas deltas = new Rollups.Deltas();
+    deltas.add(facts(MAY_31, "Bug", 3, "isTest"), 1);
+    assertEquals(2, deltas.counts.size());
+    assertArrayEquals(new long[] { 1, 3 }, deltas.counts.get(Arrays.asList("*", "2013-05", "Bug", "Major", "Fixed")));
+    assertArrayEquals(new long[] { 1, 3 }, deltas.counts.get(Arrays.asList("isTest", "2013-05", "Bug", "Major", "Fixed")));
+  }
+
+  @Test
+  public void changedIssueMovesBetweenKeys() {
+    Rollups.Deltas deltas = new Rollups.Deltas();
+    deltas.add(facts(MAY_31, "Bug", 3, "isTest"), -1);
+    deltas.add(facts(MAY_31, "Improvement", 5, "isTest"), 1);
+    assertArrayEquals(new long[] { -1, -3 }, deltas.counts.get(Arrays.asList("isTest", "2013-05", "Bug", "Major", "Fixed")));
+    assertArrayEquals(new long[] { 1, 5 }, deltas.counts.get(Arrays.asList("isTest", "2013-05", "Improvement", "Major", "Fixed")));
+  }
+
+  @Test
+  public void missingValuesCountAsNone() {
+    Rollups.Deltas deltas = new Rollups.Deltas();
+    deltas.add(facts(null, null, null, null), 1);
+    assertEquals(1, deltas.counts.size());
+    assertArrayEquals(new long[] { 1, 0 }, deltas.counts.get(Arrays.asList("*", "none", "none", "Major", "Fixed")));
+  }
+
+  @Test
+  public void reingestingABatchLeavesTheCountsAlone() {
+    List<Object[]> batch = Lists.newArrayList();
+    for (int n = 0; n < 10; n++) {
+      batch.add(issue(n, n % 2 == 0 ? "Bug" : "Improvement", n, n % 3 == 0 ? "isTest" : null));
+    }
+    Map<List<String>,long[]> stored = Maps.newHashMap();
+    List<Object[]> inJiraIssue = Lists.newArrayList(); // the facts of what's been committed
+
+    // the first attempt fails writing the issues, so its deltas are never applied, and it's retried
+    Rollups.deltas(inJiraIssue, batch);
+    apply(stored, Rollups.deltas(inJiraIssue, batch));
+    for (Object[] issue : batch) {
+      inJiraIssue.add(Rollups.facts(issue));
+    }
+    Map<List<String>,long[]> once = copy(stored);
+    assertArrayEquals(new long[] { 10, 45 }, sum(stored, "*"));
+    assertArrayEquals(new long[] { 4, 18 }, sum(stored, "isTest"));
+
+    // and then the same batch comes round again
+    apply(stored, Rollups.deltas(inJiraIssue, batch));
+    assertEquals(once.keySet(), stored.keySet());
+    for (List<String> key : once.keySet()) {
+      assertArrayEquals(once.get(key), stored.get(key));
+    }
+  }
+
+  private static Object[] issue(long id, String type, int comments, String tag) {
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    Object[] issue = new Object[PhoenixJiraPersister.ISSUE_COLUMNS.length + tagNames.length];
+    issue[0] = id;
+    issue[6] = MAY_31;
+    issue[8] = type;
+    issue[9] = "Major";
+    issue[10] = "Fixed";
+    issue[17] = comments;
+    if (tag != null) issue[PhoenixJiraPersister.ISSUE_COLUMNS.length + Arrays.asList(tagNames).indexOf(tag)] = Boolean.TRUE;
+    return issue;
+  }
+
+  /**
+   * What Rollups.apply() does to JIRA_ROLLUP
+   */
+  private static void apply(Map<List<String>,long[]> stored, Rollups.Deltas deltas) {
+    for (Map.Entry<List<String>,long[]> delta : deltas.counts.entrySet()) {
+      long[] count = stored.containsKey(delta.getKey()) ? stored.get(delta.getKey()) : new long[2];
+      count[0] += delta.getValue()[0];
+      count[1] += delta.getValue()[1];
+      if (count[0] <= 0) {
+        stored.remove(delta.getKey());
+      } else {
+        stored.put(delta.getKey(), count);
+      }
+    }
+  }
+
+  private static Map<List<String>,long[]> copy(Map<List<String>,long[]> stored) {
+    Map<List<String>,long[]> copy = Maps.newHashMap();
+    for (Map.Entry<List<String>,long[]> e : stored.entrySet()) {
+      copy.put(e.getKey(), e.getValue().clone());
+    }
+    return copy;
+  }
+
+  private static long[] sum(Map<List<String>,long[]> stored, String tag) {
+    long[] sum = new long[2];
+    for (Map.Entry<List<String>,long[]> e : stored.entrySet()) {
+      if (!e.getKey().get(0).equals(tag)) continue;
+      sum[0] += e.getValue()[0];
+      sum[1] += e.getValue()[1];
+    }
+    return sum;
+  }
+
+  private static Object[] facts(Timestamp created, String type, Integer comments, String tag) {
+    String[] tagNames = JiraTagger.matcher.getTagNames();
+    Object[] facts = new Object[Rollups.FACT_COLUMNS.length + tagNames.length];
+    facts[0] = created;
+    facts[1] = type;
+    facts[2] = "Major";
+    facts[3] = "Fixed";
+    facts[4] = comments;
+    if (tag != null) facts[Rollups.FACT_COLUMNS.length + Arrays.asList(tagNames).indexOf(tag)] = Boolean.TRUE;
+    return facts;
+  }
+}
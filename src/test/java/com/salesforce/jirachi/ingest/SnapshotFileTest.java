@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * SnapshotFileTest: what's appended is what's replayed
+ */
+public class SnapshotFileTest {
+
+  private final SyntheticJira jira = new SyntheticJira(8).commentsPerIssue(4);
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("jirachi", ".snapshot");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void replaysWhatWasWritten() throws Exception {
+    JSONObject page = jira.searchPage(20, 0, 20);
+    SnapshotFile snapshot = new SnapshotFile(file);
+    for (JSONObject issue : issues(page)) {
+      snapshot.append(page.getJSONObject("names"), page.getJSONObject("schema"), issue);
+    }
+    JSONObject single = jira.issueJson(20); // with its own names and schema
+    snapshot.append(null, null, single);
+    // already there
+    snapshot.append(page.getJSONObject("names"), page.getJSONObject("schema"), issues(page).get(3));
+    snapshot.close();
+
+    SnapshotFile.Replay replay = new SnapshotFile(file).replay();
+    for (JSONObject issue : issues(page)) {
+      assertEquals(issue.toString(), replay.nextJson().toString());
+      assertEquals(page.getJSONObject("names").toString(), replay.getNames().toString());
+      assertEquals(page.getJSONObject("schema").toString(), replay.getSchema().toString());
+    }
+    assertEquals(single.toString(), replay.nextJson().toString());
+    assertNull(replay.nextJson());
+    replay.close();
+  }
+
+  @Test
+  public void replaysOnlyTheNewestVersion() throws Exception {
+    JSONObject page = jira.searchPage(3, 0, 3);
+    JSONObject names = page.getJSONObject("names");
+    JSONObject schema = page.getJSONObject("schema");
+    List<JSONObject> issues = issues(page);
+    JSONObject newer = new JSONObject(issues.get(1).toString());
+    newer.getJSONObject("fields").put("updated", later(issues.get(1)));
+    newer.getJSONObject("fields").put("summary", "edited");
+
+    SnapshotFile snapshot = new SnapshotFile(file);
+    snapshot.append(names, schema, newer);
+    snapshot.close();
+    // a later run comes across the old version again, and then the new one
+    snapshot = new SnapshotFile(file);
+    for (JSONObject issue : issues) {
+      snapshot.append(names, schema, issue);
+    }
+    long size = file.length();
+    snapshot.append(names, schema, newer);
+    snapshot.close();
+    assertEquals(size, file.length()); // that key@updated was already there
+
+    SnapshotFile.Replay replay = new SnapshotFile(file).replay();
+    List<String> keys = Lists.newArrayList();
+    JSONObject issue;
+    while ((issue = replay.nextJson()) != null) {
+      keys.add(issue.getString("key"));
+      if (issue.getString("key").equals(newer.getString("key"))) assertEquals(newer.toString(), issue.toString());
+    }
+    replay.close();
+    // in the order they were first written
+    assertEquals(Lists.newArrayList(newer.getString("key"), issues.get(0).getString("key"), 
+        issues.get(2).getString("key")), keys);
+  }
+
+  @Test
+  public void readsRecordsAcrossWindows() throws Exception {
+    JSONObject page = jira.searchPage(30, 0, 30);
+    SnapshotFile snapshot = new SnapshotFile(file);
+    for (JSONObject issue : issues(page)) {
+      snapshot.append(page.getJSONObject("names"), page.getJSONObject("schema"), issue);
+    }
+    snapshot.close();
+
+    // windows much smaller than a record, and ones that cut records in two
+    for (long window : new long[] { 16, 1000, 4096 }) {
+      SnapshotFile.Replay replay = new SnapshotFile(file, window).replay();
+      for (JSONObject issue : issues(page)) {
+        assertEquals(issue.toString(), replay.nextJson().toString());
+      }
+      assertNull(replay.nextJson());
+      replay.close();
+    }
+  }
+
+  @Test
+  public void dropsATruncatedLastRecord() throws Exception {
+    JSONObject page = jira.searchPage(5, 0, 5);
+    JSONObject names = page.getJSONObject("names");
+    JSONObject schema = page.getJSONObject("schema");
+    List<JSONObject> issues = issues(page);
+    SnapshotFile snapshot = new SnapshotFile(file);
+    for (JSONObject issue : issues.subList(0, 4)) {
+      snapshot.append(names, schema, issue);
+    }
+    snapshot.close();
+    long whole = file.length();
+    snapshot = new SnapshotFile(file);
+    snapshot.append(names, schema, issues.get(4));
+    snapshot.close();
+    long withLast = file.length();
+    byte[] written = Files.toByteArray(file);
+
+    // the run died part way through writing the last record, at various points
+    for (long cut : new long[] { withLast - 1, whole + 20, whole + 3 }) {
+      Files.write(Arrays.copyOf(written, (int) cut), file);
+      assertEquals(4, count(new SnapshotFile(file).replay()));
+    }
+
+    // the next run writes over it
+    snapshot = new SnapshotFile(file);
+    snapshot.append(names, schema, issues.get(4));
+    snapshot.close();
+    assertEquals(withLast, file.length());
+    assertEquals(5, count(new SnapshotFile(file).replay()));
+  }
+
+  private static int count(SnapshotFile.Replay replay) throws Exception {
+    int n = 0;
+    while (replay.nextJson() != null) {
+      n++;
+    }
+    replay.close();
+    return n;
+  }
+
+  private static List<JSONObject> issues(JSONObject page) throws Exception {
+    List<JSONObject> issues = Lists.newArrayList();
+    for (int i = 0; i < page.getJSONArray("issues").length(); i++) {
+      issues.add(page.getJSONArray("issues").getJSONObject(i));
+    }
+    assertTrue(!issues.isEmpty());
+    return issues;
+  }
+
+  private static String later(JSONObject issue) throws Exception {
+    String pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    DateTime updated = DateTimeFormat.forPattern(pattern).withZone(DateTimeZone.UTC)
+        .parseDateTime(issue.getJSONObject("fields").getString("updated"));
+    return updated.plusDays(1).toString(DateTimeFormat.forPattern(pattern).withZone(DateTimeZone.UTC));
+  }
+}
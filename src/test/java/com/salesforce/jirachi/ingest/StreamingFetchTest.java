@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.Test;
+
+/**
+ * StreamingFetchTest
+ */
+public class StreamingFetchTest {
+
+  @Test
+  public void parsesWhatTheTablesNeed() throws Exception {
+    JSONObject page = new SyntheticJira(7).commentsPerIssue(3).attachmentsPerIssue(2).searchPage(20, 0, 20);
+    List<StreamingFetch.ParsedIssue> parsed = StreamingFetch.parseSearch(page.toString().getBytes("UTF-8"));
+    JSONArray issues = page.getJSONArray("issues");
+    assertEquals(issues.length(), parsed.size());
+    for (int n = 0; n < issues.length(); n++) {
+      JSONObject json = issues.getJSONObject(n);
+      JSONObject fields = json.getJSONObject("fields");
+      StreamingFetch.ParsedIssue issue = parsed.get(n);
+      Object[] v = issue.values;
+      assertEquals(Long.valueOf(json.getString("id")), v[0]);
+      assertEquals(json.getString("key"), v[1]);
+      assertEquals(fields.getString("summary"), v[2]);
+      assertEquals(fields.isNull("description") ? null : fields.getString("description"), v[3]);
+      assertEquals(fields.isNull("assignee") ? null : fields.getJSONObject("assignee").getString("displayName"), v[4]);
+      assertEquals(fields.getJSONObject("reporter").getString("displayName"), v[5]);
+      assertEquals(timestamp(fields.getString("created")), v[6]);
+      assertEquals(timestamp(fields.getString("updated")), v[7]);
+      assertEquals(fields.getJSONObject("issuetype").getString("name"), v[8]);
+      assertEquals(fields.getJSONObject("status").getString("name"), v[11]);
+      assertEquals(fields.getJSONObject("watches").getInt("watchCount"), v[12]);
+      assertEquals(fields.getJSONArray("versions").length(), v[13]);
+      assertEquals(fields.getJSONArray("fixVersions").length(), v[14]);
+      assertNull(v[16]); // no changelog
+      assertEquals(0, v[18]);
+      assertNull(v[21]); // no worklog field
+
+      JSONArray comments = fields.getJSONObject("comment").getJSONArray("comments");
+      assertEquals(comments.length(), issue.comments.size());
+      for (int c = 0; c < comments.length(); c++) {
+        Object[] row = issue.comments.get(c);
+        assertEquals(Long.valueOf(comments.getJSONObject(c).getString("id")), row[0]);
+        assertEquals(json.getString("key"), row[1]);
+        assertEquals(comments.getJSONObject(c).getJSONObject("author").getString("displayName"), row[2]);
+        assertEquals(comments.getJSONObject(c).getString("body"), row[3]);
+      }
+      JSONArray attachments = fields.getJSONArray("attachment");
+      assertEquals(attachments.length(), issue.attachments.size());
+      for (int a = 0; a < attachments.length(); a++) {
+        Object[] row = issue.attachments.get(a);
+        assertEquals(json.getString("key"), row[0]);
+        assertEquals(attachments.getJSONObject(a).getString("filename"), row[1]);
+        assertEquals(attachments.getJSONObject(a).getString("content"), row[2]);
+        assertEquals(attachments.getJSONObject(a).getInt("size"), row[5]);
+      }
+    }
+  }
+
+  @Test
+  public void fetchesTruncatedCommentsInFull() throws Exception {
+    SyntheticJira jira = new SyntheticJira(3).commentsPerIssue(4).maxEmbeddedComments(1);
+    StubJiraServer stub = new StubJiraServer(jira, 30);
+    try {
+      JiraRestReader reader = new JiraRestReader(stub.getBaseUrl(), new AdaptiveLimiter(1, 4, 1000), 2, 5, 100);
+      RowBatch rows = StreamingFetch.fetch(reader, "project = HBASE", 10, 10);
+      assertEquals(10, rows.issues.size());
+      int comments = 0;
+      for (Object[] issue : rows.issues) {
+        int n = Integer.parseInt(((String)issue[1]).substring("HBASE-".length())) - 1;
+        int expected = jira.issueJson(n).getJSONObject("fields").getJSONObject("comment").getJSONArray("comments").length();
+        assertEquals(expected, issue[17]);
+        comments += expected;
+      }
+      assertEquals(comments, rows.comments.size());
+      assertEquals(PhoenixJiraPersister.issueColumns().length, rows.issues.get(0).length);
+    } finally {
+      stub.stop();
+    }
+  }
+
+  private static Timestamp timestamp(String jiraDate) {
+    return new Timestamp(DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parseMillis(jiraDate));
+  }
+}
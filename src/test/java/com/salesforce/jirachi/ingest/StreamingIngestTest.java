@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.salesforce.jirachi.ingest.JiraFetcher.FetchedBatches;
+
+/**
+ * Fetches a result set several times the size of the heap, from a StubJiraServer in a separate JVM with 
+ * a small -Xmx, to show that the fetch pipeline doesn't hold on to what it's already handed over.
+ */
+public class StreamingIngestTest {
+
+  private static final int ISSUES = 12000;
+  private static final int HEAP_MB = 64;
+
+  @Test
+  public void ingestsLargeResultSetInSmallHeap() throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder pb = new ProcessBuilder(java, "-Xmx" + HEAP_MB + "m", "-cp", System.getProperty("java.class.path"), 
+        StreamingIngestTest.class.getName(), Integer.toString(ISSUES));
+    pb.redirectErrorStream(true);
+    Process child = pb.start();
+    BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), "UTF-8"));
+    String line, result = null;
+    StringBuilder log = new StringBuilder();
+    while ((line = out.readLine()) != null) {
+      if (line.startsWith("ingested ")) result = line;
+      else if (!line.startsWith("Persisting batch")) log.append(line).append('\n');
+    }
+    assertEquals(log.toString(), 0, child.waitFor());
+    String[] counts = result.split(" ");
+    assertEquals(ISSUES, Integer.parseInt(counts[1]));
+    // make sure the test means something: far more came over the wire than would fit in the heap
+    assertTrue(result, Long.parseLong(counts[2]) > 2L * HEAP_MB * 1024 * 1024);
+  }
+
+  /**
+   * The child: fetch everything into a sink that only counts, then print "ingested {issues} {bytes}"
+   */
+  public static void main(String[] args) throws Exception {
+    int total = Integer.parseInt(args[0]);
+    StubJiraServer stub = new StubJiraServer(new SyntheticJira(5).commentsPerIssue(4).descriptionWords(800), total);
+    try {
+      final AtomicLong issues = new AtomicLong();
+      FetchedBatches source = new FetchedBatches(new JiraRestReader(stub.getBaseUrl()), "project = HBASE", total, null);
+      JiraFetcher.ingest(source, new JiraSink() {
+        public void persist(RowBatch rows) {
+          issues.addAndGet(rows.issues.size());
+        }
+
+        public void flush() {
+        }
+
+        public boolean isBuffered() {
+          return false;
+        }
+      }, null);
+      System.out.println("ingested " + issues.get() + " " + ImportMetrics.get(ImportMetrics.REST_BYTES));
+    } finally {
+      stub.stop();
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the JIRA REST search and issue resources, serving SyntheticJira issues [0, total),
+ * and attachment contents (see attachmentContent()). The json is gzipped for clients that accept it.
+ * Searches are paged through all the issues, whatever the query, unless it has a "key in (...)".
+ * 
+ * It can be made to push back like a busy server: requests over a concurrency limit get a 429, and the 
+ * first few requests can be failed with any status (and Retry-After), or sent a truncated gzip body.
+ */
+public class StubJiraServer {
+
+  private static final Pattern KEY_IN = Pattern.compile("key in \\(([^)]*)\\)");
+
+  private final SyntheticJira jira;
+  private final int total;
+  private final HttpServer server;
+  private final ExecutorService handlers = Executors.newCachedThreadPool();
+
+  private volatile int maxConcurrent = Integer.MAX_VALUE;
+  private volatile long delayMillis = 0;
+  private final AtomicInteger toFail = new AtomicInteger();
+  private volatile int failStatus;
+  private volatile String retryAfter;
+  private final AtomicInteger toCorrupt = new AtomicInteger();
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger rejected = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger peakInFlight = new AtomicInteger();
+
+  public StubJiraServer(SyntheticJira jira, int total) throws IOException {
+    this.jira = jira;
+    this.total = total;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/rest/api/2/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.createContext("/secure/attachment/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          requests.incrementAndGet();
+          String path = exchange.getRequestURI().getPath();
+          byte[] content = attachmentContent(path.substring(path.lastIndexOf('/') + 1));
+          exchange.sendResponseHeaders(200, content.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(content);
+          out.close();
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(handlers);
+    server.start();
+  }
+
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * Answer 429 (with Retry-After: 0) to requests beyond this many at once
+   */
+  public StubJiraServer maxConcurrent(int n) {
+    maxConcurrent = n;
+    return this;
+  }
+
+  /**
+   * Take this long over every request
+   */
+  public StubJiraServer delayMillis(long millis) {
+    delayMillis = millis;
+    return this;
+  }
+
+  /**
+   * Fail the next n requests with this status, and Retry-After header (if not null)
+   */
+  public StubJiraServer fail(int n, int status, String retryAfter) {
+    this.failStatus = status;
+    this.retryAfter = retryAfter;
+    toFail.set(n);
+    return this;
+  }
+
+  /**
+   * Cut short the gzipped body of the next n successful responses
+   */
+  public StubJiraServer corruptGzip(int n) {
+    toCorrupt.set(n);
+    return this;
+  }
+
+  /**
+   * The content served for an attachment: it only depends on the filename, so attachments with the same
+   * name have the same content
+   */
+  public static byte[] attachmentContent(String filename) throws IOException {
+    byte[] name = (filename + "\n").getBytes("UTF-8");
+    byte[] content = new byte[1000 + (filename.hashCode() & 0xffff) * 4];
+    for (int b = 0; b < content.length; b++) {
+      content[b] = name[b % name.length];
+    }
+    return content;
+  }
+
+  public int getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Requests turned away for going over maxConcurrent
+   */
+  public int getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * The most requests that were being served at once
+   */
+  public int getPeakInFlight() {
+    return peakInFlight.get();
+  }
+
+  public void stop() {
+    server.stop(0);
+    handlers.shutdownNow();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    if (toFail.getAndDecrement() > 0) {
+      if (retryAfter != null) exchange.getResponseHeaders().set("Retry-After", retryAfter);
+      respond(exchange, failStatus, "{\"errorMessages\":[\"injected failure\"]}");
+      return;
+    }
+    int concurrent = inFlight.incrementAndGet();
+    try {
+      if (concurrent > maxConcurrent) {
+        rejected.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", "0");
+        respond(exchange, 429, "{\"errorMessages\":[\"too many requests\"]}");
+        return;
+      }
+      int peak;
+      while (concurrent > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, concurrent));
+      if (delayMillis > 0) Thread.sleep(delayMillis);
+      String path = exchange.getRequestURI().getPath();
+      Map<String,String> params = params(exchange.getRequestURI().getRawQuery());
+      Matcher keys = path.equals("/rest/api/2/search") && params.containsKey("jql") ? 
+          KEY_IN.matcher(params.get("jql")) : null;
+      if (keys != null && keys.find()) {
+        List<Integer> numbers = Lists.newArrayList();
+        for (String key : keys.group(1).split(",")) {
+          key = key.trim().replace("\"", "");
+          int n = SyntheticJira.number(key);
+          if (n < 0 || n >= total) {
+            respond(exchange, 400, "{\"errorMessages\":[\"The issue key '" + key + "' for field 'key' is invalid.\"]}");
+            return;
+          }
+          numbers.add(n);
+        }
+        respond(exchange, 200, jira.keysPage(numbers).toString());
+      } else if (path.equals("/rest/api/2/search")) {
+        int startAt = params.containsKey("startAt") ? Integer.parseInt(params.get("startAt")) : 0;
+        int maxResults = params.containsKey("maxResults") ? Integer.parseInt(params.get("maxResults")) : 50;
+        respond(exchange, 200, jira.searchPage(total, startAt, maxResults).toString());
+      } else if (path.startsWith("/rest/api/2/issue/")) {
+        int n = SyntheticJira.number(path.substring("/rest/api/2/issue/".length()));
+        if (n < 0 || n >= total) {
+          respond(exchange, 404, "{\"errorMessages\":[\"Issue Does Not Exist\"]}");
+        } else {
+          respond(exchange, 200, jira.issueJson(n).toString());
+        }
+      } else {
+        respond(exchange, 404, new JSONObject().toString());
+      }
+    } catch (Exception ex) {
+      respond(exchange, 500, "{\"errorMessages\":[\"" + ex + "\"]}");
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+      gzip.write(bytes);
+      gzip.close();
+      bytes = gzipped.toByteArray();
+      if (status == 200 && toCorrupt.getAndDecrement() > 0) bytes = Arrays.copyOf(bytes, bytes.length / 2);
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static Map<String,String> params(String query) throws IOException {
+    Map<String,String> params = Maps.newHashMap();
+    if (query == null) return params;
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+}
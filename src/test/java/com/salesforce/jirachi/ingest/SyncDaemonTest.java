@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Test;
+
+/**
+ * SyncDaemonTest
+ */
+public class SyncDaemonTest {
+
+  private static final String JQL = "project = HBASE ORDER BY key";
+
+  @Test
+  public void coalescesWebhooksIntoOneFetch() throws Exception {
+    SyntheticJira jira = new SyntheticJira(11).commentsPerIssue(2);
+    StubJiraServer stub = new StubJiraServer(jira, 20);
+    LocalSink sink = new LocalSink();
+    SyncDaemon daemon = new SyncDaemon(new JiraRestReader(stub.getBaseUrl()), JQL, sink, 60000);
+    try {
+      daemon.start(0);
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"HBASE-3\"}}"));
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"HBASE-3\"}}"));
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"comment_created\",\"issue\":{\"key\":\"HBASE-5\"},\"comment\":{}}"));
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"jira:issue_deleted\",\"issue\":{\"key\":\"HBASE-7\"}}"));
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"project_created\"}"));
+      assertEquals(400, post(daemon, "not json"));
+      assertEquals(400, post(daemon, ""));
+      assertEquals(400, post(daemon, "[1, 2]"));
+      // anything that isn't an issue key never reaches the JQL
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"X) OR (project = OTHER\"}}"));
+      assertEquals(204, post(daemon, "{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"HBASE-1\\\" OR key = \\\"X-1\"}}"));
+      daemon.flush();
+      assertEquals(1, stub.getRequests());
+      assertEquals(2, sink.issueCount());
+      assertNotNull(sink.issue(Long.parseLong(jira.issueJson(2).getString("id"))));
+      assertNotNull(sink.issue(Long.parseLong(jira.issueJson(4).getString("id"))));
+      assertEquals(1, sink.getFlushes());
+
+      daemon.flush(); // nothing pending
+      assertEquals(1, stub.getRequests());
+    } finally {
+      daemon.stop();
+      stub.stop();
+    }
+  }
+
+  @Test
+  public void skipsIssuesJiraDoesNotHave() throws Exception {
+    SyntheticJira jira = new SyntheticJira(12).commentsPerIssue(0);
+    StubJiraServer stub = new StubJiraServer(jira, 5);
+    LocalSink sink = new LocalSink();
+    SyncDaemon daemon = new SyncDaemon(new JiraRestReader(stub.getBaseUrl()), JQL, sink, 60000);
+    try {
+      daemon.accept("HBASE-2");
+      daemon.accept("HBASE-99"); // deleted, or moved to another project
+      daemon.accept("HBASE-4");
+      daemon.flush();
+      assertEquals(2, sink.issueCount());
+      assertNotNull(sink.issue(Long.parseLong(jira.issueJson(1).getString("id"))));
+      assertNotNull(sink.issue(Long.parseLong(jira.issueJson(3).getString("id"))));
+    } finally {
+      daemon.stop();
+      stub.stop();
+    }
+  }
+
+  private static int post(SyncDaemon daemon, String json) throws Exception {
+    HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + "/").openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "application/json");
+    OutputStream out = conn.getOutputStream();
+    out.write(json.getBytes("UTF-8"));
+    out.close();
+    int status = conn.getResponseCode();
+    conn.disconnect();
+    return status;
+  }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import java.util.List;
+import java.util.Random;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.collect.Lists;
+import com.salesforce.jirachi.ingest.JiraFetcher.JiraSet;
+
+/**
+ * Generates realistic-looking JIRA REST json (search pages and single issues) from a seed. Issue n is 
+ * always the same for a given seed and settings, so the data is reproducible without storing it.
+ * 
+ * Summaries, descriptions and comments are built from HBase-ish vocabulary (so the real tag rules match 
+ * some of them), with quotes, backslashes, newlines and non-ascii thrown in.
+ */
+public class SyntheticJira {
+
+  private static final DateTimeFormatter JIRA_DATE = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").withZone(DateTimeZone.UTC);
+  private static final DateTime EPOCH = new DateTime(2012, 5, 23, 0, 0, 0, 0, DateTimeZone.UTC);
+
+  private static final String[] WORDS = { "region", "server", "split", "compaction", "flush", "memstore", 
+    "HFile", "WAL", "replication", "snapshot", "master", "assignment", "balancer", "ZooKeeper", "test", 
+    "scanner", "filter", "coprocessor", "RPC", "client", "thrift", "REST", "shell", "metrics", "bulk load", 
+    "import", "export", "security", "ACL", "token", "block cache", "bloom", "javadoc", "pom.xml", "book", 
+    "NPE", "timeout", "flaky", "deadlock", "race", "leak", "should", "when", "after", "fails", "is", "not", 
+    "the", "a", "in", "on", "of", "with", "during", "after restart", "TestHRegion", "hbase-it", "mvn" };
+  private static final String[] ODD_BITS = { "can't", "\"quoted\"", "C:\\\\hbase\\\\conf", "it's", "'single'", 
+    "na\u00efve", "\u00fcber", "\u2014", "50%", "a_b", "<tag>", "{json: \"x\"}" };
+  private static final String[] TYPES = { "Bug", "Improvement", "New Feature", "Task", "Sub-task", "Test" };
+  private static final String[] PRIORITIES = { "Blocker", "Critical", "Major", "Minor", "Trivial" };
+  private static final String[] RESOLUTIONS = { "Fixed", "Fixed", "Fixed", "Implemented", "Won't Fix", "Duplicate" };
+  private static final String[] STATUSES = { "Closed", "Resolved", "Resolved", "Open", "Patch Available" };
+  private static final String[] PEOPLE = { "Lars Hofhansl", "stack", "Ted Yu", "Jean-Daniel Cryans", "Andrew Purtell",
+    "Elliott Clark", "Jonathan Hsieh", "Enis S\u00f6ztutar", "Nicolas Liochon", "Sergey Shelukhin", "Jimmy Xiang", "O'Malley" };
+
+  private final long seed;
+  private final String baseUrl;
+  private int commentsPerIssue = 8;
+  private int attachmentsPerIssue = 2;
+  private int descriptionWords = 300;
+  /**
+   * How many comments to embed in a search result before it counts as truncated (like JIRA's own cap)
+   */
+  private int maxEmbeddedComments = Integer.MAX_VALUE;
+
+  public SyntheticJira(long seed) {
+    this(seed, "http://localhost/jira/");
+  }
+
+  public SyntheticJira(long seed, String baseUrl) {
+    this.seed = seed;
+    this.baseUrl = baseUrl;
+  }
+
+  /**
+   * Average comments per issue (the actual number varies from 0 to twice this)
+   */
+  public SyntheticJira commentsPerIssue(int n) {
+    commentsPerIssue = n;
+    return this;
+  }
+
+  /**
+   * Average attachments per issue (the actual number varies from 0 to twice this)
+   */
+  public SyntheticJira attachmentsPerIssue(int n) {
+    attachmentsPerIssue = n;
+    return this;
+  }
+
+  public SyntheticJira descriptionWords(int n) {
+    descriptionWords = n;
+    return this;
+  }
+
+  public SyntheticJira maxEmbeddedComments(int n) {
+    maxEmbeddedComments = n;
+    return this;
+  }
+
+  /**
+   * HBASE-1 and on; issue_key is a varchar(11), so past HBASE-99999 the keys go on as HB-100000 and on
+   */
+  public static String key(int n) {
+    return (n < 99999 ? "HBASE-" : "HB-") + (n + 1);
+  }
+
+  /**
+   * The issue number of a key(), or -1 if it isn't one of ours
+   */
+  public static int number(String key) {
+    String prefix = key.startsWith("HBASE-") ? "HBASE-" : key.startsWith("HB-") ? "HB-" : null;
+    try {
+      int n = prefix == null ? -1 : Integer.parseInt(key.substring(prefix.length())) - 1;
+      return n >= 0 && key(n).equals(key) ? n : -1;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * A page of search results over issues [0, total), as the search resource returns it with 
+   * fields=*navigable,comment,attachment and expand=names,schema
+   */
+  public JSONObject searchPage(int total, int startAt, int maxResults) throws JSONException {
+    List<Integer> numbers = Lists.newArrayList();
+    for (int n = startAt; n < Math.min(total, startAt + maxResults); n++) {
+      numbers.add(n);
+    }
+    return page(total, startAt, maxResults, numbers);
+  }
+
+  /**
+   * The search results for "key in (...)": the issues with these numbers (see key())
+   */
+  public JSONObject keysPage(List<Integer> numbers) throws JSONException {
+    return page(numbers.size(), 0, numbers.size(), numbers);
+  }
+
+  private JSONObject page(int total, int startAt, int maxResults, List<Integer> numbers) throws JSONException {
+    JSONObject page = new JSONObject();
+    page.put("expand", "names,schema");
+    page.put("startAt", startAt);
+    page.put("maxResults", maxResults);
+    page.put("total", total);
+    JSONArray issues = new JSONArray();
+    for (int n : numbers) {
+      issues.put(issue(n, maxEmbeddedComments));
+    }
+    page.put("issues", issues);
+    page.put("names", names());
+    page.put("schema", schema());
+    return page;
+  }
+
+  /**
+   * A single issue, as the issue resource returns it with expand=names,schema
+   */
+  public JSONObject issueJson(int n) throws JSONException {
+    JSONObject issue = issue(n, Integer.MAX_VALUE);
+    issue.put("names", names());
+    issue.put("schema", schema());
+    return issue;
+  }
+
+  /**
+   * Issues [first, first + count) as a JiraSet, parsed just the way the fetcher parses a search page
+   */
+  public JiraSet jiraSet(int first, int count) throws JSONException {
+    return JiraFetcher.jiraSet(JiraRestReader.parseSearch(searchPage(first + count, first, count)).getIssues());
+  }
+
+  /**
+   * Issues [first, first + count) as rows, parsed from a search page the way the streaming fetch does it
+   */
+  public RowBatch rowBatch(int first, int count) throws Exception {
+    byte[] page = searchPage(first + count, first, count).toString().getBytes("UTF-8");
+    return StreamingFetch.rows(StreamingFetch.parseSearch(page));
+  }
+
+  private JSONObject issue(int n, int maxComments) throws JSONException {
+    Random r = new Random(seed * 1000003 + n);
+    String key = key(n);
+    DateTime created = EPOCH.plusMinutes(n * 17 + r.nextInt(600));
+    DateTime updated = created.plusHours(1 + r.nextInt(24 * 60));
+
+    JSONObject fields = new JSONObject();
+    fields.put("summary", sentence(r, 4 + r.nextInt(10)));
+    fields.put("description", r.nextInt(10) == 0 ? JSONObject.NULL : paragraphs(r, descriptionWords / 2 + r.nextInt(descriptionWords + 1)));
+    fields.put("issuetype", named("issuetype", pick(r, TYPES)).put("subtask", false).put("description", "").put("iconUrl", baseUrl + "images/icons/bug.gif"));
+    fields.put("status", named("status", pick(r, STATUSES)).put("description", "").put("iconUrl", baseUrl + "images/icons/status.gif"));
+    fields.put("priority", named("priority", pick(r, PRIORITIES)).put("iconUrl", baseUrl + "images/icons/priority.gif"));
+    fields.put("resolution", named("resolution", pick(r, RESOLUTIONS)).put("description", ""));
+    fields.put("project", new JSONObject().put("self", baseUrl + "rest/api/2/project/HBASE").put("id", "12310753").put("key", "HBASE").put("name", "HBase"));
+    fields.put("reporter", user(pick(r, PEOPLE)));
+    fields.put("assignee", r.nextInt(8) == 0 ? JSONObject.NULL : user(pick(r, PEOPLE)));
+    fields.put("created", created.toString(JIRA_DATE));
+    fields.put("updated", updated.toString(JIRA_DATE));
+    fields.put("resolutiondate", updated.toString(JIRA_DATE));
+    fields.put("labels", new JSONArray());
+    fields.put("versions", versions(r, r.nextInt(3)));
+    fields.put("fixVersions", versions(r, 1 + r.nextInt(3)));
+    fields.put("components", new JSONArray());
+    fields.put("issuelinks", new JSONArray());
+    fields.put("subtasks", new JSONArray());
+    fields.put("watches", new JSONObject().put("self", baseUrl + "rest/api/2/issue/" + key + "/watchers").put("watchCount", r.nextInt(12)).put("isWatching", false));
+    fields.put("votes", new JSONObject().put("self", baseUrl + "rest/api/2/issue/" + key + "/votes").put("votes", r.nextInt(3)).put("hasVoted", false));
+
+    int numComments = commentsPerIssue == 0 ? 0 : r.nextInt(commentsPerIssue * 2 + 1);
+    JSONArray comments = new JSONArray();
+    for (int c = 0; c < Math.min(numComments, maxComments); c++) {
+      DateTime at = created.plusMinutes(10 + c * 90 + r.nextInt(60));
+      JSONObject author = user(pick(r, PEOPLE));
+      comments.put(new JSONObject()
+          .put("self", baseUrl + "rest/api/2/issue/" + key + "/comment/" + commentId(n, c))
+          .put("id", String.valueOf(commentId(n, c)))
+          .put("author", author)
+          .put("updateAuthor", author)
+          .put("body", paragraphs(r, 10 + r.nextInt(120)))
+          .put("created", at.toString(JIRA_DATE))
+          .put("updated", at.toString(JIRA_DATE)));
+    }
+    fields.put("comment", new JSONObject().put("startAt", 0).put("maxResults", comments.length()).put("total", numComments).put("comments", comments));
+
+    int numAttachments = attachmentsPerIssue == 0 ? 0 : r.nextInt(attachmentsPerIssue * 2 + 1);
+    JSONArray attachments = new JSONArray();
+    for (int a = 0; a < numAttachments; a++) {
+      long id = commentId(n, a);
+      String filename = key + (a == 0 ? "" : "-v" + (a + 1)) + (r.nextBoolean() ? ".patch" : ".txt");
+      attachments.put(new JSONObject()
+          .put("self", baseUrl + "rest/api/2/attachment/" + id)
+          .put("id", String.valueOf(id))
+          .put("filename", filename)
+          .put("author", user(pick(r, PEOPLE)))
+          .put("created", created.plusHours(a + 1).toString(JIRA_DATE))
+          .put("size", 500 + r.nextInt(200000))
+          .put("mimeType", filename.endsWith(".patch") ? "text/x-patch" : "text/plain")
+          .put("content", baseUrl + "secure/attachment/" + id + "/" + filename));
+    }
+    fields.put("attachment", attachments);
+
+    JSONObject issue = new JSONObject();
+    issue.put("expand", "renderedFields,names,schema,transitions,operations,editmeta,changelog");
+    issue.put("id", String.valueOf(12000000 + n));
+    issue.put("self", baseUrl + "rest/api/2/issue/" + (12000000 + n));
+    issue.put("key", key);
+    issue.put("fields", fields);
+    return issue;
+  }
+
+  private static long commentId(int n, int c) {
+    return 13000000L + n * 100L + c;
+  }
+
+  private JSONObject named(String type, String name) throws JSONException {
+    int id = Math.abs(name.hashCode() % 1000);
+    return new JSONObject().put("self", baseUrl + "rest/api/2/" + type + "/" + id).put("id", String.valueOf(id)).put("name", name);
+  }
+
+  private JSONObject user(String displayName) throws JSONException {
+    String name = displayName.toLowerCase().replaceAll("[^a-z]", "");
+    return new JSONObject()
+        .put("self", baseUrl + "rest/api/2/user?username=" + name)
+        .put("name", name)
+        .put("emailAddress", name + " at apache dot org")
+        .put("avatarUrls", new JSONObject().put("16x16", baseUrl + "secure/useravatar?size=small").put("48x48", baseUrl + "secure/useravatar"))
+        .put("displayName", displayName)
+        .put("active", true);
+  }
+
+  private JSONArray versions(Random r, int count) throws JSONException {
+    JSONArray versions = new JSONArray();
+    for (int v = 0; v < count; v++) {
+      String name = "0.9" + (4 + r.nextInt(3)) + "." + r.nextInt(8);
+      versions.put(new JSONObject()
+          .put("self", baseUrl + "rest/api/2/version/" + Math.abs(name.hashCode()))
+          .put("id", String.valueOf(Math.abs(name.hashCode())))
+          .put("description", "")
+          .put("name", name)
+          .put("archived", false)
+          .put("released", true));
+    }
+    return versions;
+  }
+
+  private static String sentence(Random r, int words) {
+    StringBuilder b = new StringBuilder();
+    for (int w = 0; w < words; w++) {
+      if (w > 0) b.append(' ');
+      b.append(r.nextInt(15) == 0 ? pick(r, ODD_BITS) : pick(r, WORDS));
+    }
+    return b.toString();
+  }
+
+  private static String paragraphs(Random r, int words) {
+    StringBuilder b = new StringBuilder();
+    while (words > 0) {
+      int n = Math.min(words, 5 + r.nextInt(40));
+      b.append(sentence(r, n)).append(r.nextInt(4) == 0 ? ".\n\n" : ". ");
+      words -= n;
+    }
+    return b.toString().trim();
+  }
+
+  private static String pick(Random r, String[] choices) {
+    return choices[r.nextInt(choices.length)];
+  }
+
+  private static final String[][] FIELDS = {
+    { "summary", "Summary", "string" }, { "description", "Description", "string" }, 
+    { "issuetype", "Issue Type", "issuetype" }, { "status", "Status", "status" }, 
+    { "priority", "Priority", "priority" }, { "resolution", "Resolution", "resolution" }, 
+    { "project", "Project", "project" }, { "reporter", "Reporter", "user" }, { "assignee", "Assignee", "user" }, 
+    { "created", "Created", "datetime" }, { "updated", "Updated", "datetime" }, 
+    { "resolutiondate", "Resolved", "datetime" }, { "labels", "Labels", "array" }, 
+    { "versions", "Affects Version/s", "array" }, { "fixVersions", "Fix Version/s", "array" }, 
+    { "components", "Component/s", "array" }, { "issuelinks", "Linked Issues", "array" }, 
+    { "subtasks", "Sub-Tasks", "array" }, { "watches", "Watchers", "watches" }, { "votes", "Votes", "array" }, 
+    { "comment", "Comment", "array" }, { "attachment", "Attachment", "array" } };
+
+  private static JSONObject names() throws JSONException {
+    JSONObject names = new JSONObject();
+    for (String[] f : FIELDS) {
+      names.put(f[0], f[1]);
+    }
+    return names;
+  }
+
+  private static JSONObject schema() throws JSONException {
+    JSONObject schema = new JSONObject();
+    for (String[] f : FIELDS) {
+      schema.put(f[0], new JSONObject().put("type", f[2]).put("system", f[0]));
+    }
+    return schema;
+  }
+}
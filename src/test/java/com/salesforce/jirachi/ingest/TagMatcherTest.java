@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Salesforce.com, Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *     Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *     Neither the name of Salesforce.com nor the names of its contributors may 
+ *     be used to endorse or promote products derived from this software without 
+ *     specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE 
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, 
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.salesforce.jirachi.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * TagMatcherTest
+ */
+public class TagMatcherTest {
+
+  private static TagMatcher matcher() {
+    Map<String,List<String>> tags = Maps.newLinkedHashMap();
+    tags.put("isTest", Arrays.asList("test", "junit"));
+    tags.put("isAssignment", Arrays.asList("assign%region", "region%assign"));
+    tags.put("isSnapshot", Arrays.asList("snapshot", "hfile_link"));
+    tags.put("isDoc", Arrays.asList("book.xml", "[docs]"));
+    Map<String,List<String>> exclusions = Maps.newLinkedHashMap();
+    exclusions.put("isSnapshot", Arrays.asList("pom.xml", "mvn"));
+    return new TagMatcher(tags, exclusions);
+  }
+
+  @Test
+  public void literalTermsAreCaseInsensitiveSubstrings() {
+    assertTags(new boolean[] { true, false, false, false }, matcher().match("Fix flaky TestHRegion"));
+    assertTags(new boolean[] { true, false, false, false }, matcher().match("upgrade JUnit"));
+  }
+
+  @Test
+  public void percentMatchesAnyRun() {
+    assertTrue(matcher().match("Assigning a region twice")[1]);
+    assertTrue(matcher().match("region never gets assigned")[1]);
+    assertFalse(matcher().match("assign")[1]);
+  }
+
+  @Test
+  public void underscoreMatchesOneCharacter() {
+    assertFalse(matcher().match("HFileLink cleanup")[2]);
+    assertTrue(matcher().match("hfile-link cleanup")[2]);
+  }
+
+  @Test
+  public void dotAndBracketsAreLiteral() {
+    assertTrue(matcher().match("Typo in book.xml")[3]);
+    assertFalse(matcher().match("Typo in bookxxml")[3]);
+    assertTrue(matcher().match("[DOCS] fix links")[3]);
+  }
+
+  @Test
+  public void exclusionsVetoTheirTag() {
+    assertTrue(matcher().match("Snapshot restore fails")[2]);
+    assertFalse(matcher().match("Snapshot builds break with mvn 3")[2]);
+  }
+
+  @Test
+  public void overlappingTermsAllFound() {
+    TagMatcher m = new TagMatcher(map("a", "she", "b", "he", "c", "hers"), Maps.<String,List<String>>newHashMap());
+    assertTags(new boolean[] { true, true, true }, m.match("ushers"));
+    assertTags(new boolean[] { false, true, false }, m.match("the"));
+  }
+
+  @Test
+  public void nullSummaryMatchesNothing() {
+    assertTags(new boolean[4], matcher().match(null));
+  }
+
+  private static void assertTags(boolean[] expected, boolean[] actual) {
+    assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+  }
+
+  private static Map<String,List<String>> map(String... kv) {
+    Map<String,List<String>> m = Maps.newLinkedHashMap();
+    for (int i = 0; i < kv.length; i += 2) {
+      m.put(kv[i], Arrays.asList(kv[i + 1]));
+    }
+    return m;
+  }
+}